@@ -0,0 +1,60 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.bench;
+
+/*
+ * A benchmark run by BenchmarkRunner. run(n) repeats the measured operation n times, the runner
+ * adjusts n so each call takes long enough to be timed accurately.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+	private final String params;
+
+	// params describes the configuration, e.g. "cpus=8", and is part of the result key.
+	protected Benchmark(String name, String params) {
+		this.name = name;
+		this.params = params;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getParams() {
+		return params;
+	}
+
+	// Key used to compare results of different runs.
+	public String getKey() {
+		return name + "[" + params + "]";
+	}
+
+	public void setUp() throws Exception {
+	}
+
+	/*
+	 * Runs the operation n times. It returns a value that depends on the results so the JIT can't
+	 * remove the work.
+	 */
+	public abstract long run(int n) throws Exception;
+
+	public void tearDown() throws Exception {
+	}
+
+}
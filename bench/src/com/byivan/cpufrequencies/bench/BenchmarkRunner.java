@@ -0,0 +1,215 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Runs the benchmarks of the profiler hot paths on a plain JVM and prints one line per benchmark
+ * with the time per operation in nanoseconds (mean and standard deviation of the measurement
+ * rounds), tab separated so results can be stored and compared.
+ *
+ * Each benchmark is warmed up first, then the number of operations per round is calibrated so a
+ * round takes at least ROUND_MS milliseconds, then it is measured for a number of rounds.
+ *
+ * Usage: java -cp <classes> com.byivan.cpufrequencies.bench.BenchmarkRunner [options]
+ *   --filter <text>      Only run the benchmarks whose key contains text.
+ *   --quick              Fewer and shorter rounds, for a smoke run.
+ *   --out <file>         Also save the results to file.
+ *   --baseline <file>    Compare with the results saved by a previous run.
+ *   --threshold <pct>    Slowdown over the baseline reported as a regression, 10 by default.
+ * The exit code is 1 if any benchmark regressed, so it can be used as a gate in a build script.
+ */
+public class BenchmarkRunner {
+
+	private static final int[] CPU_COUNTS = { 1, 2, 4, 8, 16, 32, 64, 128, 256 };
+	private static final int[] FREQUENCY_COUNTS = { 8, 15, 32, 50 };
+
+	private int warmupRounds = 5;
+	private int rounds = 10;
+	private long roundMs = 20;
+
+	public static void main(String[] args) throws Exception {
+		String filter = null;
+		String out = null;
+		String baseline = null;
+		double threshold = 10;
+		BenchmarkRunner runner = new BenchmarkRunner();
+		for (int i = 0; i < args.length; i++) {
+			if ("--filter".equals(args[i]))
+				filter = args[++i];
+			else if ("--quick".equals(args[i]))
+				runner.setQuick();
+			else if ("--out".equals(args[i]))
+				out = args[++i];
+			else if ("--baseline".equals(args[i]))
+				baseline = args[++i];
+			else if ("--threshold".equals(args[i]))
+				threshold = Double.parseDouble(args[++i]);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		HashMap<String, Double> previous = baseline != null ? load(new File(baseline)) : null;
+		PrintWriter writer = out != null ? new PrintWriter(new FileWriter(out)) : null;
+		int regressions = 0;
+		try {
+			System.out.println("benchmark" + "\t" + "ns_op" + "\t" + "stddev" + (previous != null ? "\t" + "change" : ""));
+			ArrayList<Benchmark> benchmarks = createBenchmarks();
+			for (int i = 0; i < benchmarks.size(); i++) {
+				Benchmark benchmark = benchmarks.get(i);
+				if (filter != null && benchmark.getKey().indexOf(filter) < 0)
+					continue;
+				double[] result = runner.measure(benchmark);
+				String line = benchmark.getKey() + "\t" + format(result[0]) + "\t" + format(result[1]);
+				if (writer != null) {
+					writer.println(line);
+					writer.flush();
+				}
+				if (previous != null) {
+					Double before = previous.get(benchmark.getKey());
+					if (before != null) {
+						double change = (result[0] - before.doubleValue()) * 100 / before.doubleValue();
+						line += "\t" + (change >= 0 ? "+" : "") + format(change) + "%";
+						if (change > threshold) {
+							line += "\t" + "REGRESSION";
+							regressions++;
+						}
+					}
+				}
+				System.out.println(line);
+			}
+		} finally {
+			if (writer != null)
+				writer.close();
+		}
+		if (regressions > 0) {
+			System.out.println(regressions + " regression(s) over " + format(threshold) + "%");
+			System.exit(1);
+		}
+	}
+
+	private static ArrayList<Benchmark> createBenchmarks() {
+		ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int i = 0; i < FREQUENCY_COUNTS.length; i++) {
+			benchmarks.add(new ParseBenchmark(FREQUENCY_COUNTS[i]));
+		}
+		// One policy per CPU is the worst case, one file per CPU. Devices usually have 2 or 3 policies.
+		for (int i = 0; i < CPU_COUNTS.length; i++) {
+			benchmarks.add(new SnapshotBenchmark(CPU_COUNTS[i], 1));
+		}
+		benchmarks.add(new SnapshotBenchmark(8, 4));
+		benchmarks.add(new SnapshotBenchmark(256, 8));
+		// Concurrent readings, they only pay off with many policies.
+		for (int threads = 2; threads <= 8; threads *= 2) {
+			benchmarks.add(new SnapshotBenchmark(8, 1, threads));
+			benchmarks.add(new SnapshotBenchmark(64, 1, threads));
+		}
+		for (int i = 0; i < CPU_COUNTS.length; i++) {
+			benchmarks.add(new DeltaBenchmark(CPU_COUNTS[i]));
+		}
+		for (int i = 0; i < SinkBenchmark.FORMATS.length; i++) {
+			benchmarks.add(new SinkBenchmark(SinkBenchmark.FORMATS[i], 8));
+			benchmarks.add(new SinkBenchmark(SinkBenchmark.FORMATS[i], 64));
+		}
+		for (int readers = 1; readers <= 8; readers *= 2) {
+			benchmarks.add(new PublisherBenchmark(readers, 8));
+		}
+		return benchmarks;
+	}
+
+	private void setQuick() {
+		warmupRounds = 2;
+		rounds = 3;
+		roundMs = 5;
+	}
+
+	// Returns the mean and standard deviation of the time per operation in nanoseconds.
+	private double[] measure(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			long sink = 0;
+			// Calibration: double n until a round is long enough.
+			int n = 1;
+			while (true) {
+				long start = System.nanoTime();
+				sink += benchmark.run(n);
+				long elapsed = System.nanoTime() - start;
+				if (elapsed >= roundMs * 1000000L || n >= 1 << 30)
+					break;
+				n *= 2;
+			}
+			for (int i = 0; i < warmupRounds; i++) {
+				sink += benchmark.run(n);
+			}
+			double[] times = new double[rounds];
+			for (int i = 0; i < rounds; i++) {
+				long start = System.nanoTime();
+				sink += benchmark.run(n);
+				times[i] = (double) (System.nanoTime() - start) / n;
+			}
+			if (sink == 42)
+				System.out.print("");
+			double mean = 0;
+			for (int i = 0; i < rounds; i++) {
+				mean += times[i];
+			}
+			mean /= rounds;
+			double variance = 0;
+			for (int i = 0; i < rounds; i++) {
+				variance += (times[i] - mean) * (times[i] - mean);
+			}
+			return new double[] { mean, Math.sqrt(variance / rounds) };
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	// Reads the results saved with --out, key and time per operation in the first two columns.
+	private static HashMap<String, Double> load(File file) throws IOException {
+		HashMap<String, Double> results = new HashMap<String, Double>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length >= 2) {
+					try {
+						results.put(fields[0], Double.valueOf(fields[1]));
+					} catch (NumberFormatException e) {
+						// Header or a line that isn't a result.
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return results;
+	}
+
+	private static String format(double value) {
+		return String.format("%.1f", value);
+	}
+
+}
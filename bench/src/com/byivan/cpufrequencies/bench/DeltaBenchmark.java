@@ -0,0 +1,74 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.bench;
+
+import com.byivan.cpufrequencies.core.CpuFreqSampler;
+import com.byivan.cpufrequencies.core.CpuFreqSnapshot;
+import com.byivan.cpufrequencies.core.CpuTopology;
+import com.byivan.cpufrequencies.core.SnapshotDelta;
+
+/*
+ * Cost of computing the delta between two snapshots with one policy per CPU.
+ */
+public class DeltaBenchmark extends Benchmark {
+
+	private final int numCpus;
+	private FakeSysfs sysfs;
+	private CpuFreqSnapshot from;
+	private CpuFreqSnapshot to;
+	private SnapshotDelta delta;
+
+	public DeltaBenchmark(int numCpus) {
+		super("delta", "cpus=" + numCpus);
+		this.numCpus = numCpus;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		sysfs = new FakeSysfs(FakeSysfs.createTempDir("cpufreq_bench"), numCpus, 1, 15);
+		sysfs.create();
+		CpuTopology topology = new CpuTopology(sysfs.getPaths());
+		CpuFreqSampler sampler = new CpuFreqSampler(topology.getFreqPolicies(topology.getPresentCpus()));
+		from = sampler.newSnapshot();
+		to = sampler.newSnapshot();
+		sampler.sample(from);
+		sampler.sample(to);
+		sampler.close();
+		long[] residency = to.getResidency();
+		for (int i = 0; i < residency.length; i++) {
+			residency[i] += i;
+		}
+		delta = new SnapshotDelta(from.getLayout());
+	}
+
+	@Override
+	public long run(int n) {
+		long result = 0;
+		for (int i = 0; i < n; i++) {
+			delta.compute(from, to);
+			result += delta.getValues()[i % delta.getValues().length];
+		}
+		return result;
+	}
+
+	@Override
+	public void tearDown() {
+		sysfs.delete();
+	}
+
+}
@@ -0,0 +1,377 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.byivan.cpufrequencies.core.SystemPaths;
+
+/*
+ * Generates a synthetic sysfs tree in a local directory, so the real readers of the profiler can run
+ * on any machine and at scales no phone reaches (hundreds of CPUs, tens of frequencies). The tree
+ * has the layout expected by SystemPaths.fromRoot(root):
+ *
+ * root/sys/devices/system/cpu/{possible,present,online}
+ * root/sys/devices/system/cpu/cpufreq/policyN/{related_cpus,affected_cpus,scaling_available_frequencies}
+ * root/sys/devices/system/cpu/cpufreq/policyN/scaling_cur_freq
+ * root/sys/devices/system/cpu/cpufreq/policyN/stats/{time_in_state,total_trans,trans_table}
+ * root/sys/devices/system/cpu/cpuN/cpuidle/stateK/{name,time,usage}
+ * root/proc/{stat,uptime}
+ * root/sys/class/power_supply/battery/charge_counter
+ *
+ * There is a policy for every group of cpusPerPolicy CPUs. Odd policies have higher frequencies than
+ * even ones, like the big and LITTLE clusters of a phone. The CPUs of a policy are busy the load of
+ * the workload, which is reported in /proc/stat, and the uptime is the simulated time. The battery
+ * discharges FAKE_IDLE_MA per CPU, plus FAKE_ACTIVE_MA per CPU while it's busy. The idle time of
+ * every CPU is split between IDLE_STATES with fixed shares and mean durations. A policy that spends a
+ * step in two frequencies switches between them every SWITCH_MS, and when the frequency of a step is
+ * not the last one of the previous step that's one more transition. scaling_cur_freq has the frequency
+ * the policy ends each step in.
+ *
+ * advance() moves the residency counters forward following a FakeWorkload and rewrites the
+ * time_in_state files in place, so readers that keep the files open see the new values like they
+ * would in sysfs. A reader running at the same time can see a file half written, which the profiler
+ * handles like any failed reading.
+ *
+ * It can also be run on its own to leave a tree that changes in real time, e.g. for the profiler
+ * service or the Linux daemon:
+ *
+ * java -cp <classes> com.byivan.cpufrequencies.bench.FakeSysfs <root> <cpus> <cpusPerPolicy> <frequencies>
+ *     [script] [durationMs] [stepMs]
+ */
+public final class FakeSysfs {
+
+	// time_in_state and /proc/stat count in units of 10ms.
+	private static final long TIME_UNIT_MS = 10;
+	// Uptime and busy time of every CPU when the tree is created.
+	private static final long INITIAL_UPTIME_MS = 3600000;
+	private static final double INITIAL_LOAD = 0.2;
+	// Current of a CPU of the fake device when idle and extra current while busy, in mA.
+	public static final double FAKE_IDLE_MA = 5;
+	public static final double FAKE_ACTIVE_MA = 100;
+	private static final long INITIAL_CHARGE_UAH = 3000000;
+	// cpuidle states, the share of the idle time spent in each one and the mean time in it in ms.
+	private static final String[] IDLE_STATES = { "WFI", "cpu-sleep", "cluster-sleep" };
+	private static final double[] IDLE_STATE_SHARES = { 0.3, 0.5, 0.2 };
+	private static final long[] IDLE_STATE_MEAN_MS = { 1, 5, 20 };
+	// Time a policy stays in a frequency when it alternates between two.
+	private static final long SWITCH_MS = 20;
+
+	private final File root;
+	private final int numCpus;
+	private final int cpusPerPolicy;
+	private final int numFrequencies;
+	private final SystemPaths paths;
+	// Milliseconds spent by each policy in each frequency.
+	private final long[][] residency;
+	// Milliseconds each policy was busy since the tree was created.
+	private final double[] busy;
+	// Transitions of each policy between each pair of frequencies and its current frequency.
+	private final long[][][] transitions;
+	private final int[] currentFrequency;
+	private FakeWorkload workload = FakeWorkload.parse(FakeWorkload.DEFAULT_SCRIPT);
+	private long elapsedMs = 0;
+
+	public FakeSysfs(File root, int numCpus, int cpusPerPolicy, int numFrequencies) {
+		if (numCpus < 1 || cpusPerPolicy < 1 || numFrequencies < 1)
+			throw new IllegalArgumentException("Invalid fake sysfs, cpus=" + numCpus + " cpusPerPolicy="
+					+ cpusPerPolicy + " frequencies=" + numFrequencies);
+		this.root = root;
+		this.numCpus = numCpus;
+		this.cpusPerPolicy = cpusPerPolicy;
+		this.numFrequencies = numFrequencies;
+		this.paths = SystemPaths.fromRoot(root);
+		residency = new long[getNumPolicies()][numFrequencies];
+		busy = new double[getNumPolicies()];
+		transitions = new long[getNumPolicies()][numFrequencies][numFrequencies];
+		currentFrequency = new int[getNumPolicies()];
+		// Some history, as if the device had been running for a while.
+		for (int p = 0; p < residency.length; p++) {
+			for (int f = 0; f < numFrequencies; f++) {
+				residency[p][f] = (f * 7919L + p * 104729L) * TIME_UNIT_MS;
+			}
+		}
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	public SystemPaths getPaths() {
+		return paths;
+	}
+
+	public int getNumCpus() {
+		return numCpus;
+	}
+
+	public int getNumPolicies() {
+		return (numCpus + cpusPerPolicy - 1) / cpusPerPolicy;
+	}
+
+	public int getNumFrequencies() {
+		return numFrequencies;
+	}
+
+	// Simulated time since the tree was created.
+	public long getElapsedMs() {
+		return elapsedMs;
+	}
+
+	public void setWorkload(FakeWorkload workload) {
+		this.workload = workload;
+	}
+
+	public long getFrequency(int policy, int index) {
+		return 300000 + index * 100000 + (policy % 2) * 50000;
+	}
+
+	// Value of time_in_state for a policy and frequency, in units of 10ms.
+	public long getTimeInState(int policy, int index) {
+		return residency[policy][index] / TIME_UNIT_MS;
+	}
+
+	// Writes the whole tree.
+	public void create() throws IOException {
+		File cpuRoot = paths.getCpuRoot();
+		cpuRoot.mkdirs();
+		paths.getProcfsRoot().mkdirs();
+		paths.getPowerSupplyDirectory("battery").mkdirs();
+		String all = numCpus > 1 ? "0-" + (numCpus - 1) + "\n" : "0\n";
+		write(new File(cpuRoot, "possible"), all);
+		write(new File(cpuRoot, "present"), all);
+		write(new File(cpuRoot, "online"), all);
+		for (int p = 0; p < getNumPolicies(); p++) {
+			File policy = getPolicyDirectory(p);
+			new File(policy, "stats").mkdirs();
+			int first = p * cpusPerPolicy;
+			StringBuilder related = new StringBuilder();
+			for (int cpu = first; cpu < Math.min(numCpus, first + cpusPerPolicy); cpu++) {
+				if (cpu > first)
+					related.append(' ');
+				related.append(cpu);
+			}
+			related.append('\n');
+			write(new File(policy, "related_cpus"), related.toString());
+			write(new File(policy, "affected_cpus"), related.toString());
+			StringBuilder frequencies = new StringBuilder();
+			for (int f = 0; f < numFrequencies; f++) {
+				frequencies.append(getFrequency(p, f)).append(' ');
+			}
+			frequencies.append('\n');
+			write(new File(policy, "scaling_available_frequencies"), frequencies.toString());
+			writeTimeInState(p);
+			writeTransitions(p);
+		}
+		for (int cpu = 0; cpu < numCpus; cpu++) {
+			for (int k = 0; k < IDLE_STATES.length; k++) {
+				File state = getIdleStateDirectory(cpu, k);
+				state.mkdirs();
+				write(new File(state, "name"), IDLE_STATES[k] + "\n");
+			}
+		}
+		writeProc();
+	}
+
+	/*
+	 * Runs the workload ms milliseconds and updates the files. The time is simulated, nothing waits.
+	 */
+	public void advance(long ms) throws IOException {
+		long[][] before = new long[residency.length][];
+		for (int p = 0; p < residency.length; p++) {
+			before[p] = residency[p].clone();
+		}
+		workload.advance(ms, residency, busy);
+		elapsedMs += ms;
+		for (int p = 0; p < getNumPolicies(); p++) {
+			countTransitions(p, before[p], ms);
+			writeTimeInState(p);
+			writeTransitions(p);
+		}
+		writeProc();
+	}
+
+	// Deletes the tree.
+	public void delete() {
+		delete(root);
+	}
+
+	private File getIdleStateDirectory(int cpu, int state) {
+		return new File(paths.getCpuRoot(), "cpu" + cpu + "/cpuidle/state" + state);
+	}
+
+	private File getPolicyDirectory(int policy) {
+		return new File(paths.getCpuRoot(), "cpufreq/policy" + policy * cpusPerPolicy);
+	}
+
+	private void writeTimeInState(int policy) throws IOException {
+		StringBuilder timeInState = new StringBuilder();
+		for (int f = 0; f < numFrequencies; f++) {
+			timeInState.append(getFrequency(policy, f)).append(' ').append(getTimeInState(policy, f)).append('\n');
+		}
+		write(new File(getPolicyDirectory(policy), "stats/time_in_state"), timeInState.toString());
+	}
+
+	// Adds the transitions of a policy in a step of ms milliseconds that started with residency before.
+	private void countTransitions(int policy, long[] before, long ms) {
+		int low = -1;
+		int high = -1;
+		for (int f = 0; f < numFrequencies; f++) {
+			if (residency[policy][f] == before[f])
+				continue;
+			if (low < 0)
+				low = f;
+			high = f;
+		}
+		if (low < 0)
+			return;
+		int from = currentFrequency[policy];
+		int to = from == high ? high : low;
+		if (from != to)
+			transitions[policy][from][to]++;
+		if (low != high) {
+			long switches = Math.max(1, ms / SWITCH_MS);
+			for (long i = 0; i < switches; i++) {
+				from = to;
+				to = from == low ? high : low;
+				transitions[policy][from][to]++;
+			}
+		}
+		currentFrequency[policy] = to;
+	}
+
+	private void writeTransitions(int policy) throws IOException {
+		write(new File(getPolicyDirectory(policy), "scaling_cur_freq"),
+				getFrequency(policy, currentFrequency[policy]) + "\n");
+		long total = 0;
+		StringBuilder table = new StringBuilder("   From  :    To\n         : ");
+		for (int f = 0; f < numFrequencies; f++) {
+			table.append(pad(getFrequency(policy, f))).append(' ');
+		}
+		table.append('\n');
+		for (int from = 0; from < numFrequencies; from++) {
+			table.append(pad(getFrequency(policy, from))).append(": ");
+			for (int to = 0; to < numFrequencies; to++) {
+				table.append(pad(transitions[policy][from][to])).append(' ');
+				total += transitions[policy][from][to];
+			}
+			table.append('\n');
+		}
+		write(new File(getPolicyDirectory(policy), "stats/trans_table"), table.toString());
+		write(new File(getPolicyDirectory(policy), "stats/total_trans"), total + "\n");
+	}
+
+	// Right aligned in 9 characters, like the "%9u" of the kernel.
+	private static String pad(long value) {
+		StringBuilder sb = new StringBuilder(Long.toString(value));
+		while (sb.length() < 9)
+			sb.insert(0, ' ');
+		return sb.toString();
+	}
+
+	// Writes /proc/stat with the busy and idle time of every CPU and /proc/uptime.
+	private void writeProc() throws IOException {
+		long uptimeMs = INITIAL_UPTIME_MS + elapsedMs;
+		StringBuilder cpus = new StringBuilder();
+		long totalBusy = 0;
+		long totalIdle = 0;
+		for (int cpu = 0; cpu < numCpus; cpu++) {
+			long busyMs = (long) (INITIAL_UPTIME_MS * INITIAL_LOAD + busy[cpu / cpusPerPolicy]);
+			long cpuBusy = busyMs / TIME_UNIT_MS;
+			long cpuIdle = (uptimeMs - busyMs) / TIME_UNIT_MS;
+			totalBusy += cpuBusy;
+			totalIdle += cpuIdle;
+			// user nice system idle iowait irq softirq steal guest guest_nice
+			cpus.append("cpu").append(cpu).append(' ').append(cpuBusy).append(" 0 0 ").append(cpuIdle)
+					.append(" 0 0 0 0 0 0\n");
+			long idleMs = uptimeMs - busyMs;
+			for (int k = 0; k < IDLE_STATES.length; k++) {
+				File state = getIdleStateDirectory(cpu, k);
+				long stateMs = (long) (idleMs * IDLE_STATE_SHARES[k]);
+				write(new File(state, "time"), stateMs * 1000 + "\n");
+				write(new File(state, "usage"), stateMs / IDLE_STATE_MEAN_MS[k] + "\n");
+			}
+		}
+		StringBuilder stat = new StringBuilder();
+		stat.append("cpu  ").append(totalBusy).append(" 0 0 ").append(totalIdle).append(" 0 0 0 0 0 0\n");
+		stat.append(cpus);
+		stat.append("intr 0\nctxt 0\nbtime 0\nprocesses 1\nprocs_running 1\nprocs_blocked 0\n");
+		write(paths.getProcStatFile(), stat.toString());
+		write(paths.getUptimeFile(), (uptimeMs / 1000) + "." + (uptimeMs % 1000 / 100) + (uptimeMs % 100 / 10)
+				+ " 0.00\n");
+		// mA * ms / 3600 = uAh
+		double usedUah = FAKE_IDLE_MA * numCpus * elapsedMs / 3600;
+		for (int cpu = 0; cpu < numCpus; cpu++) {
+			usedUah += FAKE_ACTIVE_MA * busy[cpu / cpusPerPolicy] / 3600;
+		}
+		write(new File(paths.getPowerSupplyDirectory("battery"), "charge_counter"),
+				(INITIAL_CHARGE_UAH - Math.round(usedUah)) + "\n");
+	}
+
+	public static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (int i = 0; i < children.length; i++) {
+				delete(children[i]);
+			}
+		}
+		file.delete();
+	}
+
+	// Truncates and writes the file, keeping the same inode for the readers that have it open.
+	private static void write(File file, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes());
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: FakeSysfs <root> <cpus> <cpusPerPolicy> <frequencies> [script] [durationMs] [stepMs]");
+			System.exit(2);
+		}
+		FakeSysfs sysfs = new FakeSysfs(new File(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+				Integer.parseInt(args[3]));
+		if (args.length > 4)
+			sysfs.setWorkload(FakeWorkload.parse(args[4]));
+		long durationMs = args.length > 5 ? Long.parseLong(args[5]) : 60000;
+		long stepMs = args.length > 6 ? Long.parseLong(args[6]) : 100;
+		sysfs.create();
+		System.out.println("Fake sysfs in " + sysfs.getPaths() + ", " + sysfs.getNumPolicies() + " policies");
+		// Follow the wall clock so the counters advance like in a real device.
+		long start = System.currentTimeMillis();
+		while (sysfs.getElapsedMs() < durationMs) {
+			Thread.sleep(stepMs);
+			long now = System.currentTimeMillis() - start;
+			sysfs.advance(Math.min(now, durationMs) - sysfs.getElapsedMs());
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.bench;
+
+import java.util.ArrayList;
+
+/*
+ * Scripted load for FakeSysfs. A script is a list of phases separated by commas, each one with the
+ * load of the policies and its duration in milliseconds, e.g. "0.1:2000,1:500,0.6/0.2:1000". The
+ * load goes from 0 (lowest frequency) to 1 (highest frequency). A phase can give a different load to
+ * each policy separated by '/', the last one is used for the remaining policies. The script repeats
+ * when it reaches the end.
+ *
+ * Loads between two frequencies are spread over both, like a governor that switches between them,
+ * so every frequency of the table gets some time in a long enough script.
+ */
+public final class FakeWorkload {
+
+	// Ramps from idle to full load and back, then a burst.
+	public static final String DEFAULT_SCRIPT = "0:500,0.25:500,0.5:500,0.75:500,1:500,0.5/0.1:1000,1/0:250";
+
+	private final double[][] loads;
+	private final long[] durations;
+	private final long length;
+	// Position in the script, in milliseconds from the start.
+	private long position = 0;
+
+	private FakeWorkload(double[][] loads, long[] durations) {
+		this.loads = loads;
+		this.durations = durations;
+		long total = 0;
+		for (int i = 0; i < durations.length; i++) {
+			total += durations[i];
+		}
+		this.length = total;
+	}
+
+	public static FakeWorkload parse(String script) {
+		String[] phases = script.split(",");
+		ArrayList<double[]> loads = new ArrayList<double[]>();
+		long[] durations = new long[phases.length];
+		for (int i = 0; i < phases.length; i++) {
+			String phase = phases[i].trim();
+			int colon = phase.indexOf(':');
+			if (colon < 0)
+				throw new IllegalArgumentException("Phase without duration: " + phase);
+			String[] values = phase.substring(0, colon).split("/");
+			double[] load = new double[values.length];
+			for (int j = 0; j < values.length; j++) {
+				load[j] = Double.parseDouble(values[j]);
+				if (load[j] < 0 || load[j] > 1)
+					throw new IllegalArgumentException("Load out of [0, 1]: " + phase);
+			}
+			durations[i] = Long.parseLong(phase.substring(colon + 1).trim());
+			if (durations[i] <= 0)
+				throw new IllegalArgumentException("Duration must be positive: " + phase);
+			loads.add(load);
+		}
+		return new FakeWorkload(loads.toArray(new double[loads.size()][]), durations);
+	}
+
+	// Duration of the whole script in milliseconds.
+	public long getLength() {
+		return length;
+	}
+
+	/*
+	 * Advances the script ms milliseconds and adds to residency[p][f] the milliseconds spent by
+	 * policy p in frequency f.
+	 */
+	public void advance(long ms, long[][] residency) {
+		advance(ms, residency, null);
+	}
+
+	/*
+	 * Like advance(ms, residency), also adds to busy[p] the milliseconds policy p was busy, its load
+	 * times the duration, if busy is not null.
+	 */
+	public void advance(long ms, long[][] residency, double[] busy) {
+		while (ms > 0) {
+			// Find the current phase and the time left in it.
+			long offset = position % length;
+			int phase = 0;
+			while (offset >= durations[phase]) {
+				offset -= durations[phase];
+				phase++;
+			}
+			long step = Math.min(ms, durations[phase] - offset);
+			for (int p = 0; p < residency.length; p++) {
+				double[] load = loads[phase];
+				spread(load[Math.min(p, load.length - 1)], step, residency[p]);
+				if (busy != null)
+					busy[p] += load[Math.min(p, load.length - 1)] * step;
+			}
+			position += step;
+			ms -= step;
+		}
+	}
+
+	private static void spread(double load, long ms, long[] residency) {
+		double target = load * (residency.length - 1);
+		int low = (int) Math.floor(target);
+		if (low >= residency.length - 1) {
+			residency[residency.length - 1] += ms;
+			return;
+		}
+		long high = Math.round(ms * (target - low));
+		residency[low] += ms - high;
+		residency[low + 1] += high;
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.bench;
+
+import com.byivan.cpufrequencies.core.TimeInStateParser;
+
+/*
+ * Throughput of TimeInStateParser on a time_in_state file with numFrequencies lines.
+ */
+public class ParseBenchmark extends Benchmark {
+
+	private final int numFrequencies;
+	private byte[] buffer;
+	private long[] frequencies;
+	private long[] times;
+
+	public ParseBenchmark(int numFrequencies) {
+		super("parse", "freqs=" + numFrequencies);
+		this.numFrequencies = numFrequencies;
+	}
+
+	@Override
+	public void setUp() {
+		StringBuilder sb = new StringBuilder();
+		for (int f = 0; f < numFrequencies; f++) {
+			sb.append(300000 + f * 100000).append(' ').append(123456789L + f * 7919L).append('\n');
+		}
+		buffer = sb.toString().getBytes();
+		frequencies = new long[numFrequencies];
+		times = new long[numFrequencies];
+	}
+
+	@Override
+	public long run(int n) {
+		long result = 0;
+		for (int i = 0; i < n; i++) {
+			result += TimeInStateParser.parse(buffer, buffer.length, frequencies, times);
+			result += times[numFrequencies - 1];
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.bench;
+
+import com.byivan.cpufrequencies.core.CpuFreqSampler;
+import com.byivan.cpufrequencies.core.CpuFreqSnapshot;
+import com.byivan.cpufrequencies.core.CpuTopology;
+import com.byivan.cpufrequencies.core.SnapshotPublisher;
+
+/*
+ * Throughput of readers copying the last sample of a SnapshotPublisher while a writer thread publishes
+ * a new sample every millisecond, faster than any sampling period used in practice. The time reported
+ * is the wall time of n copies split among the reader threads, so with more readers it goes down as
+ * long as they scale. PublisherStress publishes without pause.
+ */
+public class PublisherBenchmark extends Benchmark {
+
+	private final int numReaders;
+	private final int numCpus;
+	private FakeSysfs sysfs;
+	private SnapshotPublisher publisher;
+	private Thread writer;
+	private volatile boolean running;
+
+	public PublisherBenchmark(int numReaders, int numCpus) {
+		super("publisher", "readers=" + numReaders + ",cpus=" + numCpus);
+		this.numReaders = numReaders;
+		this.numCpus = numCpus;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		sysfs = new FakeSysfs(FakeSysfs.createTempDir("cpufreq_bench"), numCpus, 1, 15);
+		sysfs.create();
+		CpuTopology topology = new CpuTopology(sysfs.getPaths());
+		CpuFreqSampler sampler = new CpuFreqSampler(topology.getFreqPolicies(topology.getPresentCpus()));
+		final CpuFreqSnapshot snapshot = sampler.newSnapshot();
+		sampler.sample(snapshot);
+		sampler.close();
+		publisher = new SnapshotPublisher();
+		snapshot.setSequence(0);
+		publisher.open(snapshot);
+		running = true;
+		writer = new Thread("PublisherBenchmarkWriter") {
+			@Override
+			public void run() {
+				long sequence = 1;
+				while (running) {
+					snapshot.getResidency()[0] = sequence;
+					snapshot.setSequence(sequence++);
+					publisher.onSample(null, snapshot, null);
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		writer.start();
+	}
+
+	@Override
+	public long run(int n) throws Exception {
+		Reader[] readers = new Reader[numReaders];
+		for (int i = 0; i < numReaders; i++) {
+			readers[i] = new Reader(n / numReaders + (i < n % numReaders ? 1 : 0));
+			readers[i].start();
+		}
+		long result = 0;
+		for (int i = 0; i < numReaders; i++) {
+			readers[i].join();
+			result += readers[i].result;
+		}
+		return result;
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		running = false;
+		writer.join();
+		sysfs.delete();
+	}
+
+	private class Reader extends Thread {
+
+		private final int n;
+		private final CpuFreqSnapshot out = new CpuFreqSnapshot(publisher.getLayout());
+		long result = 0;
+
+		Reader(int n) {
+			this.n = n;
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < n; i++) {
+				publisher.copyLatest(out);
+				result += out.getSequence();
+			}
+		}
+
+	}
+
+}
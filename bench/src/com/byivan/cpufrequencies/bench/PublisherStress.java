@@ -0,0 +1,157 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.bench;
+
+import com.byivan.cpufrequencies.core.CpuFreqLayout;
+import com.byivan.cpufrequencies.core.CpuFreqSampler;
+import com.byivan.cpufrequencies.core.CpuFreqSnapshot;
+import com.byivan.cpufrequencies.core.CpuTopology;
+import com.byivan.cpufrequencies.core.SnapshotPublisher;
+
+/*
+ * Stress check of SnapshotPublisher: a writer publishes samples as fast as it can while many readers
+ * copy the last one and verify it's consistent. Every sample published has all its values equal to its
+ * sequence number and only the policies with the parity of the sequence valid, so a copy mixing two
+ * samples is detected. Readers also check that the sequences they see never go back.
+ *
+ * Usage: java -cp <classes> com.byivan.cpufrequencies.bench.PublisherStress [readers] [seconds] [cpus]
+ * Prints the reads and errors of each reader, the exit code is 1 if any copy was inconsistent.
+ */
+public class PublisherStress {
+
+	public static void main(String[] args) throws Exception {
+		int numReaders = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		long durationMs = (args.length > 1 ? Long.parseLong(args[1]) : 5) * 1000;
+		int numCpus = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		FakeSysfs sysfs = new FakeSysfs(FakeSysfs.createTempDir("cpufreq_stress"), numCpus, 1, 15);
+		sysfs.create();
+		CpuFreqLayout layout;
+		try {
+			CpuTopology topology = new CpuTopology(sysfs.getPaths());
+			CpuFreqSampler sampler = new CpuFreqSampler(topology.getFreqPolicies(topology.getPresentCpus()));
+			layout = sampler.newSnapshot().getLayout();
+			sampler.close();
+		} finally {
+			sysfs.delete();
+		}
+		final SnapshotPublisher publisher = new SnapshotPublisher();
+		final CpuFreqSnapshot snapshot = new CpuFreqSnapshot(layout);
+		fill(snapshot, 0);
+		publisher.open(snapshot);
+		Writer writer = new Writer(publisher, snapshot);
+		Reader[] readers = new Reader[numReaders];
+		for (int i = 0; i < numReaders; i++) {
+			readers[i] = new Reader(publisher, layout);
+		}
+		writer.start();
+		for (int i = 0; i < numReaders; i++) {
+			readers[i].start();
+		}
+		Thread.sleep(durationMs);
+		writer.running = false;
+		for (int i = 0; i < numReaders; i++) {
+			readers[i].running = false;
+		}
+		writer.join();
+		long reads = 0;
+		long errors = 0;
+		for (int i = 0; i < numReaders; i++) {
+			readers[i].join();
+			System.out.println("reader=" + i + " reads=" + readers[i].reads + " errors=" + readers[i].errors);
+			reads += readers[i].reads;
+			errors += readers[i].errors;
+		}
+		System.out.println("published=" + publisher.getPublished() + " reads=" + reads + " errors=" + errors
+				+ " reads_per_second=" + reads * 1000 / durationMs);
+		if (errors > 0)
+			System.exit(1);
+	}
+
+	// All the values equal to sequence, and the policies with the parity of sequence valid.
+	private static void fill(CpuFreqSnapshot snapshot, long sequence) {
+		long[] residency = snapshot.getResidency();
+		for (int i = 0; i < residency.length; i++) {
+			residency[i] = sequence;
+		}
+		for (int p = 0; p < snapshot.getLayout().getNumPolicies(); p++) {
+			snapshot.setValid(p, (p & 1) == (sequence & 1));
+		}
+		snapshot.setSequence(sequence);
+	}
+
+	private static class Writer extends Thread {
+
+		private final SnapshotPublisher publisher;
+		private final CpuFreqSnapshot snapshot;
+		volatile boolean running = true;
+
+		Writer(SnapshotPublisher publisher, CpuFreqSnapshot snapshot) {
+			super("PublisherStressWriter");
+			this.publisher = publisher;
+			this.snapshot = snapshot;
+		}
+
+		@Override
+		public void run() {
+			long sequence = 1;
+			while (running) {
+				fill(snapshot, sequence++);
+				publisher.onSample(null, snapshot, null);
+			}
+		}
+
+	}
+
+	private static class Reader extends Thread {
+
+		private final SnapshotPublisher publisher;
+		private final CpuFreqSnapshot out;
+		volatile boolean running = true;
+		long reads = 0;
+		long errors = 0;
+
+		Reader(SnapshotPublisher publisher, CpuFreqLayout layout) {
+			super("PublisherStressReader");
+			this.publisher = publisher;
+			this.out = new CpuFreqSnapshot(layout);
+		}
+
+		@Override
+		public void run() {
+			long last = -1;
+			while (running) {
+				publisher.copyLatest(out);
+				reads++;
+				long sequence = out.getSequence();
+				boolean consistent = sequence >= last;
+				long[] residency = out.getResidency();
+				for (int i = 0; i < residency.length; i++) {
+					consistent &= residency[i] == sequence;
+				}
+				for (int p = 0; p < out.getLayout().getNumPolicies(); p++) {
+					consistent &= out.isValid(p) == ((p & 1) == (sequence & 1));
+				}
+				if (!consistent)
+					errors++;
+				last = sequence;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.bench;
+
+import java.io.File;
+
+import com.byivan.cpufrequencies.core.BinaryTraceWriter;
+import com.byivan.cpufrequencies.core.CpuFreqSampler;
+import com.byivan.cpufrequencies.core.CpuFreqSnapshot;
+import com.byivan.cpufrequencies.core.CpuTopology;
+import com.byivan.cpufrequencies.core.CsvSessionWriter;
+import com.byivan.cpufrequencies.core.ProfileSink;
+import com.byivan.cpufrequencies.core.SnapshotDelta;
+import com.byivan.cpufrequencies.core.SnapshotRing;
+
+/*
+ * Cost of delivering one sample to each output format (csv, trace, memory), including the
+ * computation of the delta done by the pipeline. Files are written to a temporary directory.
+ */
+public class SinkBenchmark extends Benchmark {
+
+	public static final String[] FORMATS = { "csv", "trace", "memory" };
+
+	private final String format;
+	private final int numCpus;
+	private File root;
+	private ProfileSink sink;
+	private CpuFreqSnapshot previous;
+	private CpuFreqSnapshot current;
+	private SnapshotDelta delta;
+	private long sequence = 0;
+
+	public SinkBenchmark(String format, int numCpus) {
+		super("sink", "format=" + format + ",cpus=" + numCpus);
+		this.format = format;
+		this.numCpus = numCpus;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		root = FakeSysfs.createTempDir("cpufreq_bench");
+		FakeSysfs sysfs = new FakeSysfs(root, numCpus, 1, 15);
+		sysfs.create();
+		CpuTopology topology = new CpuTopology(sysfs.getPaths());
+		CpuFreqSampler sampler = new CpuFreqSampler(topology.getFreqPolicies(topology.getPresentCpus()));
+		previous = sampler.newSnapshot();
+		current = sampler.newSnapshot();
+		sampler.sample(current);
+		sampler.close();
+		delta = new SnapshotDelta(current.getLayout());
+		if ("csv".equals(format))
+			sink = new CsvSessionWriter(new File(root, "out.csv"));
+		else if ("trace".equals(format))
+			sink = new BinaryTraceWriter(new File(root, "out.trace"));
+		else
+			sink = new SnapshotRing(256);
+		current.setSequence(sequence++);
+		sink.open(current);
+	}
+
+	@Override
+	public long run(int n) throws Exception {
+		long[] residency = current.getResidency();
+		for (int i = 0; i < n; i++) {
+			previous.copyFrom(current);
+			// Some frequencies change between samples, like in a real device.
+			for (int j = i % 3; j < residency.length; j += 3) {
+				residency[j] += 1 + (j & 7);
+			}
+			current.setSequence(sequence++);
+			delta.compute(previous, current);
+			sink.onSample(previous, current, delta);
+		}
+		sink.flush();
+		return sequence;
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		sink.close(previous, current, delta);
+		FakeSysfs.delete(root);
+	}
+
+}
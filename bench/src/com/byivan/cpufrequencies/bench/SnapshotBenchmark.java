@@ -0,0 +1,73 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.bench;
+
+import com.byivan.cpufrequencies.core.CpuFreqSampler;
+import com.byivan.cpufrequencies.core.CpuFreqSnapshot;
+import com.byivan.cpufrequencies.core.CpuTopology;
+
+/*
+ * Latency of a snapshot of all the policies with CpuFreqSampler, reading a fake sysfs tree with
+ * numCpus CPUs and cpusPerPolicy CPUs per policy, with the policies read by one or more threads.
+ */
+public class SnapshotBenchmark extends Benchmark {
+
+	private final int numCpus;
+	private final int cpusPerPolicy;
+	private final int threads;
+	private FakeSysfs sysfs;
+	private CpuFreqSampler sampler;
+	private CpuFreqSnapshot snapshot;
+
+	public SnapshotBenchmark(int numCpus, int cpusPerPolicy) {
+		this(numCpus, cpusPerPolicy, 1);
+	}
+
+	public SnapshotBenchmark(int numCpus, int cpusPerPolicy, int threads) {
+		super("snapshot", "cpus=" + numCpus + ",cpusPerPolicy=" + cpusPerPolicy + (threads > 1 ? ",threads=" + threads : ""));
+		this.numCpus = numCpus;
+		this.cpusPerPolicy = cpusPerPolicy;
+		this.threads = threads;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		sysfs = new FakeSysfs(FakeSysfs.createTempDir("cpufreq_bench"), numCpus, cpusPerPolicy, 15);
+		sysfs.create();
+		CpuTopology topology = new CpuTopology(sysfs.getPaths());
+		sampler = new CpuFreqSampler(topology.getFreqPolicies(topology.getPresentCpus()), threads);
+		snapshot = sampler.newSnapshot();
+	}
+
+	@Override
+	public long run(int n) {
+		long result = 0;
+		for (int i = 0; i < n; i++) {
+			if (sampler.sample(snapshot))
+				result += snapshot.getResidency()[0];
+		}
+		return result;
+	}
+
+	@Override
+	public void tearDown() {
+		sampler.close();
+		sysfs.delete();
+	}
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.HashMap;
+
+import com.byivan.cpufrequencies.core.SysfsFileReader;
+
+/*
+ * Compares the latency of one snapshot of time_in_state for all CPUs using the old approach
+ * (one "cat" process per CPU) against the cached SysfsFileReader. It runs on a plain JVM against
+ * fake time_in_state files created in a temporary directory, for 1 to 64 CPUs.
+ *
+ * Usage: java -cp <classes> com.byivan.cpufrequencies.bench.TimeInStateBenchmark [iterations]
+ */
+public class TimeInStateBenchmark {
+
+	private static final int[] CPU_COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+	private static final int NUM_FREQUENCIES = 15;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		File root = createTempDir();
+		try {
+			System.out.println("cpus" + "\t" + "exec_us" + "\t" + "reader_us" + "\t" + "speedup");
+			for (int c = 0; c < CPU_COUNTS.length; c++) {
+				int numCpus = CPU_COUNTS[c];
+				File[] files = createFakeCpus(root, numCpus);
+				SysfsFileReader[] readers = new SysfsFileReader[numCpus];
+				for (int i = 0; i < numCpus; i++) {
+					readers[i] = new SysfsFileReader(files[i]);
+				}
+				// Warm up both paths before measuring.
+				for (int i = 0; i < 5; i++) {
+					snapshotExec(files);
+					snapshotReader(readers);
+				}
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					snapshotExec(files);
+				}
+				double execUs = (System.nanoTime() - start) / 1000.0 / iterations;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					snapshotReader(readers);
+				}
+				double readerUs = (System.nanoTime() - start) / 1000.0 / iterations;
+				for (int i = 0; i < numCpus; i++) {
+					readers[i].close();
+				}
+				System.out.println(numCpus + "\t" + format(execUs) + "\t" + format(readerUs) + "\t"
+						+ format(execUs / readerUs) + "x");
+			}
+		} finally {
+			delete(root);
+		}
+	}
+
+	// Old path: one process per CPU, as CpuProfilerService.parseTimeInState() used to do.
+	private static int snapshotExec(File[] files) throws IOException, InterruptedException {
+		int entries = 0;
+		for (int i = 0; i < files.length; i++) {
+			Process process = Runtime.getRuntime().exec("cat " + files[i].getPath());
+			BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			entries += parse(in).size();
+			in.close();
+			process.waitFor();
+		}
+		return entries;
+	}
+
+	// New path: files kept open and read with a positional read.
+	private static int snapshotReader(SysfsFileReader[] readers) throws IOException {
+		int entries = 0;
+		for (int i = 0; i < readers.length; i++) {
+			int length = readers[i].read();
+			BufferedReader in = new BufferedReader(new StringReader(new String(readers[i].getBuffer(), 0, length)));
+			entries += parse(in).size();
+		}
+		return entries;
+	}
+
+	private static HashMap<String, Long> parse(BufferedReader in) throws IOException {
+		HashMap<String, Long> timeInState = new HashMap<String, Long>();
+		String line;
+		while ((line = in.readLine()) != null) {
+			String[] lines = line.split(" ");
+			if (lines.length == 2)
+				timeInState.put(lines[0], Long.valueOf(lines[1]));
+		}
+		return timeInState;
+	}
+
+	private static File[] createFakeCpus(File root, int numCpus) throws IOException {
+		File[] files = new File[numCpus];
+		for (int i = 0; i < numCpus; i++) {
+			File dir = new File(root, numCpus + "/cpu" + i + "/cpufreq/stats");
+			dir.mkdirs();
+			files[i] = new File(dir, "time_in_state");
+			FileWriter fw = new FileWriter(files[i]);
+			for (int f = 0; f < NUM_FREQUENCIES; f++) {
+				fw.write((300000 + f * 100000) + " " + (f * 7919L + i * 104729L) + "\n");
+			}
+			fw.close();
+		}
+		return files;
+	}
+
+	private static File createTempDir() throws IOException {
+		File dir = File.createTempFile("cpufreq_bench", "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (int i = 0; i < children.length; i++) {
+				delete(children[i]);
+			}
+		}
+		file.delete();
+	}
+
+	private static String format(double value) {
+		return String.format("%.1f", value);
+	}
+
+}
@@ -0,0 +1,476 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/*
+ * Reads a trace written by BinaryTraceWriter. The header gives the layout of the snapshots and the
+ * block index in the footer allows jumping to any sample without decoding the whole file: only the
+ * block that contains it is decoded. If the file has no footer (the session didn't finish cleanly)
+ * the index is rebuilt scanning the file once, and a truncated last record is ignored.
+ *
+ * Traces of version 1 are also read, their samples have no times and no busy time of the CPUs.
+ * In version 2 the index also has the time since boot of the first sample of each block, so a sample
+ * can be found by time with findSequence() decoding only one block. Version 3 keeps the times of
+ * the online CPUs when some are offline, version 2 has no times in those records.
+ */
+public class BinaryTraceReader {
+
+	private final RandomAccessFile file;
+	private final Input in;
+	private int version;
+	private int recordsPerBlock;
+	private CpuFreqLayout layout;
+	private long[] blockOffsets;
+	private long[] blockFirstSequences;
+	private long[] blockFirstBootTimes;
+	private int[] blockSizes;
+	private int numBlocks;
+	// Offset of the first record.
+	private long headerEnd;
+	// CPUs with times in the record being read, for the records where some are offline.
+	private boolean[] cpuPresent = new boolean[0];
+
+	public BinaryTraceReader(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		in = new Input(this.file);
+		try {
+			readHeader();
+			if (!readIndex())
+				rebuildIndex();
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public CpuFreqLayout getLayout() {
+		return layout;
+	}
+
+	public int getNumBlocks() {
+		return numBlocks;
+	}
+
+	public long getNumSamples() {
+		long samples = 0;
+		for (int i = 0; i < numBlocks; i++) {
+			samples += blockSizes[i];
+		}
+		return samples;
+	}
+
+	// Sequence of the first sample, or -1 if the trace is empty.
+	public long getFirstSequence() {
+		return numBlocks > 0 ? blockFirstSequences[0] : -1;
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/*
+	 * Returns the sequence of the last sample taken at or before bootTimeNs, the time since boot (see
+	 * BootClock), or -1 if there is no such sample or the trace has no times.
+	 */
+	public long findSequence(long bootTimeNs) throws IOException {
+		int low = 0;
+		int high = numBlocks - 1;
+		int block = -1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (blockFirstBootTimes[middle] <= bootTimeNs) {
+				block = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		if (block < 0 || blockFirstBootTimes[block] == 0)
+			return -1;
+		CpuFreqSnapshot snapshot = new CpuFreqSnapshot(layout);
+		in.seek(blockOffsets[block]);
+		readRecord(snapshot, true);
+		long sequence = snapshot.getSequence();
+		for (int i = 1; i < blockSizes[block]; i++) {
+			readRecord(snapshot, false);
+			if (snapshot.getBootTimeNs() > bootTimeNs)
+				break;
+			sequence = snapshot.getSequence();
+		}
+		return sequence;
+	}
+
+	/*
+	 * Reads the last sample with a sequence lower or equal than sequence into snapshot, which must
+	 * have the layout of this trace. Returns false if there is no such sample.
+	 */
+	public boolean read(long sequence, CpuFreqSnapshot snapshot) throws IOException {
+		int block = findBlock(sequence);
+		if (block < 0)
+			return false;
+		in.seek(blockOffsets[block]);
+		readRecord(snapshot, true);
+		for (int i = 1; i < blockSizes[block]; i++) {
+			long position = in.position();
+			long next = snapshot.getSequence() + peekSequenceDelta();
+			if (next > sequence)
+				break;
+			in.seek(position);
+			readRecord(snapshot, false);
+		}
+		return true;
+	}
+
+	/*
+	 * Delivers the samples with sequence between fromSequence and toSequence (both included) to
+	 * sink: open() with the first one, onSample() with the rest and close(). Only the blocks that
+	 * contain those samples are decoded. Returns the number of samples delivered.
+	 */
+	public long read(long fromSequence, long toSequence, ProfileSink sink) throws IOException {
+		CpuFreqSnapshot current = new CpuFreqSnapshot(layout);
+		CpuFreqSnapshot previous = new CpuFreqSnapshot(layout);
+		SnapshotDelta delta = new SnapshotDelta(layout);
+		CpuFreqSnapshot initial = null;
+		long delivered = 0;
+		int block = Math.max(0, findBlock(fromSequence));
+		for (; block < numBlocks && blockFirstSequences[block] <= toSequence; block++) {
+			in.seek(blockOffsets[block]);
+			for (int i = 0; i < blockSizes[block]; i++) {
+				readRecord(current, i == 0);
+				if (current.getSequence() < fromSequence)
+					continue;
+				if (current.getSequence() > toSequence)
+					break;
+				if (initial == null) {
+					initial = new CpuFreqSnapshot(layout);
+					initial.copyFrom(current);
+					sink.open(initial);
+				} else {
+					delta.compute(previous, current);
+					sink.onSample(previous, current, delta);
+				}
+				previous.copyFrom(current);
+				delivered++;
+			}
+		}
+		if (initial != null) {
+			delta.compute(initial, previous);
+			sink.close(initial, previous, delta);
+		}
+		return delivered;
+	}
+
+	// Index of the last block whose first sequence is lower or equal than sequence, or -1.
+	private int findBlock(long sequence) {
+		int low = 0;
+		int high = numBlocks - 1;
+		int result = -1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (blockFirstSequences[middle] <= sequence) {
+				result = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return result;
+	}
+
+	private void readHeader() throws IOException {
+		in.seek(0);
+		for (int i = 0; i < BinaryTraceWriter.MAGIC.length; i++) {
+			if (in.readByte() != BinaryTraceWriter.MAGIC[i])
+				throw new IOException("Not a cpu frequencies trace");
+		}
+		version = (int) in.readVarint();
+		if (version < 1 || version > BinaryTraceWriter.VERSION)
+			throw new IOException("Unsupported trace version " + version);
+		recordsPerBlock = (int) in.readVarint();
+		int numPolicies = (int) in.readVarint();
+		CpuFreqPolicy[] policies = new CpuFreqPolicy[numPolicies];
+		FrequencyTable[] tables = new FrequencyTable[numPolicies];
+		for (int p = 0; p < numPolicies; p++) {
+			int id = (int) in.readVarint();
+			int[] cpus = new int[(int) in.readVarint()];
+			for (int i = 0; i < cpus.length; i++) {
+				cpus[i] = (int) in.readVarint();
+			}
+			long[] frequencies = new long[(int) in.readVarint()];
+			for (int slot = 0; slot < frequencies.length; slot++) {
+				frequencies[slot] = in.readVarint();
+			}
+			policies[p] = new CpuFreqPolicy(id, cpus, null);
+			tables[p] = new FrequencyTable(frequencies, frequencies.length);
+		}
+		layout = new CpuFreqLayout(policies, tables);
+		headerEnd = in.position();
+	}
+
+	// Reads the block index from the footer. Returns false if the file has no footer.
+	private boolean readIndex() throws IOException {
+		long length = file.length();
+		if (length < headerEnd + BinaryTraceWriter.TRAILER_SIZE)
+			return false;
+		in.seek(length - BinaryTraceWriter.TRAILER_SIZE);
+		int blocks = in.readInt();
+		long indexOffset = in.readLong();
+		for (int i = 0; i < BinaryTraceWriter.INDEX_MAGIC.length; i++) {
+			if (in.readByte() != BinaryTraceWriter.INDEX_MAGIC[i])
+				return false;
+		}
+		allocateIndex(blocks);
+		in.seek(indexOffset);
+		for (int i = 0; i < blocks; i++) {
+			blockOffsets[i] = in.readLong();
+			blockFirstSequences[i] = in.readLong();
+			blockSizes[i] = in.readInt();
+			blockFirstBootTimes[i] = version >= 2 ? in.readLong() : 0;
+		}
+		numBlocks = blocks;
+		return true;
+	}
+
+	// Scans all the records to find the blocks, used when the footer is missing.
+	private void rebuildIndex() throws IOException {
+		allocateIndex(64);
+		CpuFreqSnapshot snapshot = new CpuFreqSnapshot(layout);
+		long position = headerEnd;
+		in.seek(position);
+		long records = 0;
+		try {
+			while (true) {
+				boolean key = records % recordsPerBlock == 0;
+				readRecord(snapshot, key);
+				if (key) {
+					if (numBlocks == blockOffsets.length) {
+						long[] offsets = blockOffsets;
+						long[] sequences = blockFirstSequences;
+						int[] sizes = blockSizes;
+						long[] bootTimes = blockFirstBootTimes;
+						allocateIndex(numBlocks * 2);
+						System.arraycopy(offsets, 0, blockOffsets, 0, numBlocks);
+						System.arraycopy(sequences, 0, blockFirstSequences, 0, numBlocks);
+						System.arraycopy(sizes, 0, blockSizes, 0, numBlocks);
+						System.arraycopy(bootTimes, 0, blockFirstBootTimes, 0, numBlocks);
+					}
+					blockOffsets[numBlocks] = position;
+					blockFirstSequences[numBlocks] = snapshot.getSequence();
+					blockFirstBootTimes[numBlocks] = snapshot.getBootTimeNs();
+					blockSizes[numBlocks] = 0;
+					numBlocks++;
+				}
+				blockSizes[numBlocks - 1]++;
+				records++;
+				position = in.position();
+			}
+		} catch (EOFException e) {
+			// End of the complete records.
+		}
+	}
+
+	private void allocateIndex(int size) {
+		blockOffsets = new long[size];
+		blockFirstSequences = new long[size];
+		blockSizes = new int[size];
+		blockFirstBootTimes = new long[size];
+	}
+
+	// Reads the sequence delta of the next record without decoding the rest.
+	private long peekSequenceDelta() throws IOException {
+		return in.readVarint();
+	}
+
+	/*
+	 * Decodes the record at the current position into snapshot. For delta records snapshot must
+	 * hold the previous record.
+	 */
+	private void readRecord(CpuFreqSnapshot snapshot, boolean key) throws IOException {
+		CpuFreqLayout layout = snapshot.getLayout();
+		long sequence = in.readVarint();
+		snapshot.setSequence(key ? sequence : snapshot.getSequence() + sequence);
+		if (version >= 2) {
+			long startNs = Varint.decodeSigned(in.readVarint());
+			if (!key)
+				startNs += snapshot.getStartNs();
+			long durationNs = in.readVarint();
+			snapshot.setTimes(startNs, startNs + durationNs, in.readVarint());
+			long bootTimeNs = in.readVarint();
+			snapshot.setBootTimeNs(key ? bootTimeNs : snapshot.getBootTimeNs() + Varint.decodeSigned(bootTimeNs));
+		}
+		int numPolicies = layout.getNumPolicies();
+		int bits = 0;
+		long[] residency = snapshot.getResidency();
+		for (int p = 0; p < numPolicies; p++) {
+			if (p % 8 == 0)
+				bits = in.readByte() & 0xFF;
+			boolean valid = (bits & (1 << (p % 8))) != 0;
+			boolean absolute = key || !snapshot.isValid(p);
+			snapshot.setValid(p, valid);
+			if (!valid)
+				continue;
+			int start = layout.getOffset(p);
+			int end = start + layout.getFrequencyTable(p).size();
+			for (int i = start; i < end; i++) {
+				if (absolute)
+					residency[i] = in.readVarint();
+				else
+					residency[i] += Varint.decodeSigned(in.readVarint());
+			}
+		}
+		if (version >= 2)
+			readCpuTimes(snapshot, key);
+	}
+
+	private void readCpuTimes(CpuFreqSnapshot snapshot, boolean key) throws IOException {
+		long[] busy = snapshot.getCpuBusy();
+		long[] idle = snapshot.getCpuIdle();
+		int present = in.readByte();
+		if (present == 2 && version >= 3) {
+			readSomeCpuTimes(snapshot, key);
+			return;
+		}
+		if (present != 0 && present != 1)
+			throw new IOException("Unknown CPU times flag " + present + " in a trace of version " + version);
+		if (present == 0) {
+			for (int i = 0; i < busy.length; i++) {
+				busy[i] = -1;
+				idle[i] = -1;
+			}
+			return;
+		}
+		boolean absolute = key || busy[0] < 0;
+		for (int i = 0; i < busy.length; i++) {
+			if (absolute) {
+				busy[i] = in.readVarint();
+				idle[i] = in.readVarint();
+			} else {
+				busy[i] += Varint.decodeSigned(in.readVarint());
+				idle[i] += Varint.decodeSigned(in.readVarint());
+			}
+		}
+	}
+
+	// Times of a record where only the CPUs set in the bitmap have them.
+	private void readSomeCpuTimes(CpuFreqSnapshot snapshot, boolean key) throws IOException {
+		long[] busy = snapshot.getCpuBusy();
+		long[] idle = snapshot.getCpuIdle();
+		if (cpuPresent.length < busy.length)
+			cpuPresent = new boolean[busy.length];
+		int bits = 0;
+		for (int i = 0; i < busy.length; i++) {
+			if (i % 8 == 0)
+				bits = in.readByte() & 0xFF;
+			cpuPresent[i] = (bits & (1 << (i % 8))) != 0;
+		}
+		for (int i = 0; i < busy.length; i++) {
+			if (!cpuPresent[i]) {
+				busy[i] = -1;
+				idle[i] = -1;
+			} else if (key || busy[i] < 0) {
+				busy[i] = in.readVarint();
+				idle[i] = in.readVarint();
+			} else {
+				busy[i] += Varint.decodeSigned(in.readVarint());
+				idle[i] += Varint.decodeSigned(in.readVarint());
+			}
+		}
+	}
+
+	/*
+	 * Buffered reading of the file with random access.
+	 */
+	private static final class Input {
+
+		private final RandomAccessFile file;
+		private final byte[] buffer = new byte[64 * 1024];
+		// File offset of buffer[0], number of valid bytes and current index in buffer.
+		private long bufferOffset = 0;
+		private int bufferLength = 0;
+		private int index = 0;
+
+		Input(RandomAccessFile file) {
+			this.file = file;
+		}
+
+		long position() {
+			return bufferOffset + index;
+		}
+
+		void seek(long position) {
+			if (position >= bufferOffset && position <= bufferOffset + bufferLength) {
+				index = (int) (position - bufferOffset);
+			} else {
+				bufferOffset = position;
+				bufferLength = 0;
+				index = 0;
+			}
+		}
+
+		byte readByte() throws IOException {
+			if (index == bufferLength) {
+				bufferOffset += bufferLength;
+				index = 0;
+				file.seek(bufferOffset);
+				int read = file.read(buffer, 0, buffer.length);
+				bufferLength = read < 0 ? 0 : read;
+				if (bufferLength == 0)
+					throw new EOFException();
+			}
+			return buffer[index++];
+		}
+
+		long readVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		int readInt() throws IOException {
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				value = (value << 8) | (readByte() & 0xFF);
+			}
+			return value;
+		}
+
+		long readLong() throws IOException {
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (readByte() & 0xFF);
+			}
+			return value;
+		}
+
+	}
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Writes a profiling session in a compact binary format, much smaller and faster to parse than the
+ * CSV file for long captures. See BinaryTraceReader to read it back.
+ *
+ * Format (version 3), varint means Varint encoding:
+ *
+ * Header: magic "CPUFTRC\0", version (varint), records per block (varint), number of policies
+ * (varint) and for each policy its id, number of CPUs, CPU ids, number of frequencies and the
+ * frequencies in ascending order (all varints).
+ *
+ * Blocks of records. A record is a sample: the sequence of the sample, a bitmap with one bit per
+ * policy set if the policy is valid, and the residency of each frequency of the valid policies in
+ * the order of CpuFreqLayout. The first record of a block is a key record with absolute values
+ * (unsigned varints), the others store the difference with the previous record (signed varints),
+ * which is usually 0 or a few units. A block can be decoded without reading the previous ones.
+ *
+ * Since version 2 the sequence is followed by the times of the reading: start (signed varint, the
+ * difference with the previous record in delta records), duration and skew (unsigned varints) and
+ * time since boot (like the sequence, absolute in key records). After the residency comes a byte set
+ * to 1 if the record has the busy and idle time of each CPU, followed by them in the order of the
+ * CPUs of the layout, absolute in key records or when the first CPU had none in the previous record,
+ * or 0 if it has none. Version 2 only has those two values, so a record where the first CPU was
+ * offline had no times at all.
+ *
+ * Since version 3 the byte is 2 if only some CPUs have them (the others are offline): it's followed by
+ * a bitmap with one bit per CPU set if it has them, and then the times of those CPUs, each one
+ * absolute in key records or when that CPU had none in the previous record.
+ *
+ * Footer: block index with, for each block, its offset in the file, the sequence of its first
+ * sample, its number of records and (since version 2) the time since boot of its first sample (8, 8, 4 and
+ * 8 bytes, big endian), followed by the number of blocks (4 bytes), the offset of the index (8 bytes)
+ * and the magic "CPUFIDX\0". If the session doesn't finish cleanly the footer is missing, the reader
+ * rebuilds the index scanning the blocks.
+ */
+public class BinaryTraceWriter implements ProfileSink {
+
+	public static final byte[] MAGIC = { 'C', 'P', 'U', 'F', 'T', 'R', 'C', 0 };
+	public static final byte[] INDEX_MAGIC = { 'C', 'P', 'U', 'F', 'I', 'D', 'X', 0 };
+	public static final int VERSION = 3;
+	public static final int DEFAULT_RECORDS_PER_BLOCK = 256;
+	// Size of a block index entry and of the trailer at the end of the file.
+	static final int INDEX_ENTRY_SIZE = 28;
+	static final int TRAILER_SIZE = 20;
+
+	private final File file;
+	private final int recordsPerBlock;
+	private OutputStream out = null;
+	// Bytes written so far, the offset of the next byte.
+	private long offset = 0;
+	// Reusable buffer where each record is encoded.
+	private byte[] record = null;
+	// Records in the current block.
+	private int blockRecords = 0;
+	// Block index, grows when needed.
+	private long[] blockOffsets = new long[64];
+	private long[] blockFirstSequences = new long[64];
+	private long[] blockFirstBootTimes = new long[64];
+	private int[] blockSizes = new int[64];
+	private int numBlocks = 0;
+
+	public BinaryTraceWriter(File file) {
+		this(file, DEFAULT_RECORDS_PER_BLOCK);
+	}
+
+	public BinaryTraceWriter(File file, int recordsPerBlock) {
+		if (recordsPerBlock < 1)
+			throw new IllegalArgumentException("Records per block must be positive, recordsPerBlock=" + recordsPerBlock);
+		this.file = file;
+		this.recordsPerBlock = recordsPerBlock;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void open(CpuFreqSnapshot initial) throws IOException {
+		CpuFreqLayout layout = initial.getLayout();
+		file.getParentFile().mkdirs();
+		out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+		// Every value may take MAX_LENGTH bytes: sequence, times, residency and busy and idle of each CPU,
+		// plus the bitmaps and the CPU times flag.
+		record = new byte[(layout.size() + 5 + 2 * layout.getNumCpus()) * Varint.MAX_LENGTH
+				+ (layout.getNumPolicies() + 7) / 8 + (layout.getNumCpus() + 7) / 8 + 1];
+		writeHeader(layout);
+		writeRecord(null, initial, null);
+	}
+
+	@Override
+	public void onSample(CpuFreqSnapshot previous, CpuFreqSnapshot current, SnapshotDelta delta) throws IOException {
+		writeRecord(previous, current, delta);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close(CpuFreqSnapshot initial, CpuFreqSnapshot last, SnapshotDelta total) throws IOException {
+		try {
+			closeBlock();
+			long indexOffset = offset;
+			byte[] entry = new byte[INDEX_ENTRY_SIZE];
+			for (int i = 0; i < numBlocks; i++) {
+				putLong(entry, 0, blockOffsets[i]);
+				putLong(entry, 8, blockFirstSequences[i]);
+				putInt(entry, 16, blockSizes[i]);
+				putLong(entry, 20, blockFirstBootTimes[i]);
+				write(entry, INDEX_ENTRY_SIZE);
+			}
+			byte[] trailer = new byte[TRAILER_SIZE];
+			putInt(trailer, 0, numBlocks);
+			putLong(trailer, 4, indexOffset);
+			System.arraycopy(INDEX_MAGIC, 0, trailer, 12, INDEX_MAGIC.length);
+			write(trailer, TRAILER_SIZE);
+		} finally {
+			out.close();
+		}
+		Log.i(getClass().getName(), "Trace saved in " + file + ", " + offset + " bytes");
+	}
+
+	private void writeHeader(CpuFreqLayout layout) throws IOException {
+		int size = MAGIC.length + 4 * Varint.MAX_LENGTH;
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			size += (3 + layout.getPolicy(p).getNumCpus() + layout.getFrequencyTable(p).size()) * Varint.MAX_LENGTH;
+		}
+		byte[] header = new byte[size];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		int position = MAGIC.length;
+		position = Varint.writeUnsigned(header, position, VERSION);
+		position = Varint.writeUnsigned(header, position, recordsPerBlock);
+		position = Varint.writeUnsigned(header, position, layout.getNumPolicies());
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			CpuFreqPolicy policy = layout.getPolicy(p);
+			position = Varint.writeUnsigned(header, position, policy.getId());
+			position = Varint.writeUnsigned(header, position, policy.getNumCpus());
+			for (int i = 0; i < policy.getNumCpus(); i++) {
+				position = Varint.writeUnsigned(header, position, policy.getCpu(i));
+			}
+			FrequencyTable frequencies = layout.getFrequencyTable(p);
+			position = Varint.writeUnsigned(header, position, frequencies.size());
+			for (int slot = 0; slot < frequencies.size(); slot++) {
+				position = Varint.writeUnsigned(header, position, frequencies.getFrequency(slot));
+			}
+		}
+		write(header, position);
+	}
+
+	/*
+	 * Writes snapshot as the next record. previous is the record written before and delta the
+	 * difference between them, both null for the first one.
+	 */
+	private void writeRecord(CpuFreqSnapshot previous, CpuFreqSnapshot snapshot, SnapshotDelta delta)
+			throws IOException {
+		CpuFreqLayout layout = snapshot.getLayout();
+		boolean key = blockRecords == 0 || previous == null;
+		if (key) {
+			if (numBlocks == blockOffsets.length)
+				growIndex();
+			blockOffsets[numBlocks] = offset;
+			blockFirstSequences[numBlocks] = snapshot.getSequence();
+			blockFirstBootTimes[numBlocks] = snapshot.getBootTimeNs();
+		}
+		int position = 0;
+		if (key) {
+			position = Varint.writeUnsigned(record, position, snapshot.getSequence());
+			position = Varint.writeSigned(record, position, snapshot.getStartNs());
+		} else {
+			position = Varint.writeUnsigned(record, position, snapshot.getSequence() - previous.getSequence());
+			position = Varint.writeSigned(record, position, snapshot.getStartNs() - previous.getStartNs());
+		}
+		position = Varint.writeUnsigned(record, position, snapshot.getEndNs() - snapshot.getStartNs());
+		position = Varint.writeUnsigned(record, position, snapshot.getSkewNs());
+		if (key)
+			position = Varint.writeUnsigned(record, position, snapshot.getBootTimeNs());
+		else
+			position = Varint.writeSigned(record, position, snapshot.getBootTimeNs() - previous.getBootTimeNs());
+		// Bitmap of valid policies
+		int numPolicies = layout.getNumPolicies();
+		for (int b = 0; b < (numPolicies + 7) / 8; b++) {
+			int bits = 0;
+			for (int i = 0; i < 8 && b * 8 + i < numPolicies; i++) {
+				if (snapshot.isValid(b * 8 + i))
+					bits |= 1 << i;
+			}
+			record[position++] = (byte) bits;
+		}
+		long[] residency = snapshot.getResidency();
+		for (int p = 0; p < numPolicies; p++) {
+			if (!snapshot.isValid(p))
+				continue;
+			int start = layout.getOffset(p);
+			int end = start + layout.getFrequencyTable(p).size();
+			// A policy that was not valid in the previous record has no previous values.
+			if (key || !delta.isValid(p)) {
+				for (int i = start; i < end; i++) {
+					position = Varint.writeUnsigned(record, position, residency[i]);
+				}
+			} else {
+				long[] values = delta.getValues();
+				for (int i = start; i < end; i++) {
+					position = Varint.writeSigned(record, position, values[i]);
+				}
+			}
+		}
+		position = writeCpuTimes(previous, snapshot, key, position);
+		write(record, position);
+		blockRecords++;
+		if (blockRecords == recordsPerBlock)
+			closeBlock();
+	}
+
+	private int writeCpuTimes(CpuFreqSnapshot previous, CpuFreqSnapshot snapshot, boolean key, int position) {
+		long[] busy = snapshot.getCpuBusy();
+		long[] idle = snapshot.getCpuIdle();
+		int present = 0;
+		for (int i = 0; i < busy.length; i++) {
+			if (busy[i] >= 0)
+				present++;
+		}
+		if (present == 0) {
+			record[position++] = 0;
+			return position;
+		}
+		if (present < busy.length)
+			return writeSomeCpuTimes(previous, snapshot, key, position);
+		record[position++] = 1;
+		if (key || previous.getCpuBusy()[0] < 0) {
+			for (int i = 0; i < busy.length; i++) {
+				position = Varint.writeUnsigned(record, position, busy[i]);
+				position = Varint.writeUnsigned(record, position, idle[i]);
+			}
+		} else {
+			long[] previousBusy = previous.getCpuBusy();
+			long[] previousIdle = previous.getCpuIdle();
+			for (int i = 0; i < busy.length; i++) {
+				position = Varint.writeSigned(record, position, busy[i] - previousBusy[i]);
+				position = Varint.writeSigned(record, position, idle[i] - previousIdle[i]);
+			}
+		}
+		return position;
+	}
+
+	// Times of the records where some CPUs are offline, with the bitmap of the ones that have them.
+	private int writeSomeCpuTimes(CpuFreqSnapshot previous, CpuFreqSnapshot snapshot, boolean key, int position) {
+		long[] busy = snapshot.getCpuBusy();
+		long[] idle = snapshot.getCpuIdle();
+		record[position++] = 2;
+		for (int b = 0; b < (busy.length + 7) / 8; b++) {
+			int bits = 0;
+			for (int i = 0; i < 8 && b * 8 + i < busy.length; i++) {
+				if (busy[b * 8 + i] >= 0)
+					bits |= 1 << i;
+			}
+			record[position++] = (byte) bits;
+		}
+		for (int i = 0; i < busy.length; i++) {
+			if (busy[i] < 0)
+				continue;
+			if (key || previous.getCpuBusy()[i] < 0) {
+				position = Varint.writeUnsigned(record, position, busy[i]);
+				position = Varint.writeUnsigned(record, position, idle[i]);
+			} else {
+				position = Varint.writeSigned(record, position, busy[i] - previous.getCpuBusy()[i]);
+				position = Varint.writeSigned(record, position, idle[i] - previous.getCpuIdle()[i]);
+			}
+		}
+		return position;
+	}
+
+	private void closeBlock() {
+		if (blockRecords == 0)
+			return;
+		blockSizes[numBlocks] = blockRecords;
+		numBlocks++;
+		blockRecords = 0;
+	}
+
+	private void growIndex() {
+		long[] offsets = new long[blockOffsets.length * 2];
+		long[] sequences = new long[offsets.length];
+		int[] sizes = new int[offsets.length];
+		long[] bootTimes = new long[offsets.length];
+		System.arraycopy(blockOffsets, 0, offsets, 0, numBlocks);
+		System.arraycopy(blockFirstSequences, 0, sequences, 0, numBlocks);
+		System.arraycopy(blockSizes, 0, sizes, 0, numBlocks);
+		System.arraycopy(blockFirstBootTimes, 0, bootTimes, 0, numBlocks);
+		blockOffsets = offsets;
+		blockFirstSequences = sequences;
+		blockSizes = sizes;
+		blockFirstBootTimes = bootTimes;
+	}
+
+	private void write(byte[] buffer, int length) throws IOException {
+		out.write(buffer, 0, length);
+		offset += length;
+	}
+
+	static void putLong(byte[] buffer, int position, long value) {
+		for (int i = 7; i >= 0; i--) {
+			buffer[position + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	static void putInt(byte[] buffer, int position, int value) {
+		for (int i = 3; i >= 0; i--) {
+			buffer[position + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+}
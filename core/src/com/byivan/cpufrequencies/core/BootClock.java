@@ -0,0 +1,156 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * Converts System.nanoTime() into the time since boot including the time the device was suspended
+ * (CLOCK_BOOTTIME), the clock of ftrace, perfetto and Android's SystemClock.elapsedRealtime(), so
+ * samples can be aligned with other traces. System.nanoTime() is monotonic but doesn't count the
+ * time suspended and its origin is not specified, so the offset between both clocks is measured
+ * from /proc/uptime.
+ *
+ * /proc/uptime only has a resolution of 10ms, so calibrate() reads it until the value changes and
+ * takes the offset at that tick, which is accurate to a few microseconds. Converting a time doesn't
+ * read any file or allocate memory; check() reads /proc/uptime once to detect a suspend, which
+ * moves the offset, and calibrates again if needed. calibrate() and check() must be called from a
+ * single thread, toBootTimeNs() from any.
+ */
+public class BootClock {
+
+	// How long calibrate() waits for /proc/uptime to change.
+	private static final long CALIBRATION_TIMEOUT_NS = 50000000L;
+	private static final long UPTIME_RESOLUTION_NS = 10000000L;
+	// Difference with /proc/uptime over which the offset is measured again.
+	private static final long MAX_DRIFT_NS = 2 * UPTIME_RESOLUTION_NS;
+
+	private final SysfsFileReader uptime;
+	private volatile long offsetNs = 0;
+	private volatile boolean calibrated = false;
+	// Set if /proc/uptime didn't change while calibrating, it's not checked again.
+	private boolean frozen = false;
+
+	public BootClock(SystemPaths paths) {
+		this(paths.getUptimeFile());
+	}
+
+	public BootClock(File uptimeFile) {
+		uptime = new SysfsFileReader(uptimeFile, 128);
+	}
+
+	// True once the offset has been measured, until then times are System.nanoTime() unchanged.
+	public boolean isCalibrated() {
+		return calibrated;
+	}
+
+	// Time since boot minus System.nanoTime().
+	public long getOffsetNs() {
+		return offsetNs;
+	}
+
+	public long toBootTimeNs(long monotonicNs) {
+		return monotonicNs + offsetNs;
+	}
+
+	/*
+	 * Measures the offset between both clocks, waiting up to 50ms for a tick of /proc/uptime. Returns
+	 * false if it can't be read in that time.
+	 */
+	public boolean calibrate() {
+		long before = System.nanoTime();
+		long deadline = before + CALIBRATION_TIMEOUT_NS;
+		long first = -1;
+		while (true) {
+			long now = readUptimeNs();
+			long after = System.nanoTime();
+			if (now < 0 || first < 0) {
+				// Not read yet, or a failed reading, try again until the deadline.
+				if (after > deadline)
+					return false;
+				if (now >= 0)
+					first = now;
+				before = after;
+				continue;
+			}
+			if (now != first) {
+				// The tick happened between the two readings.
+				offsetNs = now - (before + (after - before) / 2);
+				break;
+			}
+			if (after > deadline) {
+				// Frozen file (e.g. a copied tree), take the middle of its resolution.
+				offsetNs = now + UPTIME_RESOLUTION_NS / 2 - after;
+				frozen = true;
+				break;
+			}
+			before = after;
+		}
+		calibrated = true;
+		return true;
+	}
+
+	/*
+	 * Compares the clock with /proc/uptime and calibrates again if they differ more than its
+	 * resolution, as happens after the device is suspended. Returns true if it calibrated.
+	 */
+	public boolean check() {
+		if (frozen)
+			return false;
+		long uptimeNs = readUptimeNs();
+		if (uptimeNs < 0)
+			return false;
+		long drift = uptimeNs - toBootTimeNs(System.nanoTime());
+		if (calibrated && Math.abs(drift) < MAX_DRIFT_NS)
+			return false;
+		return calibrate();
+	}
+
+	public void close() {
+		uptime.close();
+	}
+
+	// First value of /proc/uptime, "<seconds>.<hundredths> <idle>", in nanoseconds or -1.
+	private long readUptimeNs() {
+		try {
+			int length = uptime.read();
+			byte[] buffer = uptime.getBuffer();
+			long hundredths = 0;
+			int decimals = -1;
+			for (int i = 0; i < length; i++) {
+				byte b = buffer[i];
+				if (b == '.' && decimals < 0) {
+					decimals = 0;
+				} else if (b >= '0' && b <= '9') {
+					hundredths = hundredths * 10 + (b - '0');
+					if (decimals >= 0)
+						decimals++;
+				} else {
+					break;
+				}
+			}
+			if (decimals != 2)
+				return -1;
+			return hundredths * 10000000L;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+}
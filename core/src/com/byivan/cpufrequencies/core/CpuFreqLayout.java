@@ -0,0 +1,201 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.util.ArrayList;
+
+/*
+ * Describes how the residencies of all the cpufreq policies are stored in the flat array of a
+ * CpuFreqSnapshot. The values of the policy with index p are stored from getOffset(p), one per
+ * frequency of getFrequencyTable(p), sorted by frequency. All the snapshots taken by the same
+ * sampler share one layout.
+ *
+ * CPUs of the same policy share their values, getPolicyIndexOfCpu() maps each CPU to its policy.
+ *
+ * The layout can also have the cpuidle states of each CPU. Their time and usage are stored in two
+ * other flat arrays of the snapshot, the states of the CPU with index i from getIdleStateOffset(i).
+ *
+ * Policies with a cpufreq stats/trans_table have a transition matrix in another flat array: the
+ * transitions of the policy with index p from the frequency in slot i to the one in slot j are stored
+ * in getTransitionOffset(p) + i * n + j, where n is the size of its frequency table.
+ */
+public final class CpuFreqLayout {
+
+	private final CpuFreqPolicy[] policies;
+	private final FrequencyTable[] tables;
+	private final int[] offsets;
+	private final int size;
+	// Ids of all the CPUs sorted, and the index of the policy of each one.
+	private final int[] cpuIds;
+	private final int[] policyOfCpu;
+	// Names of the cpuidle states of each CPU and where they start in the arrays of idle states.
+	private final String[][] idleStateNames;
+	private final int[] idleStateOffsets;
+	private final int idleStateSize;
+	// Whether each policy has a transition matrix and where it starts in the array of transitions.
+	private final boolean[] transitionTables;
+	private final int[] transitionOffsets;
+	private final int transitionSize;
+
+	/*
+	 * tables[p] is the frequency table of policies[p]. Equal tables are interned, so the layout only
+	 * keeps one instance of each.
+	 */
+	public CpuFreqLayout(CpuFreqPolicy[] policies, FrequencyTable[] tables) {
+		this(policies, tables, null);
+	}
+
+	/*
+	 * Like CpuFreqLayout(policies, tables), with the names of the cpuidle states of each CPU in the
+	 * order of getCpuId(), null if there are none.
+	 */
+	public CpuFreqLayout(CpuFreqPolicy[] policies, FrequencyTable[] tables, String[][] idleStateNames) {
+		this(policies, tables, idleStateNames, null);
+	}
+
+	/*
+	 * Like CpuFreqLayout(policies, tables, idleStateNames), with transitionTables[p] set if the
+	 * transitions between the frequencies of policies[p] are sampled, null if there are none.
+	 */
+	public CpuFreqLayout(CpuFreqPolicy[] policies, FrequencyTable[] tables, String[][] idleStateNames,
+			boolean[] transitionTables) {
+		this.policies = policies.clone();
+		this.tables = new FrequencyTable[tables.length];
+		this.offsets = new int[tables.length];
+		ArrayList<FrequencyTable> interned = new ArrayList<FrequencyTable>();
+		int offset = 0;
+		int numCpus = 0;
+		for (int p = 0; p < tables.length; p++) {
+			int index = interned.indexOf(tables[p]);
+			if (index < 0) {
+				interned.add(tables[p]);
+				this.tables[p] = tables[p];
+			} else {
+				this.tables[p] = interned.get(index);
+			}
+			offsets[p] = offset;
+			offset += tables[p].size();
+			numCpus += policies[p].getNumCpus();
+		}
+		size = offset;
+		// Index the CPUs sorted by id.
+		cpuIds = new int[numCpus];
+		policyOfCpu = new int[numCpus];
+		int next = 0;
+		for (int p = 0; p < policies.length; p++) {
+			for (int i = 0; i < policies[p].getNumCpus(); i++) {
+				int cpu = policies[p].getCpu(i);
+				int j = next++;
+				while (j > 0 && cpuIds[j - 1] > cpu) {
+					cpuIds[j] = cpuIds[j - 1];
+					policyOfCpu[j] = policyOfCpu[j - 1];
+					j--;
+				}
+				cpuIds[j] = cpu;
+				policyOfCpu[j] = p;
+			}
+		}
+		this.idleStateNames = new String[numCpus][];
+		idleStateOffsets = new int[numCpus];
+		int idleOffset = 0;
+		for (int i = 0; i < numCpus; i++) {
+			this.idleStateNames[i] = idleStateNames != null && idleStateNames[i] != null ? idleStateNames[i].clone()
+					: new String[0];
+			idleStateOffsets[i] = idleOffset;
+			idleOffset += this.idleStateNames[i].length;
+		}
+		idleStateSize = idleOffset;
+		this.transitionTables = new boolean[policies.length];
+		transitionOffsets = new int[policies.length];
+		int transitionOffset = 0;
+		for (int p = 0; p < policies.length; p++) {
+			this.transitionTables[p] = transitionTables != null && transitionTables[p];
+			transitionOffsets[p] = transitionOffset;
+			if (this.transitionTables[p])
+				transitionOffset += tables[p].size() * tables[p].size();
+		}
+		transitionSize = transitionOffset;
+	}
+
+	public int getNumPolicies() {
+		return policies.length;
+	}
+
+	public CpuFreqPolicy getPolicy(int policyIndex) {
+		return policies[policyIndex];
+	}
+
+	public FrequencyTable getFrequencyTable(int policyIndex) {
+		return tables[policyIndex];
+	}
+
+	public int getOffset(int policyIndex) {
+		return offsets[policyIndex];
+	}
+
+	// Total number of values stored in a snapshot.
+	public int size() {
+		return size;
+	}
+
+	public int getNumCpus() {
+		return cpuIds.length;
+	}
+
+	// Id of the CPU with index cpuIndex, CPUs are sorted by id.
+	public int getCpuId(int cpuIndex) {
+		return cpuIds[cpuIndex];
+	}
+
+	public int getPolicyIndexOfCpu(int cpuIndex) {
+		return policyOfCpu[cpuIndex];
+	}
+
+	// Number of cpuidle states of the CPU with index cpuIndex, 0 if they are not sampled.
+	public int getNumIdleStates(int cpuIndex) {
+		return idleStateNames[cpuIndex].length;
+	}
+
+	public String getIdleStateName(int cpuIndex, int state) {
+		return idleStateNames[cpuIndex][state];
+	}
+
+	public int getIdleStateOffset(int cpuIndex) {
+		return idleStateOffsets[cpuIndex];
+	}
+
+	// Total number of cpuidle states of all the CPUs.
+	public int getIdleStateSize() {
+		return idleStateSize;
+	}
+
+	// Whether the transitions between the frequencies of a policy are sampled.
+	public boolean hasTransitionTable(int policyIndex) {
+		return transitionTables[policyIndex];
+	}
+
+	public int getTransitionOffset(int policyIndex) {
+		return transitionOffsets[policyIndex];
+	}
+
+	// Total number of cells of the transition matrices of all the policies.
+	public int getTransitionSize() {
+		return transitionSize;
+	}
+
+}
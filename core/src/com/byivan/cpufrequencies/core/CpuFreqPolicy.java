@@ -0,0 +1,83 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+
+/*
+ * A cpufreq policy: a group of CPUs that share the same frequency (a cluster on big.LITTLE devices).
+ * All the CPUs of a policy expose the same time_in_state, so it only needs to be read once per policy.
+ */
+public final class CpuFreqPolicy {
+
+	private final int id;
+	private final int[] cpus;
+	private final File directory;
+
+	/*
+	 * id is the number of the policy (N in cpufreq/policyN, or the first CPU of the policy on older
+	 * kernels), cpus the sorted ids of its CPUs and directory the cpufreq directory that contains
+	 * stats/time_in_state.
+	 */
+	public CpuFreqPolicy(int id, int[] cpus, File directory) {
+		this.id = id;
+		this.cpus = cpus.clone();
+		this.directory = directory;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int[] getCpus() {
+		return cpus.clone();
+	}
+
+	public int getNumCpus() {
+		return cpus.length;
+	}
+
+	public int getCpu(int index) {
+		return cpus[index];
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public File getTimeInStateFile() {
+		return new File(directory, "stats/time_in_state");
+	}
+
+	// Frequency of the policy as the kernel last set it, in KHz.
+	public File getScalingCurFreqFile() {
+		return new File(directory, "scaling_cur_freq");
+	}
+
+	// CPUs of the policy separated by spaces, like in related_cpus.
+	public String getCpuList() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < cpus.length; i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(cpus[i]);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,585 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/*
+ * Takes snapshots of time_in_state for a set of cpufreq policies. time_in_state is read once per
+ * policy, not once per CPU, because all the CPUs of a policy share it. The files are kept open by
+ * SysfsFileReaders and parsed with TimeInStateParser into reusable buffers, so once the layout has
+ * been created a call to sample() doesn't allocate any memory.
+ *
+ * The layout (policies and frequency tables) is created from the first reading. A policy that can't
+ * be read at that point gets an empty frequency table and is ignored afterwards.
+ *
+ * By default the policies are read one after another, so on hosts with many policies the last one is
+ * read noticeably later than the first. With numThreads > 1 they are read concurrently by the calling
+ * thread and numThreads - 1 worker threads, each one reading every numThreads-th policy. Either way
+ * every snapshot records when the reading started and ended and its skew: the time between the
+ * reading of the first and the last policy, which bounds how far apart the values of a snapshot are.
+ *
+ * If it's given the file /proc/stat, it's read once per snapshot by the calling thread to store the
+ * busy and idle time of every CPU along with the residencies. It's read after all the policies, like
+ * the cpuidle states below, so it doesn't add to the skew.
+ *
+ * If it's given the directory of the CPUs (/sys/devices/system/cpu), the cpuidle states of every CPU
+ * found when the layout is created (cpuN/cpuidle/stateK) are also read by the calling thread: the
+ * files time and usage of each state are kept open and read like time_in_state. That is two reads per
+ * state and CPU, so it's the most expensive part of a snapshot on devices with many CPUs.
+ *
+ * The frequency transitions of the policies with cpufreq stats (stats/total_trans and
+ * stats/trans_table) are read with every snapshot too, by the thread that reads the policy but after
+ * all the time_in_state files of its share, so they don't add to the skew. trans_table is parsed by
+ * TransTableParser into reusable buffers like time_in_state.
+ */
+public class CpuFreqSampler {
+
+	// Reusable buffers where time_in_state is parsed, one per reading thread.
+	private static final class ParseBuffers {
+
+		// They grow if a CPU has more frequencies.
+		long[] frequencies = new long[32];
+		long[] times = new long[32];
+		// Frequencies of the header of trans_table and its counts, row after row.
+		long[] transFrequencies = new long[32];
+		long[] transCounts = new long[32 * 32];
+
+	}
+
+	private final CpuFreqPolicy[] policies;
+	private final SysfsFileReader[] readers;
+	private final ParseBuffers[] buffers;
+	// Middle of the reading of each policy in the last snapshot, System.nanoTime().
+	private final long[] readTimes;
+	private CpuFreqLayout layout = null;
+	// Reader of /proc/stat, null if not used, and its values indexed by CPU id.
+	private final SysfsFileReader procStat;
+	private final long[] busyOfCpu;
+	private final long[] idleOfCpu;
+	private boolean procStatFailed = false;
+	// Directory of the CPUs to find their cpuidle states, null if not used, and the readers of the
+	// time and usage of each state in the order of the layout, created with it.
+	private final File cpuRoot;
+	private SysfsFileReader[] idleTimeReaders = new SysfsFileReader[0];
+	private SysfsFileReader[] idleUsageReaders = new SysfsFileReader[0];
+	private boolean idleStatesFailed = false;
+	// Readers of stats/total_trans and stats/trans_table of each policy, set when the layout is
+	// created, null for the files that don't exist.
+	private final SysfsFileReader[] totalTransReaders;
+	private final SysfsFileReader[] transTableReaders;
+	private volatile boolean transitionsFailed = false;
+	// Worker threads of the concurrent readings, created with the first one.
+	private Thread[] workers = null;
+	private final Object roundLock = new Object();
+	// Incremented to start a reading, workers read their share of roundSnapshot.
+	private int round = 0;
+	private int pendingWorkers = 0;
+	private CpuFreqSnapshot roundSnapshot = null;
+	// Workers that have finished (e.g. interrupted), their shares are read by the calling thread.
+	private boolean[] workerExited = null;
+	// Shares of the current round read by the calling thread, only used by it.
+	private boolean[] callerShares = null;
+	private boolean closed = false;
+
+	public CpuFreqSampler(CpuFreqPolicy[] policies) {
+		this(policies, 1);
+	}
+
+	// numThreads is the number of threads that read the policies of a snapshot concurrently.
+	public CpuFreqSampler(CpuFreqPolicy[] policies, int numThreads) {
+		this(policies, numThreads, null);
+	}
+
+	// procStatFile is the file /proc/stat, or null to read only time_in_state.
+	public CpuFreqSampler(CpuFreqPolicy[] policies, int numThreads, File procStatFile) {
+		this(policies, numThreads, procStatFile, null);
+	}
+
+	// cpuRoot is the directory of the CPUs, to read their cpuidle states, or null not to read them.
+	public CpuFreqSampler(CpuFreqPolicy[] policies, int numThreads, File procStatFile, File cpuRoot) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("At least one thread is needed to read, numThreads=" + numThreads);
+		this.policies = policies.clone();
+		readers = new SysfsFileReader[policies.length];
+		for (int i = 0; i < policies.length; i++) {
+			readers[i] = new SysfsFileReader(policies[i].getTimeInStateFile());
+		}
+		// More threads than policies would have nothing to read.
+		buffers = new ParseBuffers[Math.max(1, Math.min(numThreads, policies.length))];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = new ParseBuffers();
+		}
+		readTimes = new long[policies.length];
+		int maxCpu = 0;
+		for (int i = 0; i < policies.length; i++) {
+			for (int c = 0; c < policies[i].getNumCpus(); c++) {
+				maxCpu = Math.max(maxCpu, policies[i].getCpu(c));
+			}
+		}
+		// /proc/stat has a line per CPU plus the interrupt counters, usually a few KB.
+		procStat = procStatFile != null ? new SysfsFileReader(procStatFile, 16 * 1024) : null;
+		busyOfCpu = new long[maxCpu + 1];
+		idleOfCpu = new long[maxCpu + 1];
+		this.cpuRoot = cpuRoot;
+		totalTransReaders = new SysfsFileReader[policies.length];
+		transTableReaders = new SysfsFileReader[policies.length];
+	}
+
+	// Number of threads that read a snapshot, including the calling one.
+	public int getNumThreads() {
+		return buffers.length;
+	}
+
+	// Returns the layout of the snapshots, reading time_in_state the first time.
+	public CpuFreqLayout getLayout() {
+		if (layout == null) {
+			FrequencyTable[] tables = new FrequencyTable[policies.length];
+			for (int i = 0; i < policies.length; i++) {
+				int rows = readTimeInState(i, buffers[0]);
+				if (rows < 0)
+					rows = 0;
+				tables[i] = new FrequencyTable(buffers[0].frequencies, rows);
+			}
+			layout = new CpuFreqLayout(policies, tables);
+			String[][] idleStateNames = cpuRoot != null ? findIdleStates(layout) : null;
+			layout = new CpuFreqLayout(policies, tables, idleStateNames, findTransitions(tables));
+		}
+		return layout;
+	}
+
+	/*
+	 * Returns the names of the cpuidle states of the CPUs of layout and creates the readers of their
+	 * time and usage. Only states with both files are used.
+	 */
+	private String[][] findIdleStates(CpuFreqLayout layout) {
+		String[][] names = new String[layout.getNumCpus()][];
+		ArrayList<File> directories = new ArrayList<File>();
+		for (int i = 0; i < names.length; i++) {
+			File cpuidle = new File(cpuRoot, "cpu" + layout.getCpuId(i) + "/cpuidle");
+			int states = 0;
+			while (new File(cpuidle, "state" + states + "/time").exists()
+					&& new File(cpuidle, "state" + states + "/usage").exists())
+				states++;
+			names[i] = new String[states];
+			for (int k = 0; k < states; k++) {
+				File state = new File(cpuidle, "state" + k);
+				names[i][k] = readName(new File(state, "name"), "state" + k);
+				directories.add(state);
+			}
+		}
+		idleTimeReaders = new SysfsFileReader[directories.size()];
+		idleUsageReaders = new SysfsFileReader[directories.size()];
+		for (int i = 0; i < idleTimeReaders.length; i++) {
+			idleTimeReaders[i] = new SysfsFileReader(new File(directories.get(i), "time"), 64);
+			idleUsageReaders[i] = new SysfsFileReader(new File(directories.get(i), "usage"), 64);
+		}
+		return names;
+	}
+
+	/*
+	 * Creates the readers of the transition statistics of the policies that have them and returns
+	 * which ones have a trans_table. Policies without frequencies are ignored.
+	 */
+	private boolean[] findTransitions(FrequencyTable[] tables) {
+		boolean[] transitionTables = new boolean[policies.length];
+		for (int i = 0; i < policies.length; i++) {
+			if (tables[i].size() == 0)
+				continue;
+			File stats = new File(policies[i].getDirectory(), "stats");
+			File totalTrans = new File(stats, "total_trans");
+			if (totalTrans.exists())
+				totalTransReaders[i] = new SysfsFileReader(totalTrans, 64);
+			File transTable = new File(stats, "trans_table");
+			if (transTable.exists()) {
+				transTableReaders[i] = new SysfsFileReader(transTable);
+				transitionTables[i] = true;
+			}
+		}
+		return transitionTables;
+	}
+
+	// First line of a small file, or defaultName if it can't be read.
+	private static String readName(File file, String defaultName) {
+		SysfsFileReader reader = new SysfsFileReader(file, 64);
+		try {
+			int length = reader.read();
+			int end = 0;
+			while (end < length && reader.getBuffer()[end] != '\n')
+				end++;
+			return end > 0 ? new String(reader.getBuffer(), 0, end) : defaultName;
+		} catch (IOException e) {
+			return defaultName;
+		} finally {
+			reader.close();
+		}
+	}
+
+	public CpuFreqSnapshot newSnapshot() {
+		return new CpuFreqSnapshot(getLayout());
+	}
+
+	/*
+	 * Reads time_in_state of all the policies into snapshot, which must have been created by this
+	 * sampler, and its times (see CpuFreqSnapshot.getStartNs()). Returns false if no policy could be
+	 * read.
+	 */
+	public boolean sample(CpuFreqSnapshot snapshot) {
+		getLayout();
+		long startNs = System.nanoTime();
+		if (buffers.length > 1) {
+			startWorkers();
+			synchronized (roundLock) {
+				roundSnapshot = snapshot;
+				pendingWorkers = 0;
+				for (int i = 0; i < workers.length; i++) {
+					callerShares[i] = workerExited[i];
+					if (!workerExited[i])
+						pendingWorkers++;
+				}
+				round++;
+				roundLock.notifyAll();
+			}
+			readShare(0, snapshot);
+			for (int i = 0; i < workers.length; i++) {
+				if (callerShares[i])
+					readShare(i + 1, snapshot);
+			}
+			boolean interrupted = false;
+			synchronized (roundLock) {
+				while (pendingWorkers > 0) {
+					try {
+						roundLock.wait();
+					} catch (InterruptedException e) {
+						// The policies of the workers must be read before returning.
+						interrupted = true;
+					}
+				}
+				roundSnapshot = null;
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		} else {
+			readShare(0, snapshot);
+		}
+		// After all the policies, so they don't widen the skew.
+		readProcStat(snapshot);
+		readIdleStates(snapshot);
+		long endNs = System.nanoTime();
+		boolean anyValid = false;
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		for (int i = 0; i < policies.length; i++) {
+			if (!snapshot.isValid(i))
+				continue;
+			anyValid = true;
+			first = Math.min(first, readTimes[i]);
+			last = Math.max(last, readTimes[i]);
+		}
+		snapshot.setTimes(startNs, endNs, anyValid ? last - first : 0);
+		return anyValid;
+	}
+
+	// Stores the busy and idle time of the CPUs of the layout in snapshot, -1 if they can't be read.
+	private void readProcStat(CpuFreqSnapshot snapshot) {
+		if (procStat == null)
+			return;
+		for (int cpu = 0; cpu < busyOfCpu.length; cpu++) {
+			busyOfCpu[cpu] = -1;
+			idleOfCpu[cpu] = -1;
+		}
+		try {
+			int length = procStat.read();
+			if (ProcStatParser.parse(procStat.getBuffer(), length, busyOfCpu, idleOfCpu) <= 0)
+				throw new IOException("unexpected format of " + procStat.getFile());
+		} catch (IOException e) {
+			// Logged only once, the residencies are still useful without it.
+			if (!procStatFailed)
+				Log.e(getClass().getName(), "Error reading the busy time of the CPUs, " + e.getMessage());
+			procStatFailed = true;
+		}
+		long[] busy = snapshot.getCpuBusy();
+		long[] idle = snapshot.getCpuIdle();
+		for (int i = 0; i < busy.length; i++) {
+			int cpu = layout.getCpuId(i);
+			busy[i] = busyOfCpu[cpu];
+			idle[i] = idleOfCpu[cpu];
+		}
+	}
+
+	// Stores the time and usage of the cpuidle states in snapshot, -1 for the files that can't be read.
+	private void readIdleStates(CpuFreqSnapshot snapshot) {
+		long[] time = snapshot.getIdleStateTime();
+		long[] usage = snapshot.getIdleStateUsage();
+		for (int i = 0; i < idleTimeReaders.length; i++) {
+			time[i] = readIdleValue(idleTimeReaders[i]);
+			usage[i] = readIdleValue(idleUsageReaders[i]);
+		}
+	}
+
+	// Value of a cpuidle file, or -1 if it can't be read. Logged only once.
+	private long readIdleValue(SysfsFileReader reader) {
+		try {
+			return readValue(reader);
+		} catch (IOException e) {
+			if (!idleStatesFailed)
+				Log.e(getClass().getName(), "Error reading the cpuidle states, " + e.getMessage());
+			idleStatesFailed = true;
+			return -1;
+		}
+	}
+
+	// Decimal number at the start of a file.
+	static long readValue(SysfsFileReader reader) throws IOException {
+		int length = reader.read();
+		byte[] buffer = reader.getBuffer();
+		long value = 0;
+		int i = 0;
+		while (i < length && TimeInStateParser.isDigit(buffer[i])) {
+			value = value * 10 + (buffer[i] - '0');
+			i++;
+		}
+		if (i == 0)
+			throw new IOException("unexpected format of " + reader.getFile());
+		return value;
+	}
+
+	// Reads every getNumThreads()-th policy from the one with index share, and then their transitions.
+	private void readShare(int share, CpuFreqSnapshot snapshot) {
+		for (int i = share; i < policies.length; i += buffers.length) {
+			snapshot.setValid(i, readPolicy(i, snapshot, buffers[share]));
+		}
+		for (int i = share; i < policies.length; i += buffers.length) {
+			readTransitions(i, snapshot, buffers[share]);
+		}
+	}
+
+	/*
+	 * Stores the transitions of a policy in snapshot, in total and between each pair of frequencies
+	 * sorted like the residencies. -1 for the values that can't be read, logged only once.
+	 */
+	private void readTransitions(int policyIndex, CpuFreqSnapshot snapshot, ParseBuffers parseBuffers) {
+		if (totalTransReaders[policyIndex] != null) {
+			long total = -1;
+			try {
+				total = readValue(totalTransReaders[policyIndex]);
+			} catch (IOException e) {
+				transitionsFailed(e);
+			}
+			snapshot.getTotalTransitions()[policyIndex] = total;
+		}
+		if (!layout.hasTransitionTable(policyIndex))
+			return;
+		boolean read = false;
+		try {
+			read = readTransTable(policyIndex, parseBuffers);
+		} catch (IOException e) {
+			transitionsFailed(e);
+		}
+		FrequencyTable table = layout.getFrequencyTable(policyIndex);
+		int n = table.size();
+		long[] transitions = snapshot.getTransitions();
+		int offset = layout.getTransitionOffset(policyIndex);
+		for (int row = 0; row < n; row++) {
+			int from = offset + table.getSlotOfRow(row) * n;
+			for (int column = 0; column < n; column++) {
+				transitions[from + table.getSlotOfRow(column)] = read ? parseBuffers.transCounts[row * n + column] : -1;
+			}
+		}
+	}
+
+	/*
+	 * Reads trans_table of a policy into parseBuffers. Returns false if its frequencies are not the
+	 * ones of time_in_state.
+	 */
+	private boolean readTransTable(int policyIndex, ParseBuffers parseBuffers) throws IOException {
+		SysfsFileReader reader = transTableReaders[policyIndex];
+		int length = reader.read();
+		int n = TransTableParser.parse(reader.getBuffer(), length, parseBuffers.transFrequencies, parseBuffers.transCounts);
+		if (n > parseBuffers.transFrequencies.length || n * n > parseBuffers.transCounts.length) {
+			// More frequencies than expected, grow the buffers and parse again.
+			parseBuffers.transFrequencies = new long[n];
+			parseBuffers.transCounts = new long[n * n];
+			n = TransTableParser.parse(reader.getBuffer(), length, parseBuffers.transFrequencies, parseBuffers.transCounts);
+		}
+		if (n == TransTableParser.INVALID_FORMAT)
+			throw new IOException("unexpected format of " + reader.getFile());
+		if (!layout.getFrequencyTable(policyIndex).matches(parseBuffers.transFrequencies, n)) {
+			transitionsFailed(new IOException("frequencies of " + reader.getFile() + " don't match time_in_state"));
+			return false;
+		}
+		return true;
+	}
+
+	// Logs the first error reading the transitions, the residencies are still useful without them.
+	private void transitionsFailed(IOException e) {
+		if (!transitionsFailed)
+			Log.e(getClass().getName(), "Error reading the frequency transitions, " + e.getMessage());
+		transitionsFailed = true;
+	}
+
+	private boolean readPolicy(int policyIndex, CpuFreqSnapshot snapshot, ParseBuffers parseBuffers) {
+		FrequencyTable table = layout.getFrequencyTable(policyIndex);
+		if (table.size() == 0)
+			return false;
+		long before = System.nanoTime();
+		int rows = readTimeInState(policyIndex, parseBuffers);
+		readTimes[policyIndex] = before + (System.nanoTime() - before) / 2;
+		if (rows < 0)
+			return false;
+		if (!table.matches(parseBuffers.frequencies, rows)) {
+			Log.e(getClass().getName(), "Error, frequencies of policy" + policies[policyIndex].getId() + " have changed");
+			return false;
+		}
+		long[] residency = snapshot.getResidency();
+		int offset = layout.getOffset(policyIndex);
+		for (int row = 0; row < rows; row++) {
+			residency[offset + table.getSlotOfRow(row)] = parseBuffers.times[row];
+		}
+		return true;
+	}
+
+	private void startWorkers() {
+		if (workers != null)
+			return;
+		workers = new Thread[buffers.length - 1];
+		workerExited = new boolean[workers.length];
+		callerShares = new boolean[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			final int share = i + 1;
+			workers[i] = new Thread("CpuFreqReader-" + share) {
+				@Override
+				public void run() {
+					readWhenAsked(share);
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].setPriority(Thread.MAX_PRIORITY);
+			workers[i].start();
+		}
+	}
+
+	/*
+	 * Loop of a worker thread: waits for a new round and reads its share of the policies. The workers
+	 * are never interrupted because that would close the files of the readers. If one finishes anyway
+	 * it gives back the round it was counted in, with its policies marked as not valid, and the calling
+	 * thread reads its share from then on.
+	 */
+	private void readWhenAsked(int share) {
+		int lastRound = 0;
+		// Set while the worker owes the current round to the calling thread.
+		boolean pending = false;
+		try {
+			while (true) {
+				CpuFreqSnapshot snapshot;
+				synchronized (roundLock) {
+					while (round == lastRound && !closed) {
+						try {
+							roundLock.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (closed)
+						return;
+					lastRound = round;
+					snapshot = roundSnapshot;
+					pending = true;
+				}
+				readShare(share, snapshot);
+				synchronized (roundLock) {
+					pending = false;
+					pendingWorkers--;
+					if (pendingWorkers == 0)
+						roundLock.notifyAll();
+				}
+			}
+		} finally {
+			synchronized (roundLock) {
+				workerExited[share - 1] = true;
+				// A round started while it was waiting also counted on it.
+				if (pending || (round != lastRound && !closed)) {
+					for (int i = share; i < policies.length; i += buffers.length) {
+						roundSnapshot.setValid(i, false);
+					}
+					pendingWorkers--;
+				}
+				roundLock.notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Reads the file time_in_state of the policy with index policyIndex into parseBuffers. This gives
+	 * the amount of time spent in each of the frequencies supported by the CPUs of the policy, with a
+	 * "<frequency> <time>" pair in each line. usertime units here is 10mS (similar to other time
+	 * exported in /proc). Returns the number of lines or -1 if there is an error.
+	 */
+	private int readTimeInState(int policyIndex, ParseBuffers parseBuffers) {
+		try {
+			SysfsFileReader reader = readers[policyIndex];
+			int length = reader.read();
+			int lines = TimeInStateParser.parse(reader.getBuffer(), length, parseBuffers.frequencies, parseBuffers.times);
+			if (lines > parseBuffers.frequencies.length) {
+				// More frequencies than expected, grow the buffers and parse again.
+				parseBuffers.frequencies = new long[lines];
+				parseBuffers.times = new long[lines];
+				lines = TimeInStateParser.parse(reader.getBuffer(), length, parseBuffers.frequencies, parseBuffers.times);
+			}
+			if (lines == TimeInStateParser.INVALID_FORMAT) {
+				Log.e(getClass().getName(), "Error, unexpected format of " + reader.getFile());
+				return -1;
+			}
+			if (lines == 0) {
+				// The file is empty
+				Log.e(getClass().getName(), "Error, no lines read from " + reader.getFile());
+				return -1;
+			}
+			return lines;
+		} catch (Exception e) {
+			Log.e(e.getClass().getName(), e.getMessage(), e);
+			return -1;
+		}
+	}
+
+	// Stops the worker threads and closes all the files.
+	public void close() {
+		synchronized (roundLock) {
+			closed = true;
+			roundLock.notifyAll();
+		}
+		for (int i = 0; i < readers.length; i++) {
+			readers[i].close();
+		}
+		if (procStat != null)
+			procStat.close();
+		for (int i = 0; i < idleTimeReaders.length; i++) {
+			idleTimeReaders[i].close();
+			idleUsageReaders[i].close();
+		}
+		for (int i = 0; i < policies.length; i++) {
+			if (totalTransReaders[i] != null)
+				totalTransReaders[i].close();
+			if (transTableReaders[i] != null)
+				transTableReaders[i].close();
+		}
+	}
+
+}
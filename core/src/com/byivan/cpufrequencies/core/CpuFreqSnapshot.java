@@ -0,0 +1,228 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * Reading of time_in_state for all the cpufreq policies. The time spent in each frequency (in 10mS
+ * units) is stored in a single long array described by a CpuFreqLayout, sorted by policy and
+ * frequency. A policy whose file couldn't be read is marked as not valid and its values are ignored
+ * in the deltas.
+ *
+ * It also holds the busy and idle time of each CPU read from /proc/stat in the same reading, so the
+ * time at each frequency can be told apart from the time actually running, and when the reading was
+ * taken in the monotonic clock and in time since boot.
+ *
+ * When they are sampled it has the counters of the cpuidle states of each CPU and the number of
+ * frequency transitions of each policy, in total (stats/total_trans) and between every pair of
+ * frequencies (stats/trans_table, see CpuFreqLayout.getTransitionOffset()).
+ *
+ * Snapshots are reused: a sampler fills the same instance again instead of creating a new one.
+ */
+public final class CpuFreqSnapshot {
+
+	private final CpuFreqLayout layout;
+	private final long[] residency;
+	private final boolean[] valid;
+	// Busy and idle time of each CPU in USER_HZ ticks (10ms), -1 if unavailable.
+	private final long[] cpuBusy;
+	private final long[] cpuIdle;
+	// Position of the snapshot in the session, set when it's published.
+	private long sequence = -1;
+	// When the reading started and ended (System.nanoTime()) and the time between the readings of the
+	// first and the last policy.
+	private long startNs = 0;
+	private long endNs = 0;
+	private long skewNs = 0;
+	private long bootTimeNs = 0;
+	// Time in microseconds and number of entries of each cpuidle state, -1 if unavailable.
+	private final long[] idleStateTime;
+	private final long[] idleStateUsage;
+	// Transitions of each policy and between each pair of its frequencies, -1 if unavailable.
+	private final long[] totalTransitions;
+	private final long[] transitions;
+
+	public CpuFreqSnapshot(CpuFreqLayout layout) {
+		this.layout = layout;
+		residency = new long[layout.size()];
+		valid = new boolean[layout.getNumPolicies()];
+		cpuBusy = new long[layout.getNumCpus()];
+		cpuIdle = new long[layout.getNumCpus()];
+		for (int i = 0; i < cpuBusy.length; i++) {
+			cpuBusy[i] = -1;
+			cpuIdle[i] = -1;
+		}
+		idleStateTime = new long[layout.getIdleStateSize()];
+		idleStateUsage = new long[layout.getIdleStateSize()];
+		for (int i = 0; i < idleStateTime.length; i++) {
+			idleStateTime[i] = -1;
+			idleStateUsage[i] = -1;
+		}
+		totalTransitions = new long[layout.getNumPolicies()];
+		for (int p = 0; p < totalTransitions.length; p++) {
+			totalTransitions[p] = -1;
+		}
+		transitions = new long[layout.getTransitionSize()];
+		for (int i = 0; i < transitions.length; i++) {
+			transitions[i] = -1;
+		}
+	}
+
+	public CpuFreqLayout getLayout() {
+		return layout;
+	}
+
+	// Flat array with the residencies of all the policies, see CpuFreqLayout.
+	public long[] getResidency() {
+		return residency;
+	}
+
+	public long getResidency(int policyIndex, int slot) {
+		return residency[layout.getOffset(policyIndex) + slot];
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	// System.nanoTime() when the reading of the snapshot started.
+	public long getStartNs() {
+		return startNs;
+	}
+
+	// System.nanoTime() when the reading of the snapshot ended.
+	public long getEndNs() {
+		return endNs;
+	}
+
+	/*
+	 * Time between the readings of the first and the last valid policy, 0 with only one. The values of
+	 * the snapshot are not taken at the same instant but within this time.
+	 */
+	public long getSkewNs() {
+		return skewNs;
+	}
+
+	public void setTimes(long startNs, long endNs, long skewNs) {
+		this.startNs = startNs;
+		this.endNs = endNs;
+		this.skewNs = skewNs;
+	}
+
+	/*
+	 * Time since boot, including the time suspended, when the reading started (getStartNs() in the
+	 * clock of BootClock). 0 if it's not known.
+	 */
+	public long getBootTimeNs() {
+		return bootTimeNs;
+	}
+
+	public void setBootTimeNs(long bootTimeNs) {
+		this.bootTimeNs = bootTimeNs;
+	}
+
+	/*
+	 * Busy time (user, nice, system, irq, softirq and steal) of each CPU, indexed like
+	 * CpuFreqLayout.getCpuId(), in USER_HZ ticks of 10ms like the residencies. -1 for the CPUs that
+	 * were not in /proc/stat.
+	 */
+	public long[] getCpuBusy() {
+		return cpuBusy;
+	}
+
+	// Idle time (idle and iowait) of each CPU, like getCpuBusy().
+	public long[] getCpuIdle() {
+		return cpuIdle;
+	}
+
+	/*
+	 * Time spent in each cpuidle state in microseconds, stored like CpuFreqLayout.getIdleStateOffset(),
+	 * -1 if it couldn't be read.
+	 */
+	public long[] getIdleStateTime() {
+		return idleStateTime;
+	}
+
+	// Number of times each cpuidle state was entered, like getIdleStateTime().
+	public long[] getIdleStateUsage() {
+		return idleStateUsage;
+	}
+
+	// Frequency transitions of each policy since boot (stats/total_trans), -1 if unavailable.
+	public long[] getTotalTransitions() {
+		return totalTransitions;
+	}
+
+	/*
+	 * Transitions between each pair of frequencies of the policies, stored like
+	 * CpuFreqLayout.getTransitionOffset(), -1 if they couldn't be read.
+	 */
+	public long[] getTransitions() {
+		return transitions;
+	}
+
+	public boolean isValid(int policyIndex) {
+		return valid[policyIndex];
+	}
+
+	public void setValid(int policyIndex, boolean isValid) {
+		valid[policyIndex] = isValid;
+	}
+
+	// Copies the values of other, which must have the same layout, into this snapshot.
+	public void copyFrom(CpuFreqSnapshot other) {
+		System.arraycopy(other.residency, 0, residency, 0, residency.length);
+		System.arraycopy(other.valid, 0, valid, 0, valid.length);
+		sequence = other.sequence;
+		startNs = other.startNs;
+		endNs = other.endNs;
+		skewNs = other.skewNs;
+		bootTimeNs = other.bootTimeNs;
+		System.arraycopy(other.cpuBusy, 0, cpuBusy, 0, cpuBusy.length);
+		System.arraycopy(other.cpuIdle, 0, cpuIdle, 0, cpuIdle.length);
+		System.arraycopy(other.idleStateTime, 0, idleStateTime, 0, idleStateTime.length);
+		System.arraycopy(other.idleStateUsage, 0, idleStateUsage, 0, idleStateUsage.length);
+		System.arraycopy(other.totalTransitions, 0, totalTransitions, 0, totalTransitions.length);
+		System.arraycopy(other.transitions, 0, transitions, 0, transitions.length);
+	}
+
+	/*
+	 * Stores in out the time spent in each frequency between the snapshots from and to, which must
+	 * have the same layout. Values of policies that are not valid in any of the snapshots are 0.
+	 */
+	public static void delta(CpuFreqSnapshot from, CpuFreqSnapshot to, long[] out) {
+		CpuFreqLayout layout = from.layout;
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			int start = layout.getOffset(p);
+			int end = start + layout.getFrequencyTable(p).size();
+			if (from.valid[p] && to.valid[p]) {
+				for (int i = start; i < end; i++) {
+					out[i] = to.residency[i] - from.residency[i];
+				}
+			} else {
+				for (int i = start; i < end; i++) {
+					out[i] = 0;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Discovers the CPUs of the device from the files possible, present and online of
+ * /sys/devices/system/cpu. Each file contains a list of CPU ids and ranges like "0-3,6,8-11", so ids
+ * don't need to be contiguous and there is no limit in the number of CPUs. No process is created.
+ *
+ * possible: CPUs that can ever be available. present: CPUs physically present in the system.
+ * online: CPUs currently running, this one changes when CPUs are plugged or unplugged.
+ *
+ * It also groups the CPUs in cpufreq policies, see getFreqPolicies().
+ */
+public class CpuTopology {
+
+	private final File cpuRoot;
+	// Null if the topology was created only with the cpu directory.
+	private final SystemPaths paths;
+	private int[] possibleCpus = null;
+	private int[] presentCpus = null;
+	private SysfsFileReader onlineReader = null;
+
+	public CpuTopology() {
+		this(new SystemPaths());
+	}
+
+	public CpuTopology(SystemPaths paths) {
+		this.cpuRoot = paths.getCpuRoot();
+		this.paths = paths;
+	}
+
+	// cpuRoot is the directory that contains the files possible, present and online.
+	public CpuTopology(File cpuRoot) {
+		this.cpuRoot = cpuRoot;
+		this.paths = null;
+	}
+
+	// Paths the topology was created with, null if it was created with a cpu directory.
+	public SystemPaths getPaths() {
+		return paths;
+	}
+
+	public File getCpuRoot() {
+		return cpuRoot;
+	}
+
+	// CPUs that can ever be available, or an empty array if they can't be read.
+	public int[] getPossibleCpus() {
+		if (possibleCpus == null)
+			possibleCpus = readCpuList(new File(cpuRoot, "possible"));
+		return possibleCpus;
+	}
+
+	/*
+	 * CPUs present in the system. If the file present doesn't exist the possible CPUs are returned
+	 * instead.
+	 */
+	public int[] getPresentCpus() {
+		if (presentCpus == null) {
+			File present = new File(cpuRoot, "present");
+			if (present.exists())
+				presentCpus = readCpuList(present);
+			else
+				presentCpus = getPossibleCpus();
+		}
+		return presentCpus;
+	}
+
+	// CPUs online right now. The file is read again each time.
+	public int[] getOnlineCpus() {
+		if (onlineReader == null)
+			onlineReader = new SysfsFileReader(new File(cpuRoot, "online"));
+		return readCpuList(onlineReader);
+	}
+
+	/*
+	 * Groups the given CPUs by cpufreq policy. Policies are read from cpufreq/policyN/related_cpus
+	 * when the kernel has those directories. On older kernels the CPUs of each policy are read from
+	 * cpuN/cpufreq/related_cpus (or affected_cpus), and if neither exists every CPU is considered
+	 * to have its own policy. Only the given CPUs are included and the policies are sorted by id.
+	 */
+	public CpuFreqPolicy[] getFreqPolicies(int[] cpus) {
+		ArrayList<CpuFreqPolicy> policies = new ArrayList<CpuFreqPolicy>();
+		File cpufreqDir = new File(cpuRoot, "cpufreq");
+		String[] names = cpufreqDir.list();
+		if (names != null) {
+			Arrays.sort(names);
+			for (int i = 0; i < names.length; i++) {
+				int id = parsePolicyId(names[i]);
+				if (id < 0)
+					continue;
+				File directory = new File(cpufreqDir, names[i]);
+				int[] related = intersect(readRelatedCpus(directory), cpus);
+				if (related.length > 0)
+					policies.add(new CpuFreqPolicy(id, related, directory));
+			}
+		}
+		if (policies.size() == 0) {
+			// Older kernel without policy directories.
+			boolean[] assigned = new boolean[cpus.length];
+			for (int i = 0; i < cpus.length; i++) {
+				if (assigned[i])
+					continue;
+				File directory = new File(cpuRoot, "cpu" + cpus[i] + "/cpufreq");
+				int[] related = intersect(readRelatedCpus(directory), cpus);
+				if (related.length == 0 || Arrays.binarySearch(related, cpus[i]) < 0)
+					related = new int[] { cpus[i] };
+				for (int j = i; j < cpus.length; j++) {
+					if (Arrays.binarySearch(related, cpus[j]) >= 0)
+						assigned[j] = true;
+				}
+				policies.add(new CpuFreqPolicy(related[0], related, directory));
+			}
+		}
+		CpuFreqPolicy[] result = policies.toArray(new CpuFreqPolicy[policies.size()]);
+		// Sort by id, there are only a few.
+		for (int i = 1; i < result.length; i++) {
+			CpuFreqPolicy policy = result[i];
+			int j = i;
+			while (j > 0 && result[j - 1].getId() > policy.getId()) {
+				result[j] = result[j - 1];
+				j--;
+			}
+			result[j] = policy;
+		}
+		return result;
+	}
+
+	// CPUs listed in related_cpus, or in affected_cpus if the first doesn't exist, of a cpufreq directory.
+	private int[] readRelatedCpus(File cpufreqDir) {
+		File related = new File(cpufreqDir, "related_cpus");
+		if (related.exists())
+			return readCpuList(related);
+		File affected = new File(cpufreqDir, "affected_cpus");
+		if (affected.exists())
+			return readCpuList(affected);
+		return new int[0];
+	}
+
+	// Returns N for a directory called policyN, or -1 for any other name.
+	private static int parsePolicyId(String name) {
+		if (!name.startsWith("policy") || name.length() == "policy".length())
+			return -1;
+		int id = 0;
+		for (int i = "policy".length(); i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			id = id * 10 + (c - '0');
+		}
+		return id;
+	}
+
+	// Sorted ids that are in both sorted arrays.
+	private static int[] intersect(int[] a, int[] b) {
+		int[] result = new int[Math.min(a.length, b.length)];
+		int n = 0;
+		for (int i = 0; i < a.length; i++) {
+			if (Arrays.binarySearch(b, a[i]) >= 0)
+				result[n++] = a[i];
+		}
+		return copyOf(result, n);
+	}
+
+	public void close() {
+		if (onlineReader != null)
+			onlineReader.close();
+	}
+
+	private int[] readCpuList(File file) {
+		SysfsFileReader reader = new SysfsFileReader(file);
+		try {
+			return readCpuList(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private int[] readCpuList(SysfsFileReader reader) {
+		try {
+			int length = reader.read();
+			int[] cpus = parseCpuList(reader.getBuffer(), length);
+			if (cpus == null) {
+				Log.e(getClass().getName(), "Error, unexpected format of " + reader.getFile());
+				return new int[0];
+			}
+			return cpus;
+		} catch (IOException e) {
+			Log.e(e.getClass().getName(), e.getMessage(), e);
+			return new int[0];
+		}
+	}
+
+	/*
+	 * Parses a list of CPUs in the kernel format, ids and ranges separated by commas, e.g. "0-3,6,8-11".
+	 * Ids separated by spaces, like in related_cpus, are accepted too. Returns the sorted ids without
+	 * duplicates, or null if the format is not valid.
+	 */
+	public static int[] parseCpuList(byte[] buffer, int length) {
+		int[] cpus = new int[16];
+		int numCpus = 0;
+		int i = 0;
+		while (i < length && buffer[i] != '\n') {
+			int first = 0;
+			int start = i;
+			while (i < length && TimeInStateParser.isDigit(buffer[i])) {
+				first = first * 10 + (buffer[i] - '0');
+				i++;
+			}
+			if (i == start)
+				return null;
+			int last = first;
+			if (i < length && buffer[i] == '-') {
+				i++;
+				last = 0;
+				start = i;
+				while (i < length && TimeInStateParser.isDigit(buffer[i])) {
+					last = last * 10 + (buffer[i] - '0');
+					i++;
+				}
+				if (i == start || last < first)
+					return null;
+			}
+			for (int cpu = first; cpu <= last; cpu++) {
+				if (numCpus == cpus.length)
+					cpus = copyOf(cpus, cpus.length * 2);
+				cpus[numCpus++] = cpu;
+			}
+			if (i < length && (buffer[i] == ',' || buffer[i] == ' '))
+				i++;
+			else if (i < length && buffer[i] != '\n')
+				return null;
+		}
+		cpus = copyOf(cpus, numCpus);
+		Arrays.sort(cpus);
+		// Remove duplicates
+		int unique = 0;
+		for (int j = 0; j < cpus.length; j++) {
+			if (unique == 0 || cpus[unique - 1] != cpus[j])
+				cpus[unique++] = cpus[j];
+		}
+		return copyOf(cpus, unique);
+	}
+
+	// Arrays.copyOf() is not available in API level 8.
+	private static int[] copyOf(int[] original, int newLength) {
+		int[] copy = new int[newLength];
+		System.arraycopy(original, 0, copy, 0, Math.min(original.length, newLength));
+		return copy;
+	}
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/*
+ * Writes a profiling session to a CSV file while it's running. It receives the samples from the
+ * writer thread of a SnapshotPipeline and appends the time spent in each frequency between
+ * consecutive samples through a BufferedWriter, which is flushed periodically by the pipeline.
+ * Nothing is kept in memory, so the memory used doesn't depend on the length of the session, and if
+ * the process is killed the file has all the samples up to the last flush.
+ *
+ * Every row also has the time since boot of the sample (0 if unknown, see BootClock) and the time
+ * elapsed since the previous sample in milliseconds, to align the session with other traces.
+ *
+ * At the end of the session the time spent in each frequency between the initial and the last
+ * samples is written, like in the original report, with its percentage of the residency of the
+ * policy and the busy and idle time of each CPU from /proc/stat when it's available, and the mean
+ * frequency and estimated megacycles of each policy and of all the CPUs (see SnapshotDelta). With
+ * setPower() it also has the energy and charge estimated for each CPU and the charge measured in
+ * the battery during the session. The frequency transitions of each policy are written with its
+ * frequencies when they are sampled, in total, per second and as a matrix with a row per frequency
+ * they start from and a column per frequency they end in. The time in microseconds and the entries
+ * of the cpuidle states of each CPU are also written when they are sampled.
+ */
+public class CsvSessionWriter implements ProfileSink {
+
+	// Separator, ',' for CSV files.
+	public static final String SEPARATOR = ",";
+
+	private final File file;
+	private BufferedWriter bw = null;
+	private File powerProfileFile = null;
+	private PowerSupply powerSupply = null;
+	private PowerModel powerModel = null;
+	private long startChargeUah = -1;
+
+	public CsvSessionWriter(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/*
+	 * Adds the energy estimated with the PowerProfile in profileFile and the charge measured with
+	 * supply, both can be null. The profile is loaded in open(), out of the thread of the caller. Must
+	 * be called before open().
+	 */
+	public void setPower(File profileFile, PowerSupply supply) {
+		powerProfileFile = profileFile;
+		powerSupply = supply;
+	}
+
+	@Override
+	public void open(CpuFreqSnapshot initial) throws IOException {
+		file.getParentFile().mkdirs();
+		bw = new BufferedWriter(new FileWriter(file));
+		if (powerProfileFile != null) {
+			try {
+				powerModel = new PowerModel(PowerProfile.load(powerProfileFile), initial.getLayout());
+			} catch (IOException e) {
+				Log.e(getClass().getName(), "Error loading the power profile " + powerProfileFile + ", " + e.getMessage());
+			}
+		}
+		startChargeUah = powerSupply != null ? powerSupply.readChargeUah() : -1;
+		bw.write("Sample" + SEPARATOR + "Policy" + SEPARATOR + "Frequency" + SEPARATOR + "Time" + SEPARATOR
+				+ "BootTimeNs" + SEPARATOR + "ElapsedMs" + "\n");
+		bw.flush();
+	}
+
+	@Override
+	public void onSample(CpuFreqSnapshot previous, CpuFreqSnapshot current, SnapshotDelta delta) throws IOException {
+		CpuFreqLayout layout = current.getLayout();
+		long[] values = delta.getValues();
+		String times = SEPARATOR + current.getBootTimeNs() + SEPARATOR + delta.getElapsedNs() / 1000000L + "\n";
+		for (int i = 0; i < layout.getNumPolicies(); i++) {
+			if (!delta.isValid(i))
+				continue;
+			FrequencyTable frequencies = layout.getFrequencyTable(i);
+			int offset = layout.getOffset(i);
+			for (int slot = 0; slot < frequencies.size(); slot++) {
+				bw.write(current.getSequence() + SEPARATOR + layout.getPolicy(i).getId() + SEPARATOR
+						+ frequencies.getFrequency(slot) + SEPARATOR + values[offset + slot] + times);
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		bw.flush();
+	}
+
+	// Writes the time spent in each frequency between the initial reading and the last sample.
+	@Override
+	public void close(CpuFreqSnapshot initial, CpuFreqSnapshot last, SnapshotDelta total) throws IOException {
+		try {
+			bw.write("\n");
+			bw.write("Elapsed" + SEPARATOR + total.getElapsedNs() / 1000000L + "\n");
+			bw.write("\n");
+			CpuFreqLayout layout = initial.getLayout();
+			long[] values = total.getValues();
+			long[] busy = total.getCpuBusy();
+			long[] idle = total.getCpuIdle();
+			StringBuilder percentage = new StringBuilder();
+			// Traverse all the cpufreq policies, all the CPUs of a policy
+			// share the same values.
+			for (int i = 0; i < layout.getNumPolicies(); i++) {
+				CpuFreqPolicy policy = layout.getPolicy(i);
+				if (total.isValid(i)) {
+					FrequencyTable frequencies = layout.getFrequencyTable(i);
+					int offset = layout.getOffset(i);
+					bw.write("Policy" + SEPARATOR + policy.getId() + "\n");
+					bw.write("CPUs" + SEPARATOR + policy.getCpuList() + "\n");
+					bw.write("MeanFrequency" + SEPARATOR + total.getMeanFrequency(i) + "\n");
+					bw.write("Megacycles" + SEPARATOR + total.getCycles(i) / 1000000L + "\n");
+					bw.write("Frequency" + SEPARATOR + "Time" + SEPARATOR + "Percentage" + "\n");
+					// Traverse frequencies for policy with index i, sorted
+					// from the lowest to the highest.
+					for (int slot = 0; slot < frequencies.size(); slot++) {
+						percentage.setLength(0);
+						TextReport.appendPerMille(percentage, total.getPerMille(i, slot));
+						bw.write(frequencies.getFrequency(slot) + SEPARATOR + values[offset + slot] + SEPARATOR
+								+ percentage + "\n");
+					}
+					writeTransitions(layout, total, i);
+					boolean header = false;
+					for (int c = 0; c < layout.getNumCpus(); c++) {
+						if (layout.getPolicyIndexOfCpu(c) != i || busy[c] < 0)
+							continue;
+						if (!header) {
+							bw.write("CPU" + SEPARATOR + "Busy" + SEPARATOR + "Idle" + SEPARATOR + "BusyMegacycles" + "\n");
+							header = true;
+						}
+						bw.write(layout.getCpuId(c) + SEPARATOR + busy[c] + SEPARATOR + idle[c] + SEPARATOR
+								+ total.getBusyCycles(c) / 1000000L + "\n");
+					}
+					bw.write("\n");
+				} else {
+					Log.e(getClass().getName(), "Error, time_in_state of policy" + policy.getId()
+							+ " couldn't be read at the start or the end of the profiling");
+				}
+			}
+			bw.write("TotalMegacycles" + SEPARATOR + total.getTotalCycles() / 1000000L + "\n");
+			writeIdleStates(layout, total);
+			writePower(layout, total);
+		} finally {
+			// Closing File Writer
+			bw.close();
+		}
+		Log.i(getClass().getName(), "Results saved in " + file);
+	}
+
+	private void writeTransitions(CpuFreqLayout layout, SnapshotDelta total, int policyIndex) throws IOException {
+		long transitions = total.getTotalTransitions(policyIndex);
+		if (transitions >= 0) {
+			StringBuilder rate = new StringBuilder();
+			TextReport.appendPerMille(rate, total.getTransitionRateDeci(policyIndex));
+			bw.write("Transitions" + SEPARATOR + transitions + "\n");
+			bw.write("TransitionsPerSecond" + SEPARATOR + rate + "\n");
+		}
+		if (!layout.hasTransitionTable(policyIndex))
+			return;
+		FrequencyTable frequencies = layout.getFrequencyTable(policyIndex);
+		StringBuilder line = new StringBuilder("From");
+		for (int to = 0; to < frequencies.size(); to++) {
+			line.append(SEPARATOR).append(frequencies.getFrequency(to));
+		}
+		bw.write(line.append('\n').toString());
+		for (int from = 0; from < frequencies.size(); from++) {
+			line.setLength(0);
+			line.append(frequencies.getFrequency(from));
+			for (int to = 0; to < frequencies.size(); to++) {
+				line.append(SEPARATOR).append(total.getTransitions(policyIndex, from, to));
+			}
+			bw.write(line.append('\n').toString());
+		}
+	}
+
+	private void writeIdleStates(CpuFreqLayout layout, SnapshotDelta total) throws IOException {
+		if (layout.getIdleStateSize() == 0)
+			return;
+		long[] time = total.getIdleStateTime();
+		long[] usage = total.getIdleStateUsage();
+		bw.write("\n");
+		bw.write("CPU" + SEPARATOR + "IdleState" + SEPARATOR + "TimeUs" + SEPARATOR + "Usage" + "\n");
+		for (int c = 0; c < layout.getNumCpus(); c++) {
+			int offset = layout.getIdleStateOffset(c);
+			for (int k = 0; k < layout.getNumIdleStates(c); k++) {
+				bw.write(layout.getCpuId(c) + SEPARATOR + layout.getIdleStateName(c, k) + SEPARATOR + time[offset + k]
+						+ SEPARATOR + usage[offset + k] + "\n");
+			}
+		}
+	}
+
+	private void writePower(CpuFreqLayout layout, SnapshotDelta total) throws IOException {
+		if (powerModel != null) {
+			bw.write("\n");
+			bw.write("CPU" + SEPARATOR + "EnergyMj" + SEPARATOR + "ChargeUah" + "\n");
+			for (int c = 0; c < layout.getNumCpus(); c++) {
+				double charge = powerModel.getCpuCharge(total, c);
+				if (charge < 0)
+					continue;
+				bw.write(layout.getCpuId(c) + SEPARATOR + powerModel.toMilliJoules(charge) + SEPARATOR
+						+ PowerModel.toMicroAmpHours(charge) + "\n");
+			}
+			double charge = powerModel.getTotalCharge(total);
+			bw.write("TotalEnergyMj" + SEPARATOR + powerModel.toMilliJoules(charge) + "\n");
+			bw.write("TotalChargeUah" + SEPARATOR + PowerModel.toMicroAmpHours(charge) + "\n");
+		}
+		if (startChargeUah >= 0) {
+			long endChargeUah = powerSupply.readChargeUah();
+			if (endChargeUah >= 0)
+				bw.write("BatteryChargeUah" + SEPARATOR + (startChargeUah - endChargeUah) + "\n");
+		}
+	}
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Optional high rate mode: a thread that polls scaling_cur_freq of every cpufreq policy every
+ * periodMs milliseconds (MIN_PERIOD_MS to MAX_PERIOD_MS) and records the changes in a
+ * CurFreqTimeline. time_in_state counts in units of 10ms, so it can't show a policy that goes to a
+ * high frequency for a couple of milliseconds; this can, at the cost of a read per policy and period.
+ *
+ * Like PeriodicSampler the time of each poll is computed from the start time, so the period doesn't
+ * drift, and periods already missed are skipped instead of polling several times in a row. The thread
+ * sleeps with LockSupport.parkNanos(), which unlike Object.wait() doesn't round to milliseconds. It
+ * keeps statistics of what it achieved: the polls per second, the periods missed and the jitter, how
+ * late each poll started from its scheduled time. They tell when the device couldn't keep up.
+ *
+ * The files are kept open by SysfsFileReaders, so a poll doesn't allocate any memory. The policies are
+ * discovered by the thread itself, start() doesn't read any file. If an output file is set the report
+ * of the whole run (see appendReport()) is written to it when the thread finishes.
+ */
+public class CurFreqSampler implements Runnable {
+
+	public static final int MIN_PERIOD_MS = 1;
+	public static final int MAX_PERIOD_MS = 10;
+	// Changes kept in the timeline of each policy.
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	private final CpuTopology topology;
+	private final long periodNs;
+	private final int capacity;
+	private File outputFile = null;
+	private Thread thread = null;
+	private volatile boolean running = false;
+	private volatile CurFreqTimeline timeline = null;
+	private final Object readyLock = new Object();
+	// Statistics of the polls, only written by the sampling thread.
+	private volatile long startNs = 0;
+	private volatile long startBootTimeNs = 0;
+	private volatile long lastPollNs = 0;
+	private volatile long polls = 0;
+	private volatile long missedPeriods = 0;
+	private volatile long totalJitterNs = 0;
+	private volatile long maxJitterNs = 0;
+	private boolean readFailed = false;
+
+	public CurFreqSampler(CpuTopology topology, int periodMs, int capacity) {
+		if (periodMs < MIN_PERIOD_MS || periodMs > MAX_PERIOD_MS)
+			throw new IllegalArgumentException("The period must be between " + MIN_PERIOD_MS + " and " + MAX_PERIOD_MS
+					+ "ms, periodMs=" + periodMs);
+		this.topology = topology;
+		this.periodNs = periodMs * 1000000L;
+		this.capacity = capacity;
+	}
+
+	// File where the report is written at the end, none by default. Must be called before start().
+	public void setOutputFile(File outputFile) {
+		this.outputFile = outputFile;
+	}
+
+	public long getPeriodMs() {
+		return periodNs / 1000000L;
+	}
+
+	// Timeline of the changes, null until the thread has found the policies.
+	public CurFreqTimeline getTimeline() {
+		return timeline;
+	}
+
+	// Number of polls of all the policies so far.
+	public long getPolls() {
+		return polls;
+	}
+
+	// Periods skipped because a poll started after the next one was due.
+	public long getMissedPeriods() {
+		return missedPeriods;
+	}
+
+	// Polls per second since the start, in tenths to avoid floating point in the reports.
+	public long getRateDeci() {
+		long elapsedNs = lastPollNs - startNs;
+		return elapsedNs > 0 ? (polls - 1) * 10000000000L / elapsedNs : 0;
+	}
+
+	// Mean delay of the polls from their scheduled time.
+	public long getMeanJitterNs() {
+		long n = polls;
+		return n > 0 ? totalJitterNs / n : 0;
+	}
+
+	public long getMaxJitterNs() {
+		return maxJitterNs;
+	}
+
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		running = true;
+		thread = new Thread(this, "CurFreqSampler");
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	// Asks the thread to finish, it doesn't wait. See join().
+	public void stop() {
+		running = false;
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+
+	// Waits until the thread has finished and written its report.
+	public void join() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t != null)
+			t.join();
+	}
+
+	/*
+	 * Waits up to timeoutMs for the thread to find the policies and returns the timeline, null if it's
+	 * not ready in that time.
+	 */
+	public CurFreqTimeline awaitTimeline(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		synchronized (readyLock) {
+			while (timeline == null && running) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					break;
+				readyLock.wait(left);
+			}
+			return timeline;
+		}
+	}
+
+	@Override
+	public void run() {
+		int[] cpuIds = topology.getPresentCpus();
+		if (cpuIds.length == 0) {
+			Log.e(getClass().getName(), "Error, the CPUs of the device couldn't be read, using CPU 0");
+			cpuIds = new int[] { 0 };
+		}
+		CpuFreqPolicy[] policies = topology.getFreqPolicies(cpuIds);
+		SysfsFileReader[] readers = new SysfsFileReader[policies.length];
+		for (int i = 0; i < policies.length; i++) {
+			readers[i] = new SysfsFileReader(policies[i].getScalingCurFreqFile(), 64);
+		}
+		SystemPaths paths = topology.getPaths() != null ? topology.getPaths() : new SystemPaths();
+		BootClock bootClock = new BootClock(paths);
+		boolean calibrated = bootClock.calibrate();
+		bootClock.close();
+		CurFreqTimeline timeline = new CurFreqTimeline(policies, capacity);
+		try {
+			long start = System.nanoTime();
+			startNs = start;
+			startBootTimeNs = calibrated ? bootClock.toBootTimeNs(start) : 0;
+			synchronized (readyLock) {
+				this.timeline = timeline;
+				readyLock.notifyAll();
+			}
+			long period = 0;
+			while (running) {
+				long scheduled = start + period * periodNs;
+				long now = System.nanoTime();
+				while (running && now < scheduled) {
+					LockSupport.parkNanos(scheduled - now);
+					now = System.nanoTime();
+				}
+				if (!running)
+					break;
+				poll(readers, timeline, scheduled, now);
+				period++;
+				now = System.nanoTime();
+				if (start + period * periodNs <= now) {
+					// The poll took longer than the period, skip the periods already missed.
+					long next = (now - start) / periodNs + 1;
+					missedPeriods += next - period;
+					period = next;
+				}
+			}
+		} finally {
+			for (int i = 0; i < readers.length; i++) {
+				readers[i].close();
+			}
+			synchronized (readyLock) {
+				readyLock.notifyAll();
+			}
+		}
+		Log.i(getClass().getName(), "High rate sampling stopped after " + polls + " polls, rate "
+				+ getRateDeci() / 10 + "Hz, jitter mean=" + getMeanJitterNs() / 1000 + "us max="
+				+ getMaxJitterNs() / 1000 + "us, " + missedPeriods + " periods missed");
+		if (outputFile != null)
+			writeReport(outputFile);
+	}
+
+	private void poll(SysfsFileReader[] readers, CurFreqTimeline timeline, long scheduled, long now) {
+		for (int i = 0; i < readers.length; i++) {
+			try {
+				timeline.record(i, now, CpuFreqSampler.readValue(readers[i]));
+			} catch (IOException e) {
+				// Logged only once, a policy can be offline for a while.
+				if (!readFailed)
+					Log.e(getClass().getName(), "Error reading the current frequency, " + e.getMessage());
+				readFailed = true;
+			}
+		}
+		long jitter = now - scheduled;
+		totalJitterNs += jitter;
+		if (jitter > maxJitterNs)
+			maxJitterNs = jitter;
+		lastPollNs = now;
+		polls++;
+	}
+
+	/*
+	 * Appends the statistics of the polls and the timeline of the last sinceMs milliseconds (all the
+	 * timeline kept if it's negative), with times in microseconds from the start:
+	 *
+	 * curfreq period_ms=1 polls=5000 rate_hz=999.8 missed=2 jitter_mean_us=60 jitter_max_us=1500 boot_ns=3600000000
+	 * policy=0 cpus=0,1 changes=2 shortest_us=1000
+	 * change t_us=0 khz=300000
+	 *
+	 * boot_ns is the time since boot of the start, 0 if it's not known. See CurFreqTimeline.append().
+	 */
+	public void appendReport(StringBuilder sb, long sinceMs) {
+		long now = System.nanoTime();
+		sb.append("curfreq period_ms=").append(getPeriodMs()).append(" polls=").append(polls).append(" rate_hz=");
+		TextReport.appendPerMille(sb, getRateDeci()).append(" missed=").append(missedPeriods)
+				.append(" jitter_mean_us=").append(getMeanJitterNs() / 1000).append(" jitter_max_us=")
+				.append(getMaxJitterNs() / 1000).append(" boot_ns=").append(startBootTimeNs).append('\n');
+		CurFreqTimeline t = timeline;
+		if (t != null)
+			t.append(sb, startNs, sinceMs < 0 || sinceMs >= (now - startNs) / 1000000L ? startNs
+					: now - sinceMs * 1000000L, now);
+	}
+
+	private void writeReport(File file) {
+		StringBuilder sb = new StringBuilder();
+		appendReport(sb, -1);
+		try {
+			File parent = file.getParentFile();
+			if (parent != null)
+				parent.mkdirs();
+			FileWriter writer = new FileWriter(file);
+			try {
+				writer.write(sb.toString());
+			} finally {
+				writer.close();
+			}
+			Log.i(getClass().getName(), "High rate timeline saved in " + file);
+		} catch (IOException e) {
+			Log.e(e.getClass().getName(), e.getMessage(), e);
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * Run-length encoded timeline of the current frequency of each cpufreq policy, written by a
+ * CurFreqSampler. Only the changes are stored: the time of the reading that saw a new frequency and
+ * the frequency, so a policy that stays at the same frequency costs nothing however often it's
+ * polled. Each policy keeps its last capacity changes in a ring of primitive arrays, older ones are
+ * overwritten and counted by getDroppedChanges().
+ *
+ * Times are System.nanoTime(). Thread safe: the sampler records while other threads report.
+ */
+public class CurFreqTimeline {
+
+	private final CpuFreqPolicy[] policies;
+	private final int capacity;
+	// Ring of changes of each policy, change i is stored in i % capacity.
+	private final long[][] times;
+	private final long[][] frequencies;
+	// Changes recorded since the start for each policy.
+	private final long[] changes;
+
+	public CurFreqTimeline(CpuFreqPolicy[] policies, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("The timeline needs room for one change, capacity=" + capacity);
+		this.policies = policies.clone();
+		this.capacity = capacity;
+		times = new long[policies.length][capacity];
+		frequencies = new long[policies.length][capacity];
+		changes = new long[policies.length];
+	}
+
+	public int getNumPolicies() {
+		return policies.length;
+	}
+
+	public CpuFreqPolicy getPolicy(int policyIndex) {
+		return policies[policyIndex];
+	}
+
+	/*
+	 * Records that the policy was at frequency at timeNs. Returns true if it's a change, false if it
+	 * was already at that frequency and nothing was stored.
+	 */
+	public synchronized boolean record(int policyIndex, long timeNs, long frequency) {
+		long n = changes[policyIndex];
+		if (n > 0 && frequencies[policyIndex][(int) ((n - 1) % capacity)] == frequency)
+			return false;
+		int i = (int) (n % capacity);
+		times[policyIndex][i] = timeNs;
+		frequencies[policyIndex][i] = frequency;
+		changes[policyIndex] = n + 1;
+		return true;
+	}
+
+	// Changes recorded for a policy since the start, including the first frequency seen.
+	public synchronized long getNumChanges(int policyIndex) {
+		return changes[policyIndex];
+	}
+
+	// Changes that were overwritten because the ring was full.
+	public synchronized long getDroppedChanges(int policyIndex) {
+		return Math.max(0, changes[policyIndex] - capacity);
+	}
+
+	// Last frequency of a policy, -1 if it was never read.
+	public synchronized long getFrequency(int policyIndex) {
+		long n = changes[policyIndex];
+		return n > 0 ? frequencies[policyIndex][(int) ((n - 1) % capacity)] : -1;
+	}
+
+	/*
+	 * Appends the timeline between sinceNs and untilNs, with times in microseconds from originNs. Each
+	 * policy has a line with the changes in that time and the shortest stay in a frequency that started
+	 * and ended in it (-1 if none did), the spikes residencies can't show, followed by one line per
+	 * change. The frequency at sinceNs is the first one, at sinceNs:
+	 *
+	 * policy=0 cpus=0,1 changes=2 shortest_us=1000
+	 * change t_us=0 khz=300000
+	 * change t_us=52000 khz=1200000
+	 * change t_us=53000 khz=300000
+	 */
+	public synchronized void append(StringBuilder sb, long originNs, long sinceNs, long untilNs) {
+		for (int p = 0; p < policies.length; p++) {
+			long n = changes[p];
+			long first = Math.max(0, n - capacity);
+			// Last change before the window, which sets the frequency at its start.
+			long start = first;
+			while (start + 1 < n && times[p][(int) ((start + 1) % capacity)] <= sinceNs)
+				start++;
+			long end = start;
+			while (end < n && times[p][(int) (end % capacity)] <= untilNs)
+				end++;
+			long shortest = -1;
+			for (long c = start + 1; c + 1 < end; c++) {
+				long stay = times[p][(int) ((c + 1) % capacity)] - times[p][(int) (c % capacity)];
+				if (shortest < 0 || stay < shortest)
+					shortest = stay;
+			}
+			sb.append("policy=").append(policies[p].getId()).append(" cpus=")
+					.append(policies[p].getCpuList().replace(' ', ',')).append(" changes=")
+					.append(Math.max(0, end - start - 1)).append(" shortest_us=")
+					.append(shortest < 0 ? -1 : shortest / 1000).append('\n');
+			for (long c = start; c < end; c++) {
+				int i = (int) (c % capacity);
+				sb.append("change t_us=").append((Math.max(times[p][i], sinceNs) - originNs) / 1000).append(" khz=")
+						.append(frequencies[p][i]).append('\n');
+			}
+		}
+	}
+
+}
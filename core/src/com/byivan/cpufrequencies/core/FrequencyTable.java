@@ -0,0 +1,96 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.util.Arrays;
+
+/*
+ * Frequencies supported by a CPU, sorted in ascending order. time_in_state doesn't guarantee any
+ * order, so the table also keeps the position of each line of the file (row) in the sorted array
+ * (slot). Tables are interned by CpuFreqLayout: CPUs with the same frequencies share one instance.
+ */
+public final class FrequencyTable {
+
+	// Sorted frequencies in KHz.
+	private final long[] frequencies;
+	// Slot in frequencies of each row of time_in_state, in the order they are read.
+	private final int[] slotOfRow;
+	// Frequencies in the order of the file, used to compare tables.
+	private final long[] rowFrequencies;
+
+	/*
+	 * Creates a table from the first numRows frequencies of rowFrequencies, in the order they appear
+	 * in the file time_in_state.
+	 */
+	public FrequencyTable(long[] rowFrequencies, int numRows) {
+		this.rowFrequencies = new long[numRows];
+		System.arraycopy(rowFrequencies, 0, this.rowFrequencies, 0, numRows);
+		frequencies = this.rowFrequencies.clone();
+		Arrays.sort(frequencies);
+		slotOfRow = new int[numRows];
+		for (int row = 0; row < numRows; row++) {
+			slotOfRow[row] = Arrays.binarySearch(frequencies, this.rowFrequencies[row]);
+		}
+	}
+
+	public int size() {
+		return frequencies.length;
+	}
+
+	public long getFrequency(int slot) {
+		return frequencies[slot];
+	}
+
+	public int getSlotOfRow(int row) {
+		return slotOfRow[row];
+	}
+
+	// Returns the slot of a frequency or a negative value if the frequency is not in the table.
+	public int indexOf(long frequency) {
+		return Arrays.binarySearch(frequencies, frequency);
+	}
+
+	/*
+	 * Returns true if the first numRows frequencies of rowFrequencies are the same, and in the same
+	 * order, as the ones used to create this table.
+	 */
+	public boolean matches(long[] rowFrequencies, int numRows) {
+		if (numRows != this.rowFrequencies.length)
+			return false;
+		for (int row = 0; row < numRows; row++) {
+			if (rowFrequencies[row] != this.rowFrequencies[row])
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof FrequencyTable))
+			return false;
+		return Arrays.equals(rowFrequencies, ((FrequencyTable) o).rowFrequencies);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(rowFrequencies);
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * Logging of the profiler core, with the same methods as android.util.Log so the code reads the same
+ * on every platform. Messages go to the installed Logger, by default the standard error. Installing a
+ * logger is not synchronized with the logging calls, it must be done before starting the profiling.
+ */
+public final class Log {
+
+	private static volatile Logger logger = new StandardErrorLogger();
+
+	private Log() {
+	}
+
+	public static void setLogger(Logger logger) {
+		Log.logger = logger != null ? logger : new StandardErrorLogger();
+	}
+
+	public static Logger getLogger() {
+		return logger;
+	}
+
+	public static void i(String tag, String msg) {
+		logger.i(tag, msg);
+	}
+
+	public static void w(String tag, String msg) {
+		logger.w(tag, msg);
+	}
+
+	public static void e(String tag, String msg) {
+		logger.e(tag, msg, null);
+	}
+
+	public static void e(String tag, String msg, Throwable tr) {
+		logger.e(tag, msg, tr);
+	}
+
+	// Lines with the format of logcat, "I/tag: message".
+	private static final class StandardErrorLogger implements Logger {
+
+		@Override
+		public void i(String tag, String msg) {
+			System.err.println("I/" + tag + ": " + msg);
+		}
+
+		@Override
+		public void w(String tag, String msg) {
+			System.err.println("W/" + tag + ": " + msg);
+		}
+
+		@Override
+		public void e(String tag, String msg, Throwable tr) {
+			System.err.println("E/" + tag + ": " + msg);
+			if (tr != null)
+				tr.printStackTrace();
+		}
+
+	}
+
+}
@@ -0,0 +1,357 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/*
+ * Background thread that runs a profiling session: it discovers the CPUs and policies, takes the
+ * initial reading, a snapshot every periodMs milliseconds (if periodMs is positive) and the final
+ * reading when stop() is called. Snapshots are published to a SnapshotPipeline, whose writer thread
+ * delivers them to the sinks, so the thread that starts and stops the session never touches a
+ * file.
+ *
+ * The time of each reading is computed from the start time, so the period doesn't drift when a
+ * reading takes longer than usual. If the thread gets behind it skips the missed periods instead of
+ * sampling several times in a row.
+ *
+ * Other threads can ask for an extra reading with requestSample(), e.g. when they need a sample
+ * fresher than the last one. It is taken by the sampling thread as soon as possible and doesn't
+ * change the schedule of the periodic ones. The period can be changed while the session runs with
+ * setPeriodMs(), the schedule then starts again from that moment.
+ *
+ * The policies can be read concurrently (see setReadThreads() and CpuFreqSampler). The duration and
+ * the skew of the readings are kept as statistics, so clients can tell how close to a single instant
+ * the values of the samples are.
+ *
+ * Every sample is stamped with the monotonic time of its reading and the time since boot (BootClock),
+ * and has the busy time of each CPU from /proc/stat when the procfs of the topology has it, and the
+ * time and usage of the cpuidle states of the CPUs that have them.
+ */
+public class PeriodicSampler implements Runnable {
+
+	// Period of the checks of the boot clock, which detect a suspend.
+	private static final long CLOCK_CHECK_INTERVAL_NS = 1000000000L;
+	// Reasons to wake up the sampling thread.
+	private static final int TIMEOUT = 0;
+	private static final int STOPPED = 1;
+	private static final int REQUESTED = 2;
+	private static final int RESCHEDULED = 3;
+
+	private final CpuTopology topology;
+	private long periodMs;
+	private boolean periodChanged = false;
+	private final int queueCapacity;
+	private final SnapshotPipeline.Backpressure backpressure;
+	private final long flushIntervalMs;
+	private final ArrayList<ProfileSink> sinks = new ArrayList<ProfileSink>();
+	private final Object lock = new Object();
+	private Thread thread = null;
+	private volatile boolean running = false;
+	private boolean sampleRequested = false;
+	private volatile SnapshotPipeline pipeline = null;
+	private volatile int readThreads = 1;
+	// Statistics of the readings, only written by the sampling thread.
+	private volatile long readings = 0;
+	private volatile long totalReadNs = 0;
+	private volatile long totalSkewNs = 0;
+	private volatile long maxSkewNs = 0;
+	private volatile long lastSkewNs = 0;
+	// Only used by the sampling thread.
+	private BootClock bootClock = null;
+	private long lastClockCheckNs = 0;
+
+	/*
+	 * periodMs is the sampling period, 0 to take only the initial and final readings. queueCapacity,
+	 * backpressure and flushIntervalMs configure the SnapshotPipeline.
+	 */
+	public PeriodicSampler(CpuTopology topology, long periodMs, int queueCapacity,
+			SnapshotPipeline.Backpressure backpressure, long flushIntervalMs) {
+		if (periodMs < 0)
+			throw new IllegalArgumentException("Sampling period can't be negative, periodMs=" + periodMs);
+		this.topology = topology;
+		this.periodMs = periodMs;
+		this.queueCapacity = queueCapacity;
+		this.backpressure = backpressure;
+		this.flushIntervalMs = flushIntervalMs;
+	}
+
+	// Sinks must be added before start().
+	public void addSink(ProfileSink sink) {
+		sinks.add(sink);
+	}
+
+	public long getPeriodMs() {
+		synchronized (lock) {
+			return periodMs;
+		}
+	}
+
+	// Changes the sampling period, 0 to stop the periodic readings. Can be called at any time.
+	public void setPeriodMs(long periodMs) {
+		if (periodMs < 0)
+			throw new IllegalArgumentException("Sampling period can't be negative, periodMs=" + periodMs);
+		synchronized (lock) {
+			if (this.periodMs == periodMs)
+				return;
+			this.periodMs = periodMs;
+			periodChanged = true;
+			lock.notifyAll();
+		}
+	}
+
+	/*
+	 * Number of threads that read the policies of each sample concurrently, 1 (one after another) by
+	 * default. Must be called before start().
+	 */
+	public void setReadThreads(int readThreads) {
+		if (readThreads < 1)
+			throw new IllegalArgumentException("At least one thread is needed to read, readThreads=" + readThreads);
+		this.readThreads = readThreads;
+	}
+
+	public int getReadThreads() {
+		return readThreads;
+	}
+
+	// Number of successful readings so far.
+	public long getReadings() {
+		return readings;
+	}
+
+	// Mean time to read all the policies of a sample.
+	public long getMeanReadNs() {
+		long n = readings;
+		return n > 0 ? totalReadNs / n : 0;
+	}
+
+	// Skew of the last reading, see CpuFreqSnapshot.getSkewNs().
+	public long getLastSkewNs() {
+		return lastSkewNs;
+	}
+
+	public long getMeanSkewNs() {
+		long n = readings;
+		return n > 0 ? totalSkewNs / n : 0;
+	}
+
+	public long getMaxSkewNs() {
+		return maxSkewNs;
+	}
+
+	// Pipeline of the session, null until the sampling thread has created it.
+	public SnapshotPipeline getPipeline() {
+		return pipeline;
+	}
+
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		running = true;
+		thread = new Thread(this, "CpuFreqSampler");
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	/*
+	 * Asks the thread to take the final reading and finish. It doesn't wait, the readings and the
+	 * sinks are finished in the background. See join().
+	 */
+	public void stop() {
+		synchronized (lock) {
+			running = false;
+			lock.notifyAll();
+		}
+	}
+
+	/*
+	 * Asks the sampling thread to take a reading now, outside of the periodic schedule. It doesn't
+	 * wait, the sample is delivered to the sinks like the others.
+	 */
+	public void requestSample() {
+		synchronized (lock) {
+			sampleRequested = true;
+			lock.notifyAll();
+		}
+	}
+
+	// Waits until the session has been completely written.
+	public void join() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t != null)
+			t.join();
+		SnapshotPipeline p = pipeline;
+		if (p != null)
+			p.join();
+	}
+
+	@Override
+	public void run() {
+		// Read the ids of the CPUs present in the device, no process is created.
+		int[] cpuIds = topology.getPresentCpus();
+		if (cpuIds.length == 0) {
+			Log.e(getClass().getName(), "Error, the CPUs of the device couldn't be read, using CPU 0");
+			cpuIds = new int[] { 0 };
+		}
+		// CPUs that share a cpufreq policy share time_in_state, read it once per policy.
+		SystemPaths paths = topology.getPaths() != null ? topology.getPaths() : new SystemPaths();
+		File procStat = paths.getProcStatFile();
+		CpuFreqSampler sampler = new CpuFreqSampler(topology.getFreqPolicies(cpuIds), readThreads,
+				procStat.exists() ? procStat : null, topology.getCpuRoot());
+		bootClock = new BootClock(paths);
+		if (!bootClock.calibrate())
+			Log.w(getClass().getName(), "Time since boot not available, " + paths.getUptimeFile() + " can't be read");
+		lastClockCheckNs = System.nanoTime();
+		SnapshotPipeline pipeline = new SnapshotPipeline(sampler.getLayout(), queueCapacity, backpressure,
+				sinks.toArray(new ProfileSink[sinks.size()]), flushIntervalMs);
+		this.pipeline = pipeline;
+		pipeline.start();
+		boolean interrupted = false;
+		try {
+			// Initial reading
+			sample(sampler, pipeline);
+			sampleUntilStopped(sampler, pipeline);
+			// With the interrupt set the final reading would fail, the files are read through interruptible
+			// channels and the pipeline doesn't wait for a free snapshot. It's set again once closed.
+			interrupted = Thread.interrupted();
+			// Final reading
+			sample(sampler, pipeline);
+		} finally {
+			pipeline.close();
+			sampler.close();
+			bootClock.close();
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		Log.i(getClass().getName(), "Sampling stopped after " + pipeline.getPublishedCount() + " samples, read in "
+				+ getMeanReadNs() / 1000 + "us with " + sampler.getNumThreads() + " threads, skew mean="
+				+ getMeanSkewNs() / 1000 + "us max=" + getMaxSkewNs() / 1000 + "us");
+	}
+
+	private void sampleUntilStopped(CpuFreqSampler sampler, SnapshotPipeline pipeline) {
+		boolean scheduled = false;
+		long periodNs = 0;
+		long start = 0;
+		long period = 1;
+		while (true) {
+			long now = System.nanoTime();
+			synchronized (lock) {
+				if (periodChanged || !scheduled) {
+					// Schedule from now with the current period.
+					scheduled = true;
+					periodChanged = false;
+					periodNs = periodMs * 1000000L;
+					start = now;
+					period = 1;
+				}
+			}
+			int wakeUp;
+			if (periodNs > 0) {
+				long next = start + period * periodNs;
+				if (next <= now) {
+					// The reading took longer than the period, skip the periods already missed.
+					period = (now - start) / periodNs + 1;
+					next = start + period * periodNs;
+				}
+				wakeUp = sleep(next - now);
+			} else {
+				// Only requested readings.
+				wakeUp = sleep(-1);
+			}
+			if (wakeUp == STOPPED)
+				return;
+			if (wakeUp == RESCHEDULED)
+				continue;
+			sample(sampler, pipeline);
+			// A requested reading doesn't move the schedule.
+			if (wakeUp == TIMEOUT)
+				period++;
+		}
+	}
+
+	private boolean sample(CpuFreqSampler sampler, SnapshotPipeline pipeline) {
+		CpuFreqSnapshot snapshot = pipeline.acquire();
+		if (snapshot == null)
+			return false;
+		if (sampler.sample(snapshot)) {
+			stampBootTime(snapshot);
+			long skewNs = snapshot.getSkewNs();
+			totalReadNs += snapshot.getEndNs() - snapshot.getStartNs();
+			totalSkewNs += skewNs;
+			lastSkewNs = skewNs;
+			if (skewNs > maxSkewNs)
+				maxSkewNs = skewNs;
+			readings++;
+			pipeline.publish(snapshot);
+			return true;
+		}
+		pipeline.discard(snapshot);
+		return false;
+	}
+
+	// Sets the time since boot of the reading, checking the clock once in a while.
+	private void stampBootTime(CpuFreqSnapshot snapshot) {
+		if (!bootClock.isCalibrated()) {
+			snapshot.setBootTimeNs(0);
+			return;
+		}
+		if (snapshot.getStartNs() - lastClockCheckNs > CLOCK_CHECK_INTERVAL_NS) {
+			lastClockCheckNs = snapshot.getStartNs();
+			if (bootClock.check())
+				Log.i(getClass().getName(), "Boot clock calibrated again, offset " + bootClock.getOffsetNs() + "ns");
+		}
+		snapshot.setBootTimeNs(bootClock.toBootTimeNs(snapshot.getStartNs()));
+	}
+
+	/*
+	 * Waits for sleepNs nanoseconds (forever if it's negative), until stop() is called, a reading is
+	 * requested or the period changes. The thread is not interrupted because that would close the
+	 * files of the readers; if it is anyway the interrupt is kept and STOPPED returned, run() clears
+	 * it for the final reading. Returns TIMEOUT, STOPPED, REQUESTED or RESCHEDULED.
+	 */
+	private int sleep(long sleepNs) {
+		long deadline = System.nanoTime() + sleepNs;
+		synchronized (lock) {
+			while (running && !sampleRequested && !periodChanged) {
+				long left = deadline - System.nanoTime();
+				if (sleepNs >= 0 && left <= 0)
+					return TIMEOUT;
+				try {
+					if (sleepNs >= 0)
+						lock.wait(left / 1000000L, (int) (left % 1000000L));
+					else
+						lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return STOPPED;
+				}
+			}
+			if (!running)
+				return STOPPED;
+			if (periodChanged)
+				return RESCHEDULED;
+			sampleRequested = false;
+			return REQUESTED;
+		}
+	}
+
+}
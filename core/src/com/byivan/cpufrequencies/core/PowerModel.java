@@ -0,0 +1,122 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * A PowerProfile bound to the layout of the snapshots, to estimate the charge and the energy used by
+ * each CPU from a SnapshotDelta. The current of every (policy, frequency) slot is looked up once
+ * here, so an estimate only multiplies and doesn't allocate memory.
+ *
+ * Clusters of the profile are matched to the policies in order of id (cluster0 to the policy with
+ * the lowest id), the policies left over use the last cluster. A CPU is running a fraction of the
+ * time of each frequency equal to its busy time from /proc/stat, or all the time if it's not
+ * available, which overestimates:
+ *
+ * charge = busy * (sum of core current * time in frequency + cluster current / cpus of the policy *
+ * time) + (1 - busy) * idle current * time
+ *
+ * Charges are in mAs (milliampere second), toMicroAmpHours() and toMilliJoules() convert them.
+ */
+public final class PowerModel {
+
+	// Seconds in a unit of time_in_state.
+	private static final double SECONDS_PER_TICK = 0.01;
+
+	private final PowerProfile profile;
+	private final CpuFreqLayout layout;
+	// Current of one core in each slot of the layout and cluster and idle current of each policy.
+	private final double[] slotCurrent;
+	private final double[] clusterCurrent;
+	private final double[] idleCurrent;
+
+	public PowerModel(PowerProfile profile, CpuFreqLayout layout) {
+		this.profile = profile;
+		this.layout = layout;
+		slotCurrent = new double[layout.size()];
+		clusterCurrent = new double[layout.getNumPolicies()];
+		idleCurrent = new double[layout.getNumPolicies()];
+		if (profile.getNumClusters() < layout.getNumPolicies())
+			Log.w(getClass().getName(), "Power profile with " + profile.getNumClusters() + " clusters for "
+					+ layout.getNumPolicies() + " policies, the last cluster is used for the rest");
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			int cluster = Math.min(p, profile.getNumClusters() - 1);
+			FrequencyTable frequencies = layout.getFrequencyTable(p);
+			int offset = layout.getOffset(p);
+			for (int slot = 0; slot < frequencies.size(); slot++) {
+				slotCurrent[offset + slot] = profile.getCorePower(cluster, frequencies.getFrequency(slot));
+			}
+			clusterCurrent[p] = profile.getClusterPower(cluster) / layout.getPolicy(p).getNumCpus();
+			idleCurrent[p] = profile.getIdlePower(cluster);
+		}
+	}
+
+	public PowerProfile getProfile() {
+		return profile;
+	}
+
+	public CpuFreqLayout getLayout() {
+		return layout;
+	}
+
+	/*
+	 * Charge used by a CPU, indexed like CpuFreqLayout.getCpuId(), between the snapshots of delta in
+	 * mAs, or -1 if its policy is not valid.
+	 */
+	public double getCpuCharge(SnapshotDelta delta, int cpuIndex) {
+		int p = layout.getPolicyIndexOfCpu(cpuIndex);
+		if (!delta.isValid(p))
+			return -1;
+		long[] values = delta.getValues();
+		int start = layout.getOffset(p);
+		int end = start + layout.getFrequencyTable(p).size();
+		double active = 0;
+		long time = 0;
+		for (int i = start; i < end; i++) {
+			active += slotCurrent[i] * values[i];
+			time += values[i];
+		}
+		active += clusterCurrent[p] * time;
+		double busy = 1;
+		long cpuBusy = delta.getCpuBusy()[cpuIndex];
+		long cpuTime = cpuBusy + delta.getCpuIdle()[cpuIndex];
+		if (cpuBusy >= 0 && cpuTime > 0)
+			busy = (double) cpuBusy / cpuTime;
+		return (busy * active + (1 - busy) * idleCurrent[p] * time) * SECONDS_PER_TICK;
+	}
+
+	// Charge used by all the CPUs of the valid policies in mAs.
+	public double getTotalCharge(SnapshotDelta delta) {
+		double total = 0;
+		for (int i = 0; i < layout.getNumCpus(); i++) {
+			double charge = getCpuCharge(delta, i);
+			if (charge > 0)
+				total += charge;
+		}
+		return total;
+	}
+
+	public static long toMicroAmpHours(double chargeMas) {
+		return Math.round(chargeMas * 1000 / 3600);
+	}
+
+	// Energy of a charge at the nominal voltage of the profile.
+	public long toMilliJoules(double chargeMas) {
+		return Math.round(chargeMas * profile.getVoltageMv() / 1000);
+	}
+
+}
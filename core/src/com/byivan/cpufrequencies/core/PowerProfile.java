@@ -0,0 +1,219 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/*
+ * Power model of the CPUs, read from a file in the format of Android's power_profile.xml. The values
+ * are currents in mA at the nominal voltage of the battery, like in Android:
+ *
+ * <device name="Android">
+ *   <array name="cpu.clusters.cores"><value>4</value><value>4</value></array>
+ *   <array name="cpu.core_speeds.cluster0"><value>300000</value><value>1000000</value></array>
+ *   <array name="cpu.core_power.cluster0"><value>10</value><value>40</value></array>
+ *   <item name="cpu.cluster_power.cluster0">5</item>
+ *   <item name="cpu.idle">4</item>
+ *   ...
+ * </device>
+ *
+ * cpu.core_speeds.clusterN has the frequencies of a cluster in kHz and cpu.core_power.clusterN the
+ * current of one core running at each of them, cpu.cluster_power.clusterN (optional) is added while
+ * the cluster is running and cpu.idle is the current of all the CPUs when they are idle. Files
+ * of a single cluster with cpu.speeds and cpu.active are also accepted. Two items are not in
+ * Android's format: cpu.idle.clusterN, the idle current of one core of the cluster, used instead of
+ * cpu.idle if given, and battery.voltage, the nominal voltage in mV to convert the charge into
+ * energy (3800 if not given). Other items are ignored.
+ *
+ * Clusters are matched to the cpufreq policies in order of id, see PowerModel.
+ */
+public final class PowerProfile {
+
+	public static final int DEFAULT_VOLTAGE_MV = 3800;
+	private static final String DISALLOW_DOCTYPE = "http://apache.org/xml/features/disallow-doctype-decl";
+
+	private final long[][] speeds;
+	private final double[][] corePower;
+	private final double[] clusterPower;
+	private final double[] idlePower;
+	private final int voltageMv;
+
+	private PowerProfile(long[][] speeds, double[][] corePower, double[] clusterPower, double[] idlePower,
+			int voltageMv) {
+		this.speeds = speeds;
+		this.corePower = corePower;
+		this.clusterPower = clusterPower;
+		this.idlePower = idlePower;
+		this.voltageMv = voltageMv;
+	}
+
+	public static PowerProfile load(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return parse(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	// Parses a power profile, throws an IOException if it's not valid.
+	public static PowerProfile parse(InputStream in) throws IOException {
+		Document document;
+		// The file is given by the user and power_profile.xml never has a DTD, so entities are not
+		// resolved and, where the parser supports it, a DOCTYPE is rejected.
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setExpandEntityReferences(false);
+		try {
+			factory.setFeature(DISALLOW_DOCTYPE, true);
+		} catch (ParserConfigurationException e) {
+			// Old Android parsers don't know the feature, they don't load external DTDs either.
+		}
+		try {
+			document = factory.newDocumentBuilder().parse(in);
+		} catch (ParserConfigurationException e) {
+			throw new IOException("Power profile can't be parsed, " + e.getMessage());
+		} catch (SAXException e) {
+			throw new IOException("Invalid power profile, " + e.getMessage());
+		}
+		HashMap<String, Double> items = new HashMap<String, Double>();
+		HashMap<String, double[]> arrays = new HashMap<String, double[]>();
+		NodeList nodes = document.getDocumentElement().getChildNodes();
+		for (int i = 0; i < nodes.getLength(); i++) {
+			if (nodes.item(i).getNodeType() != Node.ELEMENT_NODE)
+				continue;
+			Element element = (Element) nodes.item(i);
+			String name = element.getAttribute("name");
+			if ("item".equals(element.getTagName())) {
+				items.put(name, Double.valueOf(parseValue(name, element)));
+			} else if ("array".equals(element.getTagName())) {
+				NodeList values = element.getElementsByTagName("value");
+				double[] array = new double[values.getLength()];
+				for (int j = 0; j < array.length; j++) {
+					array[j] = parseValue(name, (Element) values.item(j));
+				}
+				arrays.put(name, array);
+			}
+		}
+		// Old profiles have a single cluster.
+		if (!arrays.containsKey("cpu.core_speeds.cluster0") && arrays.containsKey("cpu.speeds")) {
+			arrays.put("cpu.core_speeds.cluster0", arrays.get("cpu.speeds"));
+			arrays.put("cpu.core_power.cluster0", arrays.get("cpu.active"));
+		}
+		int numClusters = 0;
+		while (arrays.containsKey("cpu.core_speeds.cluster" + numClusters))
+			numClusters++;
+		if (numClusters == 0)
+			throw new IOException("Invalid power profile, no cpu.core_speeds.cluster0");
+		double[] cores = arrays.get("cpu.clusters.cores");
+		int totalCores = 0;
+		for (int c = 0; c < numClusters; c++) {
+			totalCores += cores != null && c < cores.length ? (int) cores[c] : 1;
+		}
+		Double idle = items.get("cpu.idle");
+		long[][] speeds = new long[numClusters][];
+		double[][] corePower = new double[numClusters][];
+		double[] clusterPower = new double[numClusters];
+		double[] idlePower = new double[numClusters];
+		for (int c = 0; c < numClusters; c++) {
+			double[] clusterSpeeds = arrays.get("cpu.core_speeds.cluster" + c);
+			double[] power = arrays.get("cpu.core_power.cluster" + c);
+			if (power == null || power.length != clusterSpeeds.length)
+				throw new IOException("Invalid power profile, cpu.core_power.cluster" + c
+						+ " must have a value for each speed");
+			speeds[c] = new long[clusterSpeeds.length];
+			for (int i = 0; i < clusterSpeeds.length; i++) {
+				speeds[c][i] = (long) clusterSpeeds[i];
+			}
+			corePower[c] = power;
+			Double cluster = items.get("cpu.cluster_power.cluster" + c);
+			clusterPower[c] = cluster != null ? cluster.doubleValue() : 0;
+			Double clusterIdle = items.get("cpu.idle.cluster" + c);
+			if (clusterIdle != null)
+				idlePower[c] = clusterIdle.doubleValue();
+			else
+				idlePower[c] = idle != null ? idle.doubleValue() / totalCores : 0;
+		}
+		Double voltage = items.get("battery.voltage");
+		return new PowerProfile(speeds, corePower, clusterPower, idlePower,
+				voltage != null ? voltage.intValue() : DEFAULT_VOLTAGE_MV);
+	}
+
+	private static double parseValue(String name, Element element) throws IOException {
+		try {
+			return Double.parseDouble(element.getTextContent().trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid power profile, " + name + " is not a number");
+		}
+	}
+
+	public int getNumClusters() {
+		return speeds.length;
+	}
+
+	// Frequencies of a cluster in kHz.
+	public long[] getSpeeds(int cluster) {
+		return speeds[cluster];
+	}
+
+	// Current in mA of one core of the cluster running at each of its speeds.
+	public double[] getCorePower(int cluster) {
+		return corePower[cluster];
+	}
+
+	// Current in mA added while the cluster is running.
+	public double getClusterPower(int cluster) {
+		return clusterPower[cluster];
+	}
+
+	// Current in mA of one idle core of the cluster.
+	public double getIdlePower(int cluster) {
+		return idlePower[cluster];
+	}
+
+	public int getVoltageMv() {
+		return voltageMv;
+	}
+
+	/*
+	 * Current in mA of one core of the cluster running at frequency, taken from the closest speed
+	 * of the profile.
+	 */
+	public double getCorePower(int cluster, long frequency) {
+		long[] clusterSpeeds = speeds[cluster];
+		int closest = 0;
+		for (int i = 1; i < clusterSpeeds.length; i++) {
+			if (Math.abs(clusterSpeeds[i] - frequency) < Math.abs(clusterSpeeds[closest] - frequency))
+				closest = i;
+		}
+		return corePower[cluster][closest];
+	}
+
+}
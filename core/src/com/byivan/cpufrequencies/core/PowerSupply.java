@@ -0,0 +1,68 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * Battery charge counter of a power supply in sysfs, /sys/class/power_supply/<name>/charge_counter,
+ * in uAh. It decreases while the battery discharges, so the difference between two readings is the
+ * charge used in between, to check a PowerModel against the real discharge. Any file with a number
+ * in uAh can stand in for it, e.g. one updated by an external power monitor. Thread safe.
+ */
+public class PowerSupply {
+
+	public static final String DEFAULT_NAME = "battery";
+
+	private final SysfsFileReader chargeCounter;
+
+	public PowerSupply(SystemPaths paths, String name) {
+		this(new File(paths.getPowerSupplyDirectory(name), "charge_counter"));
+	}
+
+	public PowerSupply(File chargeCounterFile) {
+		chargeCounter = new SysfsFileReader(chargeCounterFile, 64);
+	}
+
+	public File getFile() {
+		return chargeCounter.getFile();
+	}
+
+	// Current value of the charge counter in uAh, or -1 if it can't be read.
+	public synchronized long readChargeUah() {
+		try {
+			int length = chargeCounter.read();
+			byte[] buffer = chargeCounter.getBuffer();
+			long value = 0;
+			int i = 0;
+			while (i < length && buffer[i] >= '0' && buffer[i] <= '9') {
+				value = value * 10 + (buffer[i] - '0');
+				i++;
+			}
+			return i > 0 ? value : -1;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	public synchronized void close() {
+		chargeCounter.close();
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * Parses the per-CPU lines of /proc/stat straight from the raw bytes into primitive arrays, like
+ * TimeInStateParser, so a reading doesn't allocate memory. Each line "cpuN user nice system idle
+ * iowait irq softirq steal guest guest_nice" has the time spent by CPU N in each state, in USER_HZ
+ * ticks (10ms on practically every kernel, the unit of time_in_state). They are summed into busy
+ * time (user, nice, system, irq, softirq and steal; guest is already counted in user) and idle
+ * time (idle and iowait). Offline CPUs have no line.
+ */
+public final class ProcStatParser {
+
+	// Returned by parse() when the content doesn't have the expected format.
+	public static final int INVALID_FORMAT = -1;
+
+	private ProcStatParser() {
+	}
+
+	/*
+	 * Parses the first length bytes of buffer and stores the busy and idle time of CPU N in busy[N]
+	 * and idle[N]; CPUs outside the arrays are ignored and the values of CPUs without a line are not
+	 * modified. The aggregated "cpu" line is skipped and parsing stops at the first line that is not
+	 * a cpu line, before the long interrupt counters. A last line without its end of line was cut and
+	 * is ignored. Returns the number of CPU lines found or INVALID_FORMAT.
+	 */
+	public static int parse(byte[] buffer, int length, long[] busy, long[] idle) {
+		int capacity = Math.min(busy.length, idle.length);
+		int cpus = 0;
+		int i = 0;
+		while (i + 3 <= length && buffer[i] == 'c' && buffer[i + 1] == 'p' && buffer[i + 2] == 'u') {
+			i += 3;
+			int cpu = -1;
+			if (i < length && isDigit(buffer[i])) {
+				cpu = 0;
+				while (i < length && isDigit(buffer[i])) {
+					cpu = cpu * 10 + (buffer[i] - '0');
+					i++;
+				}
+			}
+			long busyTime = 0;
+			long idleTime = 0;
+			int field = 0;
+			while (true) {
+				while (i < length && buffer[i] == ' ')
+					i++;
+				if (i == length)
+					return cpus;
+				if (buffer[i] == '\n')
+					break;
+				long value = 0;
+				int start = i;
+				while (i < length && isDigit(buffer[i])) {
+					value = value * 10 + (buffer[i] - '0');
+					i++;
+				}
+				if (i == start)
+					return INVALID_FORMAT;
+				// 0 user, 1 nice, 2 system, 3 idle, 4 iowait, 5 irq, 6 softirq, 7 steal, 8 guest, 9 guest_nice
+				if (field == 3 || field == 4)
+					idleTime += value;
+				else if (field < 8)
+					busyTime += value;
+				field++;
+			}
+			// At least user, nice, system and idle, older kernels have fewer fields than now.
+			if (field < 4)
+				return INVALID_FORMAT;
+			i++;
+			if (cpu < 0)
+				continue;
+			if (cpu < capacity) {
+				busy[cpu] = busyTime;
+				idle[cpu] = idleTime;
+			}
+			cpus++;
+		}
+		return cpus;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.IOException;
+
+/*
+ * Destination of the samples of a profiling session: a CSV file, a binary trace, memory, logcat...
+ * A session can have several sinks. The SnapshotPipeline delivers the samples to all of them from
+ * its writer thread, so implementations don't need to be thread safe, and computes the delta
+ * between consecutive samples only once for all the sinks. The snapshots and deltas passed belong
+ * to the pipeline and are reused after the call returns.
+ */
+public interface ProfileSink {
+
+	// Called once with the first reading of the session, before any other method.
+	void open(CpuFreqSnapshot initial) throws IOException;
+
+	/*
+	 * Called for every sample after the first one. previous is the last sample delivered before
+	 * current and delta the difference between them. If samples were dropped the interval between
+	 * them covers the dropped ones.
+	 */
+	void onSample(CpuFreqSnapshot previous, CpuFreqSnapshot current, SnapshotDelta delta) throws IOException;
+
+	// Called periodically, the data received so far should be saved.
+	void flush() throws IOException;
+
+	/*
+	 * Called once at the end of the session with the first and the last samples and the difference
+	 * between them.
+	 */
+	void close(CpuFreqSnapshot initial, CpuFreqSnapshot last, SnapshotDelta total) throws IOException;
+
+}
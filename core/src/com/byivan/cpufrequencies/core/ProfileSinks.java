@@ -0,0 +1,75 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+import java.util.Calendar;
+
+/*
+ * Creates the sinks of the core by name, so every front end (the Android service, the Linux daemon...)
+ * accepts the same names. The files of a session are called <baseName>.csv and <baseName>.trace.
+ */
+public final class ProfileSinks {
+
+	// CSV file, see CsvSessionWriter.
+	public static final String CSV = "csv";
+	// Binary trace, see BinaryTraceWriter.
+	public static final String TRACE = "trace";
+	// Last samples kept in memory, see SnapshotRing.
+	public static final String MEMORY = "memory";
+	public static final int DEFAULT_MEMORY_CAPACITY = 256;
+
+	private ProfileSinks() {
+	}
+
+	/*
+	 * Returns the sink called name, with its file in directory, or null if name is not a sink of the
+	 * core.
+	 */
+	public static ProfileSink create(String name, File directory, String baseName, int memoryCapacity) {
+		if (CSV.equals(name))
+			return new CsvSessionWriter(new File(directory, baseName + ".csv"));
+		if (TRACE.equals(name))
+			return new BinaryTraceWriter(new File(directory, baseName + ".trace"));
+		if (MEMORY.equals(name))
+			return new SnapshotRing(memoryCapacity < 2 ? DEFAULT_MEMORY_CAPACITY : memoryCapacity);
+		return null;
+	}
+
+	// Whether the sink writes a file, so it needs a directory.
+	public static boolean needsDirectory(String name) {
+		return CSV.equals(name) || TRACE.equals(name);
+	}
+
+	// Base name of the files of a session started now, time_in_state_logs_<date>.
+	public static String newSessionName() {
+		return "time_in_state_logs_" + newDate();
+	}
+
+	// The <date> part of the file names, for the files named after something else.
+	public static String newDate() {
+		Calendar rightNow = Calendar.getInstance();
+		return Integer.toString(rightNow.get(Calendar.DAY_OF_MONTH))
+				+ Integer.toString(rightNow.get(Calendar.MONTH))
+				+ Integer.toString(rightNow.get(Calendar.YEAR)) + "_"
+				+ Integer.toString(rightNow.get(Calendar.HOUR_OF_DAY))
+				+ Integer.toString(rightNow.get(Calendar.MINUTE))
+				+ Integer.toString(rightNow.get(Calendar.SECOND));
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Named profiling sessions that run at the same time over one shared SnapshotTimeline. A session
+ * only keeps references to the timeline entries of its start and its marks, so starting or stopping
+ * one doesn't copy snapshots and doesn't read sysfs if the last sample is younger than maxAgeMs.
+ * Sessions are independent: stopping one reports only its own time and leaves the others running.
+ *
+ * With setPower() the reports also have the energy estimated by a PowerProfile and the charge
+ * measured by a PowerSupply between the start and the end of the session.
+ *
+ * Errors (a name already in use, an unknown session, no sample available) are reported with an
+ * IllegalStateException whose message can be shown to the user. Thread safe: the lock of the
+ * sessions only guards the map and the references of the sessions. The samples are acquired from the
+ * timeline, which may wait for a reading, and the reports are built and the charge read without
+ * holding it, so a command waiting for a fresh sample or a slow battery file doesn't block the others.
+ */
+public class SessionManager {
+
+	// Name used by the clients that don't give one.
+	public static final String DEFAULT_SESSION = "default";
+
+	private final SnapshotTimeline timeline;
+	private final long maxAgeNs;
+	private final long timeoutMs;
+	private final HashMap<String, Session> sessions = new HashMap<String, Session>();
+	private PowerProfile powerProfile = null;
+	private PowerSupply powerSupply = null;
+	// powerProfile bound to the layout of the samples, created with the first report.
+	private PowerModel powerModel = null;
+
+	private static final class Session {
+
+		private final String name;
+		private final SnapshotTimeline.Entry start;
+		// Charge counter of the battery at the start, -1 if unknown.
+		private final long startChargeUah;
+		private final ArrayList<String> markLabels = new ArrayList<String>();
+		private final ArrayList<SnapshotTimeline.Entry> marks = new ArrayList<SnapshotTimeline.Entry>();
+
+		Session(String name, SnapshotTimeline.Entry start, long startChargeUah) {
+			this.name = name;
+			this.start = start;
+			this.startChargeUah = startChargeUah;
+		}
+
+	}
+
+	/*
+	 * maxAgeMs is the age of the last sample over which a new reading is requested, timeoutMs how long
+	 * to wait for it.
+	 */
+	public SessionManager(SnapshotTimeline timeline, long maxAgeMs, long timeoutMs) {
+		this.timeline = timeline;
+		this.maxAgeNs = maxAgeMs * 1000000L;
+		this.timeoutMs = timeoutMs;
+	}
+
+	public SnapshotTimeline getTimeline() {
+		return timeline;
+	}
+
+	/*
+	 * Sets the PowerProfile used to estimate the energy in the reports and the PowerSupply whose charge
+	 * is measured during the sessions, both can be null to leave them out. The profile applies to every
+	 * report from now on; the charge only to the sessions started from now on, which read it at start.
+	 */
+	public synchronized void setPower(PowerProfile profile, PowerSupply supply) {
+		powerProfile = profile;
+		powerSupply = supply;
+		powerModel = null;
+	}
+
+	// Starts a session and returns the sequence of its first sample.
+	public long start(String name) {
+		PowerSupply supply;
+		synchronized (this) {
+			if (sessions.containsKey(name))
+				throw new IllegalStateException("session " + name + " already running");
+			supply = powerSupply;
+		}
+		SnapshotTimeline.Entry start = acquire();
+		Session session = new Session(name, start, supply != null ? supply.readChargeUah() : -1);
+		synchronized (this) {
+			// Another client may have started it meanwhile.
+			if (sessions.containsKey(name)) {
+				timeline.release(start);
+				throw new IllegalStateException("session " + name + " already running");
+			}
+			sessions.put(name, session);
+		}
+		return start.getSequence();
+	}
+
+	// Splits a session at the current sample and returns its sequence.
+	public long mark(String name, String label) {
+		get(name);
+		SnapshotTimeline.Entry mark = acquire();
+		synchronized (this) {
+			Session session = sessions.get(name);
+			if (session == null) {
+				timeline.release(mark);
+				throw new IllegalStateException("no session " + name);
+			}
+			session.markLabels.add(label);
+			session.marks.add(mark);
+		}
+		return mark.getSequence();
+	}
+
+	// Report of a session until now, the session keeps running.
+	public SessionReport query(String name) {
+		get(name);
+		SnapshotTimeline.Entry end = acquire();
+		Session session;
+		try {
+			synchronized (this) {
+				// A copy, so the report can be built without the lock even if the session is stopped.
+				session = retain(get(name));
+			}
+		} catch (IllegalStateException e) {
+			timeline.release(end);
+			throw e;
+		}
+		try {
+			return report(session, end);
+		} finally {
+			timeline.release(end);
+			release(session);
+		}
+	}
+
+	// Finishes a session and returns its report.
+	public SessionReport stop(String name) {
+		get(name);
+		SnapshotTimeline.Entry end = acquire();
+		Session session;
+		try {
+			synchronized (this) {
+				session = get(name);
+				sessions.remove(name);
+			}
+		} catch (IllegalStateException e) {
+			// Stopped by another client meanwhile.
+			timeline.release(end);
+			throw e;
+		}
+		// Removed from the map, nobody else uses it anymore.
+		try {
+			return report(session, end);
+		} finally {
+			timeline.release(end);
+			release(session);
+		}
+	}
+
+	/*
+	 * Finishes all the sessions, e.g. when the profiler is shutting down. Sessions stopped by other
+	 * clients meanwhile are left out.
+	 */
+	public SessionReport[] stopAll() {
+		String[] names = getNames();
+		ArrayList<SessionReport> reports = new ArrayList<SessionReport>();
+		for (int i = 0; i < names.length; i++) {
+			try {
+				reports.add(stop(names[i]));
+			} catch (IllegalStateException e) {
+				Log.w(getClass().getName(), "Session " + names[i] + " not stopped, " + e.getMessage());
+			}
+		}
+		return reports.toArray(new SessionReport[reports.size()]);
+	}
+
+	public synchronized boolean isRunning(String name) {
+		return sessions.containsKey(name);
+	}
+
+	public synchronized int getNumSessions() {
+		return sessions.size();
+	}
+
+	public synchronized String[] getNames() {
+		return sessions.keySet().toArray(new String[sessions.size()]);
+	}
+
+	private synchronized Session get(String name) {
+		Session session = sessions.get(name);
+		if (session == null)
+			throw new IllegalStateException("no session " + name);
+		return session;
+	}
+
+	private SnapshotTimeline.Entry acquire() {
+		SnapshotTimeline.Entry entry = timeline.acquire(maxAgeNs, timeoutMs);
+		if (entry == null)
+			throw new IllegalStateException("no sample available");
+		return entry;
+	}
+
+	// Copy of a session holding its own references to the entries, taken with the lock held.
+	private Session retain(Session session) {
+		Session copy = new Session(session.name, session.start, session.startChargeUah);
+		copy.markLabels.addAll(session.markLabels);
+		copy.marks.addAll(session.marks);
+		timeline.retain(copy.start);
+		for (int i = 0; i < copy.marks.size(); i++) {
+			timeline.retain(copy.marks.get(i));
+		}
+		return copy;
+	}
+
+	// Called without the lock, with a session only used by the caller.
+	private SessionReport report(Session session, SnapshotTimeline.Entry end) {
+		PowerProfile profile;
+		PowerSupply supply;
+		PowerModel model;
+		synchronized (this) {
+			profile = powerProfile;
+			supply = powerSupply;
+			model = powerModel;
+		}
+		SessionReport report = new SessionReport(session.name, session.start.getSnapshot(), end.getSnapshot());
+		CpuFreqLayout layout = end.getSnapshot().getLayout();
+		if (profile != null && (model == null || model.getLayout() != layout)) {
+			model = new PowerModel(profile, layout);
+			synchronized (this) {
+				if (powerProfile == profile)
+					powerModel = model;
+			}
+		}
+		long endChargeUah = supply != null && session.startChargeUah >= 0 ? supply.readChargeUah() : -1;
+		report.setPower(profile != null ? model : null, endChargeUah >= 0 ? session.startChargeUah - endChargeUah : -1);
+		if (session.marks.size() > 0) {
+			SnapshotTimeline.Entry from = session.start;
+			for (int i = 0; i <= session.marks.size(); i++) {
+				SnapshotTimeline.Entry to = i < session.marks.size() ? session.marks.get(i) : end;
+				report.addSegment(i < session.marks.size() ? session.markLabels.get(i) : "end", from.getSnapshot(),
+						to.getSnapshot());
+				from = to;
+			}
+		}
+		return report;
+	}
+
+	private void release(Session session) {
+		timeline.release(session.start);
+		for (int i = 0; i < session.marks.size(); i++) {
+			timeline.release(session.marks.get(i));
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.util.ArrayList;
+
+/*
+ * Result of a named session: the time spent in each frequency between its start and its end (or the
+ * moment it was queried), and one segment per mark, with the energy estimated by a PowerModel and
+ * the charge measured in the battery if the SessionManager has them. See appendTo() for the text
+ * format.
+ */
+public final class SessionReport {
+
+	private final String name;
+	private final SnapshotDelta total;
+	private final ArrayList<String> segmentLabels = new ArrayList<String>();
+	private final ArrayList<SnapshotDelta> segments = new ArrayList<SnapshotDelta>();
+	private PowerModel powerModel = null;
+	private long batteryChargeUah = -1;
+
+	SessionReport(String name, CpuFreqSnapshot start, CpuFreqSnapshot end) {
+		this.name = name;
+		total = new SnapshotDelta(start.getLayout());
+		total.compute(start, end);
+	}
+
+	void addSegment(String label, CpuFreqSnapshot from, CpuFreqSnapshot to) {
+		SnapshotDelta segment = new SnapshotDelta(from.getLayout());
+		segment.compute(from, to);
+		segmentLabels.add(label);
+		segments.add(segment);
+	}
+
+	void setPower(PowerModel model, long batteryChargeUah) {
+		this.powerModel = model;
+		this.batteryChargeUah = batteryChargeUah;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public SnapshotDelta getTotal() {
+		return total;
+	}
+
+	// Time between the readings of the start and the end of the session.
+	public long getElapsedMs() {
+		return total.getElapsedNs() / 1000000L;
+	}
+
+	// Model used to estimate the energy, null if there is none.
+	public PowerModel getPowerModel() {
+		return powerModel;
+	}
+
+	// Charge used from the battery during the session in uAh, -1 if it wasn't measured.
+	public long getBatteryChargeUah() {
+		return batteryChargeUah;
+	}
+
+	public int getNumSegments() {
+		return segments.size();
+	}
+
+	public String getSegmentLabel(int i) {
+		return segmentLabels.get(i);
+	}
+
+	public SnapshotDelta getSegment(int i) {
+		return segments.get(i);
+	}
+
+	/*
+	 * Appends the report as text:
+	 * session=<name> seq=<first>..<last> elapsed_ms=<ms> boot_ns=<first>..<last>
+	 * the TextReport of the whole session
+	 * battery_uah=<measured> model_uah=<estimated>, if the battery was measured (model_uah is -1
+	 * without a PowerModel)
+	 * segment=<label> seq=<first>..<last> elapsed_ms=<ms> boot_ns=<first>..<last>, followed by its
+	 * TextReport, for each segment
+	 *
+	 * boot_ns are the times since boot of the readings (see BootClock), to align the session with other
+	 * traces. 0 if they are not known.
+	 */
+	public void appendTo(StringBuilder sb) {
+		sb.append("session=").append(name);
+		appendTimes(sb, total);
+		TextReport.append(sb, total, true, powerModel);
+		if (batteryChargeUah >= 0)
+			sb.append("battery_uah=").append(batteryChargeUah).append(" model_uah=").append(
+					powerModel != null ? PowerModel.toMicroAmpHours(powerModel.getTotalCharge(total)) : -1).append('\n');
+		for (int i = 0; i < segments.size(); i++) {
+			SnapshotDelta segment = segments.get(i);
+			sb.append("segment=").append(segmentLabels.get(i));
+			appendTimes(sb, segment);
+			TextReport.append(sb, segment, true, powerModel);
+		}
+	}
+
+	private static void appendTimes(StringBuilder sb, SnapshotDelta delta) {
+		sb.append(" seq=").append(delta.getFromSequence()).append("..").append(delta.getToSequence());
+		sb.append(" elapsed_ms=").append(delta.getElapsedNs() / 1000000L);
+		sb.append(" boot_ns=").append(delta.getFromBootTimeNs()).append("..").append(delta.getToBootTimeNs())
+				.append('\n');
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		appendTo(sb);
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * One sampler shared by all the clients of a long running profiler: named sessions (SessionManager
+ * over a SnapshotTimeline), the history of the last samples (SnapshotRing), the last sample for
+ * readers that must not block (SnapshotPublisher) and any other sink, e.g. callbacks to other
+ * processes. With period 0 time_in_state is only read when a session needs a fresh sample;
+ * setPeriodMs() turns on periodic readings while some client wants a stream of samples.
+ *
+ * Sinks must be added before start(). The other methods are thread safe.
+ */
+public class SharedProfiler {
+
+	public static final int DEFAULT_HISTORY_CAPACITY = 256;
+	private static final int QUEUE_CAPACITY = 64;
+	private static final long FLUSH_INTERVAL_MS = 1000;
+	// How long a session waits for a reading when the last sample is too old.
+	private static final long READING_TIMEOUT_MS = 1000;
+
+	private final PeriodicSampler sampler;
+	private final SnapshotTimeline timeline;
+	private final SessionManager sessions;
+	private final SnapshotRing history;
+	private final SnapshotPublisher latest;
+
+	/*
+	 * periodMs is the initial sampling period, 0 for only the readings needed by the sessions. A
+	 * session reads again when the last sample is older than maxAgeMs.
+	 */
+	public SharedProfiler(CpuTopology topology, long periodMs, long maxAgeMs, int historyCapacity) {
+		sampler = new PeriodicSampler(topology, periodMs, QUEUE_CAPACITY, SnapshotPipeline.Backpressure.COALESCE,
+				FLUSH_INTERVAL_MS);
+		timeline = new SnapshotTimeline(sampler);
+		sessions = new SessionManager(timeline, maxAgeMs, READING_TIMEOUT_MS);
+		history = new SnapshotRing(historyCapacity);
+		sampler.addSink(history);
+		latest = new SnapshotPublisher();
+		sampler.addSink(latest);
+	}
+
+	public void addSink(ProfileSink sink) {
+		sampler.addSink(sink);
+	}
+
+	public PeriodicSampler getSampler() {
+		return sampler;
+	}
+
+	public SnapshotTimeline getTimeline() {
+		return timeline;
+	}
+
+	public SessionManager getSessions() {
+		return sessions;
+	}
+
+	// Last samples, can be read with SnapshotRing.copy() from any thread.
+	public SnapshotRing getHistory() {
+		return history;
+	}
+
+	// Last sample, can be copied from any thread without locks.
+	public SnapshotPublisher getLatest() {
+		return latest;
+	}
+
+	/*
+	 * Layout of the samples. If nothing has been read yet it waits for the first reading, returns
+	 * null if it can't be done.
+	 */
+	public CpuFreqLayout getLayout() {
+		CpuFreqLayout layout = timeline.getLayout();
+		if (layout != null)
+			return layout;
+		SnapshotTimeline.Entry entry = timeline.acquire(Long.MAX_VALUE, READING_TIMEOUT_MS);
+		if (entry == null)
+			return null;
+		timeline.release(entry);
+		return timeline.getLayout();
+	}
+
+	public void start() {
+		sampler.start();
+	}
+
+	// Stops the sampler, the sinks are closed in the background.
+	public void stop() {
+		sampler.stop();
+	}
+
+	public void join() throws InterruptedException {
+		sampler.join();
+	}
+
+}
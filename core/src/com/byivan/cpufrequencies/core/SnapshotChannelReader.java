@@ -0,0 +1,186 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Reads the samples published by a SnapshotChannelWriter in another process (or thread) straight from
+ * the mapped file, see the format there. Reading the last sample is a copy of one slot of the mapping
+ * and never blocks the writer: if the writer was writing the slot the copy is retried.
+ *
+ * Not thread safe, each thread needs its own reader.
+ */
+public class SnapshotChannelReader {
+
+	// Copies retried before giving up, the writer only holds a slot for a few microseconds.
+	private static final int MAX_RETRIES = 100;
+
+	private final MappedByteBuffer buffer;
+	private final LongBuffer longs;
+	private final CpuFreqLayout layout;
+	private final int capacity;
+	private final int slotsIndex;
+	private final int slotLongs;
+	private final int bitmapLongs;
+	private final long[] bitmap;
+
+	public SnapshotChannelReader(File file) throws IOException {
+		this(openChannel(file));
+	}
+
+	/*
+	 * Maps the file of channel, which can be closed afterwards. On Android it's the file descriptor
+	 * given by ICpuProfiler.openSnapshotChannel(): new FileInputStream(pfd.getFileDescriptor()).getChannel().
+	 */
+	public SnapshotChannelReader(FileChannel channel) throws IOException {
+		try {
+			if (channel.size() < SnapshotChannelWriter.HEADER_SIZE)
+				throw new IOException("Channel not ready");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < SnapshotChannelWriter.MAGIC.length; i++) {
+			if (buffer.get(i) != SnapshotChannelWriter.MAGIC[i])
+				throw new IOException("Not a snapshot channel or not ready");
+		}
+		SnapshotChannelWriter.fence();
+		int version = buffer.getInt(SnapshotChannelWriter.VERSION_OFFSET);
+		if (version != SnapshotChannelWriter.VERSION)
+			throw new IOException("Unsupported channel version " + version);
+		capacity = buffer.getInt(SnapshotChannelWriter.CAPACITY_OFFSET);
+		int numPolicies = buffer.getInt(SnapshotChannelWriter.POLICIES_OFFSET);
+		CpuFreqPolicy[] policies = new CpuFreqPolicy[numPolicies];
+		FrequencyTable[] tables = new FrequencyTable[numPolicies];
+		int position = SnapshotChannelWriter.HEADER_SIZE;
+		for (int p = 0; p < numPolicies; p++) {
+			int id = buffer.getInt(position);
+			int[] cpus = new int[buffer.getInt(position + 4)];
+			long[] frequencies = new long[buffer.getInt(position + 8)];
+			position += 12;
+			for (int i = 0; i < cpus.length; i++) {
+				cpus[i] = buffer.getInt(position);
+				position += 4;
+			}
+			position = (position + 7) & ~7;
+			for (int i = 0; i < frequencies.length; i++) {
+				frequencies[i] = buffer.getLong(position);
+				position += 8;
+			}
+			policies[p] = new CpuFreqPolicy(id, cpus, null);
+			tables[p] = new FrequencyTable(frequencies, frequencies.length);
+		}
+		layout = new CpuFreqLayout(policies, tables);
+		if (layout.size() != buffer.getInt(SnapshotChannelWriter.SIZE_OFFSET))
+			throw new IOException("Corrupted channel layout");
+		slotsIndex = buffer.getInt(SnapshotChannelWriter.SLOTS_OFFSET) / 8;
+		slotLongs = buffer.getInt(SnapshotChannelWriter.SLOT_SIZE_OFFSET) / 8;
+		bitmapLongs = (numPolicies + 63) / 64;
+		bitmap = new long[bitmapLongs];
+		longs = buffer.asLongBuffer();
+	}
+
+	private static FileChannel openChannel(File file) throws IOException {
+		return new FileInputStream(file).getChannel();
+	}
+
+	public CpuFreqLayout getLayout() {
+		return layout;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	// Number of samples published, the last one has index getCount() - 1.
+	public long getCount() {
+		long count = buffer.getLong(SnapshotChannelWriter.COUNT_OFFSET);
+		SnapshotChannelWriter.fence();
+		return count;
+	}
+
+	// True once the writer has finished, no more samples will be published in this file.
+	public boolean isClosed() {
+		return buffer.getInt(SnapshotChannelWriter.STATE_OFFSET) == SnapshotChannelWriter.STATE_CLOSED;
+	}
+
+	/*
+	 * Copies the last sample published into out, which must have the layout of the channel. Returns
+	 * the index of the sample or -1 if there is none.
+	 */
+	public long readLatest(CpuFreqSnapshot out) {
+		for (int i = 0; i < MAX_RETRIES; i++) {
+			long count = getCount();
+			if (count == 0)
+				return -1;
+			if (read(count - 1, out))
+				return count - 1;
+		}
+		return -1;
+	}
+
+	/*
+	 * Copies the sample with the given index into out. Returns false if it has not been published or
+	 * has already been overwritten (only the last getCapacity() are kept).
+	 */
+	public boolean read(long index, CpuFreqSnapshot out) {
+		return read(index, out, null);
+	}
+
+	/*
+	 * Same as read(), also stores in timeNs[0] the System.nanoTime() of the writer when the sample was
+	 * published (comparable between processes, it's the monotonic clock of the system).
+	 */
+	public boolean read(long index, CpuFreqSnapshot out, long[] timeNs) {
+		int slot = slotsIndex + (int) (index % capacity) * slotLongs;
+		for (int i = 0; i < MAX_RETRIES; i++) {
+			long lock = SnapshotChannelWriter.getAcquire(longs, slot);
+			if ((lock & 1) != 0)
+				continue;
+			long slotIndex = longs.get(slot + 1);
+			long sequence = longs.get(slot + 2);
+			long time = longs.get(slot + 3);
+			longs.position(slot + SnapshotChannelWriter.SLOT_HEADER_LONGS);
+			longs.get(bitmap);
+			longs.get(out.getResidency());
+			// The copy must be done before reading the lock again.
+			SnapshotChannelWriter.fence();
+			if (longs.get(slot) != lock)
+				continue;
+			if (slotIndex != index)
+				return false;
+			out.setSequence(sequence);
+			for (int p = 0; p < layout.getNumPolicies(); p++) {
+				out.setValid(p, (bitmap[p / 64] & (1L << (p % 64))) != 0);
+			}
+			if (timeNs != null)
+				timeNs[0] = time;
+			return true;
+		}
+		return false;
+	}
+
+}
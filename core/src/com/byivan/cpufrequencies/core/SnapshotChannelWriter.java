@@ -0,0 +1,259 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Publishes the samples into a memory mapped file, so other processes can poll the last residencies
+ * reading the mapping (see SnapshotChannelReader) without any call to the profiler. The samples are
+ * stored in a ring of slots, each one guarded by a sequence lock: the writer makes the lock odd, writes
+ * the slot and makes it even again, a reader copies the slot and retries if the lock was odd or changed
+ * meanwhile. The writer never waits for the readers.
+ *
+ * Format (version 1), little endian, all the values aligned to their size:
+ *
+ * Header (HEADER_SIZE bytes): magic "CPUFSHM\0", version, capacity (slots), values per sample,
+ * number of policies, offset of the first slot, size of a slot (ints), number of samples published
+ * (long, written after the slot of the sample) and state (int, STATE_OPEN or STATE_CLOSED).
+ *
+ * Layout, from HEADER_SIZE: for each policy its id, number of CPUs and number of frequencies (ints),
+ * the CPU ids (ints) and, aligned to 8 bytes, the frequencies in ascending order (longs).
+ *
+ * Slots (longs): lock, index of the sample in the channel (0 for the first one published), sequence
+ * of the sample, System.nanoTime() when it was published, a bitmap of the valid policies (one long
+ * per 64 policies) and the residency of each frequency in the order of CpuFreqLayout.
+ *
+ * The magic is written last, a reader that finds it can read the layout. The file is created again
+ * every time the sink is opened, readers that find STATE_CLOSED must open it again.
+ */
+public class SnapshotChannelWriter implements ProfileSink {
+
+	public static final byte[] MAGIC = { 'C', 'P', 'U', 'F', 'S', 'H', 'M', 0 };
+	public static final int VERSION = 1;
+	public static final int DEFAULT_CAPACITY = 16;
+	public static final int STATE_OPEN = 1;
+	public static final int STATE_CLOSED = 2;
+	static final int HEADER_SIZE = 64;
+	// Offsets in the header.
+	static final int VERSION_OFFSET = 8;
+	static final int CAPACITY_OFFSET = 12;
+	static final int SIZE_OFFSET = 16;
+	static final int POLICIES_OFFSET = 20;
+	static final int SLOTS_OFFSET = 24;
+	static final int SLOT_SIZE_OFFSET = 28;
+	static final int COUNT_OFFSET = 32;
+	static final int STATE_OFFSET = 40;
+	// Longs of a slot before the bitmap.
+	static final int SLOT_HEADER_LONGS = 4;
+
+	// Written and read to order the accesses to the mapping, see fence().
+	private static volatile int barrier = 0;
+
+	private final File file;
+	private final int capacity;
+	private MappedByteBuffer buffer = null;
+	private LongBuffer longs = null;
+	// Position of the first slot and size of a slot, in longs.
+	private int slotsIndex;
+	private int slotLongs;
+	private int bitmapLongs;
+	private long[] bitmap = null;
+	private long count = 0;
+	private boolean open = false;
+
+	public SnapshotChannelWriter(File file) {
+		this(file, DEFAULT_CAPACITY);
+	}
+
+	public SnapshotChannelWriter(File file, int capacity) {
+		if (capacity < 2)
+			throw new IllegalArgumentException("Capacity of a channel must be at least 2, capacity=" + capacity);
+		this.file = file;
+		this.capacity = capacity;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/*
+	 * Waits until the file has been created with the first sample, so that readers can open it. Returns
+	 * false if it's not ready after timeoutMs.
+	 */
+	public synchronized boolean awaitOpen(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		long remaining = timeoutMs;
+		while (!open && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return open;
+	}
+
+	@Override
+	public void open(CpuFreqSnapshot initial) throws IOException {
+		CpuFreqLayout layout = initial.getLayout();
+		int layoutSize = 0;
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			layoutSize += 4 * (3 + layout.getPolicy(p).getNumCpus());
+			layoutSize = align(layoutSize) + 8 * layout.getFrequencyTable(p).size();
+		}
+		int slotsOffset = align(HEADER_SIZE + layoutSize);
+		bitmapLongs = (layout.getNumPolicies() + 63) / 64;
+		slotLongs = SLOT_HEADER_LONGS + bitmapLongs + layout.size();
+		slotsIndex = slotsOffset / 8;
+		bitmap = new long[bitmapLongs];
+		// A new file, readers still mapping the previous one see it closed.
+		file.getParentFile().mkdirs();
+		file.delete();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, slotsOffset + 8L * slotLongs * capacity);
+		} finally {
+			// The mapping stays valid after closing the file.
+			raf.close();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		longs = buffer.asLongBuffer();
+		buffer.putInt(VERSION_OFFSET, VERSION);
+		buffer.putInt(CAPACITY_OFFSET, capacity);
+		buffer.putInt(SIZE_OFFSET, layout.size());
+		buffer.putInt(POLICIES_OFFSET, layout.getNumPolicies());
+		buffer.putInt(SLOTS_OFFSET, slotsOffset);
+		buffer.putInt(SLOT_SIZE_OFFSET, 8 * slotLongs);
+		buffer.putLong(COUNT_OFFSET, 0);
+		buffer.putInt(STATE_OFFSET, STATE_OPEN);
+		int position = HEADER_SIZE;
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			CpuFreqPolicy policy = layout.getPolicy(p);
+			FrequencyTable table = layout.getFrequencyTable(p);
+			buffer.putInt(position, policy.getId());
+			buffer.putInt(position + 4, policy.getNumCpus());
+			buffer.putInt(position + 8, table.size());
+			position += 12;
+			for (int i = 0; i < policy.getNumCpus(); i++) {
+				buffer.putInt(position, policy.getCpu(i));
+				position += 4;
+			}
+			position = align(position);
+			for (int slot = 0; slot < table.size(); slot++) {
+				buffer.putLong(position, table.getFrequency(slot));
+				position += 8;
+			}
+		}
+		publish(initial);
+		fence();
+		for (int i = 0; i < MAGIC.length; i++) {
+			buffer.put(i, MAGIC[i]);
+		}
+		fence();
+		synchronized (this) {
+			open = true;
+			notifyAll();
+		}
+		Log.i(getClass().getName(), "Publishing samples in " + file);
+	}
+
+	@Override
+	public void onSample(CpuFreqSnapshot previous, CpuFreqSnapshot current, SnapshotDelta delta) {
+		publish(current);
+	}
+
+	@Override
+	public void flush() {
+		// Readers see the mapping directly, there is nothing to save.
+	}
+
+	@Override
+	public void close(CpuFreqSnapshot initial, CpuFreqSnapshot last, SnapshotDelta total) {
+		buffer.putInt(STATE_OFFSET, STATE_CLOSED);
+		fence();
+		synchronized (this) {
+			open = false;
+		}
+		// The file is left for readers still using it. The mapping is released by the garbage collector.
+		buffer = null;
+		longs = null;
+	}
+
+	private void publish(CpuFreqSnapshot snapshot) {
+		CpuFreqLayout layout = snapshot.getLayout();
+		int index = slotsIndex + (int) (count % capacity) * slotLongs;
+		long lock = longs.get(index);
+		// Odd while the slot is written.
+		longs.put(index, lock + 1);
+		fence();
+		longs.put(index + 1, count);
+		longs.put(index + 2, snapshot.getSequence());
+		longs.put(index + 3, System.nanoTime());
+		for (int i = 0; i < bitmapLongs; i++) {
+			bitmap[i] = 0;
+		}
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			if (snapshot.isValid(p))
+				bitmap[p / 64] |= 1L << (p % 64);
+		}
+		longs.position(index + SLOT_HEADER_LONGS);
+		longs.put(bitmap);
+		longs.put(snapshot.getResidency());
+		fence();
+		longs.put(index, lock + 2);
+		fence();
+		count++;
+		buffer.putLong(COUNT_OFFSET, count);
+	}
+
+	/*
+	 * Full barrier between the plain accesses (of the mapping, SnapshotPublisher or SnapshotRing)
+	 * before and after it. Java 6 has no fences, and a volatile write alone is only a release: on
+	 * AArch64 it's an stlr, which lets later accesses move above it. So this is a volatile write
+	 * followed by a volatile read of the same field. The write keeps the accesses before it from
+	 * moving after it, the read keeps the ones after it from moving before it, and the VMs don't
+	 * reorder a volatile write with a later volatile read (StoreLoad, an mfence or locked instruction
+	 * on x86, stlr then ldar on AArch64). Together no access moves across the call in either
+	 * direction. The value read is returned so the read is part of the result, the callers ignore it.
+	 */
+	static int fence() {
+		barrier = 0;
+		return barrier;
+	}
+
+	/*
+	 * Reads the long at index with acquire semantics: the accesses after the call are not done before
+	 * it, like a lock reading its state.
+	 */
+	static long getAcquire(LongBuffer longs, int index) {
+		long value = longs.get(index);
+		fence();
+		return value;
+	}
+
+	private static int align(int offset) {
+		return (offset + 7) & ~7;
+	}
+
+}
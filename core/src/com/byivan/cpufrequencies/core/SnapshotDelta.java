@@ -0,0 +1,279 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * Time spent in each frequency between two snapshots with the same layout, stored like the
+ * residencies of a CpuFreqSnapshot. A policy is valid if it was valid in both snapshots, the values
+ * of the other policies are 0. Instances are reused: compute() overwrites the previous values.
+ *
+ * It also has the elapsed time between both readings, the time since boot of each one and the busy
+ * and idle time of every CPU in between (-1 for a CPU missing in any of the snapshots), and the time
+ * and entries of every cpuidle state (-1 if missing in any of them). The frequency transitions of
+ * every policy are diffed the same way, in total and between each pair of frequencies.
+ *
+ * compute() also estimates the cycles run by the CPUs of every policy, the sum of each frequency by
+ * the time spent in it, and the mean frequency weighted by that time. It runs in the writer thread
+ * of the SnapshotPipeline, never in the sampling one. The cycles are clock cycles: a CPU idle at a
+ * frequency counts them too, getBusyCycles() scales them by the busy time from /proc/stat.
+ */
+public final class SnapshotDelta {
+
+	// Cycles run in one unit of time_in_state (10ms) at 1kHz.
+	public static final long CYCLES_PER_KHZ_TICK = 10;
+
+	private final CpuFreqLayout layout;
+	private final long[] values;
+	private final boolean[] valid;
+	private long fromSequence = -1;
+	private long toSequence = -1;
+	private long elapsedNs = 0;
+	private long fromBootTimeNs = 0;
+	private long toBootTimeNs = 0;
+	private final long[] cpuBusy;
+	private final long[] cpuIdle;
+	private final long[] idleStateTime;
+	private final long[] idleStateUsage;
+	private final long[] totalTransitions;
+	private final long[] transitions;
+	// Cycles run by each CPU of a policy.
+	private final long[] cycles;
+
+	public SnapshotDelta(CpuFreqLayout layout) {
+		this.layout = layout;
+		values = new long[layout.size()];
+		valid = new boolean[layout.getNumPolicies()];
+		cpuBusy = new long[layout.getNumCpus()];
+		cpuIdle = new long[layout.getNumCpus()];
+		idleStateTime = new long[layout.getIdleStateSize()];
+		idleStateUsage = new long[layout.getIdleStateSize()];
+		totalTransitions = new long[layout.getNumPolicies()];
+		transitions = new long[layout.getTransitionSize()];
+		cycles = new long[layout.getNumPolicies()];
+	}
+
+	public CpuFreqLayout getLayout() {
+		return layout;
+	}
+
+	// Flat array with the time spent in each frequency, see CpuFreqLayout.
+	public long[] getValues() {
+		return values;
+	}
+
+	public long get(int policyIndex, int slot) {
+		return values[layout.getOffset(policyIndex) + slot];
+	}
+
+	public boolean isValid(int policyIndex) {
+		return valid[policyIndex];
+	}
+
+	public long getFromSequence() {
+		return fromSequence;
+	}
+
+	public long getToSequence() {
+		return toSequence;
+	}
+
+	// Time between the starts of the readings of both snapshots, in the monotonic clock.
+	public long getElapsedNs() {
+		return elapsedNs;
+	}
+
+	// Time since boot of the first snapshot, 0 if it's not known.
+	public long getFromBootTimeNs() {
+		return fromBootTimeNs;
+	}
+
+	public long getToBootTimeNs() {
+		return toBootTimeNs;
+	}
+
+	// Busy time of each CPU in units of 10ms, indexed like CpuFreqLayout.getCpuId(), -1 if unavailable.
+	public long[] getCpuBusy() {
+		return cpuBusy;
+	}
+
+	// Idle time of each CPU, like getCpuBusy().
+	public long[] getCpuIdle() {
+		return cpuIdle;
+	}
+
+	// Time spent in each cpuidle state in microseconds, see CpuFreqLayout.getIdleStateOffset().
+	public long[] getIdleStateTime() {
+		return idleStateTime;
+	}
+
+	// Number of times each cpuidle state was entered.
+	public long[] getIdleStateUsage() {
+		return idleStateUsage;
+	}
+
+	// Transitions between each pair of frequencies, see CpuFreqLayout.getTransitionOffset().
+	public long[] getTransitions() {
+		return transitions;
+	}
+
+	/*
+	 * Transitions of a policy from the frequency in slot fromSlot to the one in toSlot, -1 if they
+	 * are not available.
+	 */
+	public long getTransitions(int policyIndex, int fromSlot, int toSlot) {
+		if (!layout.hasTransitionTable(policyIndex))
+			return -1;
+		int n = layout.getFrequencyTable(policyIndex).size();
+		return transitions[layout.getTransitionOffset(policyIndex) + fromSlot * n + toSlot];
+	}
+
+	/*
+	 * Frequency transitions of a policy, from total_trans or else the sum of its transition matrix. -1
+	 * if neither is available.
+	 */
+	public long getTotalTransitions(int policyIndex) {
+		if (totalTransitions[policyIndex] >= 0 || !layout.hasTransitionTable(policyIndex))
+			return totalTransitions[policyIndex];
+		int start = layout.getTransitionOffset(policyIndex);
+		int end = start + layout.getFrequencyTable(policyIndex).size() * layout.getFrequencyTable(policyIndex).size();
+		long total = 0;
+		for (int i = start; i < end; i++) {
+			if (transitions[i] < 0)
+				return -1;
+			total += transitions[i];
+		}
+		return total;
+	}
+
+	/*
+	 * Frequency transitions of a policy per second of elapsed time, in tenths to avoid floating point
+	 * in the reports. -1 if they are not available.
+	 */
+	public long getTransitionRateDeci(int policyIndex) {
+		long total = getTotalTransitions(policyIndex);
+		if (total < 0)
+			return -1;
+		return elapsedNs > 0 ? total * 10000000000L / elapsedNs : 0;
+	}
+
+	/*
+	 * Share of the time of the policy spent in a frequency, in tenths of a percent (0 to 1000) to
+	 * avoid floating point in the reports.
+	 */
+	public long getPerMille(int policyIndex, int slot) {
+		long total = getTotal(policyIndex);
+		return total > 0 ? get(policyIndex, slot) * 1000 / total : 0;
+	}
+
+	// Estimated cycles run by each CPU of a policy, 0 if the policy is not valid.
+	public long getCycles(int policyIndex) {
+		return cycles[policyIndex];
+	}
+
+	// Mean frequency of a policy in kHz, weighted by the time spent in each frequency.
+	public long getMeanFrequency(int policyIndex) {
+		long total = getTotal(policyIndex);
+		return total > 0 ? cycles[policyIndex] / (total * CYCLES_PER_KHZ_TICK) : 0;
+	}
+
+	// Estimated cycles run by a CPU, indexed like CpuFreqLayout.getCpuId().
+	public long getCpuCycles(int cpuIndex) {
+		return cycles[layout.getPolicyIndexOfCpu(cpuIndex)];
+	}
+
+	/*
+	 * Cycles run by a CPU while it was busy, assuming its busy time was spread over the frequencies
+	 * like the rest. -1 if its busy time is not available.
+	 */
+	public long getBusyCycles(int cpuIndex) {
+		if (cpuBusy[cpuIndex] < 0)
+			return -1;
+		long time = cpuBusy[cpuIndex] + cpuIdle[cpuIndex];
+		if (time == 0)
+			return 0;
+		return (long) (getCpuCycles(cpuIndex) * ((double) cpuBusy[cpuIndex] / time));
+	}
+
+	// Estimated cycles run by all the CPUs.
+	public long getTotalCycles() {
+		long total = 0;
+		for (int i = 0; i < layout.getNumCpus(); i++) {
+			total += getCpuCycles(i);
+		}
+		return total;
+	}
+
+	// Total time of all the frequencies of a policy.
+	public long getTotal(int policyIndex) {
+		int start = layout.getOffset(policyIndex);
+		int end = start + layout.getFrequencyTable(policyIndex).size();
+		long total = 0;
+		for (int i = start; i < end; i++) {
+			total += values[i];
+		}
+		return total;
+	}
+
+	public void compute(CpuFreqSnapshot from, CpuFreqSnapshot to) {
+		CpuFreqSnapshot.delta(from, to, values);
+		for (int p = 0; p < valid.length; p++) {
+			valid[p] = from.isValid(p) && to.isValid(p);
+			cycles[p] = valid[p] ? computeCycles(p) : 0;
+		}
+		fromSequence = from.getSequence();
+		toSequence = to.getSequence();
+		elapsedNs = to.getStartNs() - from.getStartNs();
+		fromBootTimeNs = from.getBootTimeNs();
+		toBootTimeNs = to.getBootTimeNs();
+		long[] fromBusy = from.getCpuBusy();
+		long[] fromIdle = from.getCpuIdle();
+		long[] toBusy = to.getCpuBusy();
+		long[] toIdle = to.getCpuIdle();
+		for (int i = 0; i < cpuBusy.length; i++) {
+			if (fromBusy[i] < 0 || toBusy[i] < 0) {
+				cpuBusy[i] = -1;
+				cpuIdle[i] = -1;
+			} else {
+				cpuBusy[i] = toBusy[i] - fromBusy[i];
+				cpuIdle[i] = toIdle[i] - fromIdle[i];
+			}
+		}
+		diff(from.getIdleStateTime(), to.getIdleStateTime(), idleStateTime);
+		diff(from.getIdleStateUsage(), to.getIdleStateUsage(), idleStateUsage);
+		diff(from.getTotalTransitions(), to.getTotalTransitions(), totalTransitions);
+		diff(from.getTransitions(), to.getTransitions(), transitions);
+	}
+
+	// out = to - from, -1 where any of them is unavailable.
+	private static void diff(long[] from, long[] to, long[] out) {
+		for (int i = 0; i < out.length; i++) {
+			out[i] = from[i] < 0 || to[i] < 0 ? -1 : to[i] - from[i];
+		}
+	}
+
+	private long computeCycles(int policyIndex) {
+		FrequencyTable frequencies = layout.getFrequencyTable(policyIndex);
+		int offset = layout.getOffset(policyIndex);
+		long result = 0;
+		for (int slot = 0; slot < frequencies.size(); slot++) {
+			result += frequencies.getFrequency(slot) * values[offset + slot];
+		}
+		return result * CYCLES_PER_KHZ_TICK;
+	}
+
+}
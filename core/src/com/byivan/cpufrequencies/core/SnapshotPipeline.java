@@ -0,0 +1,326 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.IOException;
+
+/*
+ * Producer/consumer queue between the sampling thread and the sinks (files, memory...). The sampler
+ * takes a free snapshot with acquire(), fills it and publishes it. A dedicated writer thread drains
+ * the queue in batches and fans the samples out to the sinks, so no file I/O happens in the sampling
+ * thread or in the thread that controls the session. The delta between consecutive samples is
+ * computed once and shared by all the sinks.
+ *
+ * All the snapshots are created with the pipeline, nothing is allocated per sample. When the queue
+ * is full the sampler behaves according to the Backpressure policy:
+ * BLOCK: waits until the writer thread frees a snapshot.
+ * DROP_OLDEST: takes back the oldest queued sample and reuses it for the new one.
+ * COALESCE: takes back the newest queued sample and replaces it with the new one.
+ * The values of time_in_state are accumulated, so dropped or coalesced samples only make the
+ * intervals seen by the sinks longer, the totals are not affected. The first sample is the baseline
+ * of the totals, so it's never taken back: until the writer thread has it the sampler takes the next
+ * queued sample instead, or waits if it's the only one.
+ */
+public class SnapshotPipeline implements Runnable {
+
+	public enum Backpressure {
+		BLOCK, DROP_OLDEST, COALESCE
+	}
+
+	private final CpuFreqLayout layout;
+	private final Backpressure backpressure;
+	private final ProfileSink[] sinks;
+	private final boolean[] failed;
+	private final long flushIntervalMs;
+	private final Object lock = new Object();
+	// Snapshots not in use, a stack.
+	private final CpuFreqSnapshot[] free;
+	private int numFree;
+	// Circular queue of published samples.
+	private final CpuFreqSnapshot[] queue;
+	private int head = 0;
+	private int queueSize = 0;
+	// Snapshots held by the sampler between acquire() and publish() or discard().
+	private int acquired = 0;
+	// Samples being delivered by the writer thread.
+	private final CpuFreqSnapshot[] batch;
+	// Copies of the first sample and the last one delivered, owned by the writer thread.
+	private final CpuFreqSnapshot initial;
+	private final CpuFreqSnapshot previous;
+	private final SnapshotDelta delta;
+	private boolean closed = false;
+	private Thread thread = null;
+	// Counters
+	private long published = 0;
+	private long dropped = 0;
+	private long coalesced = 0;
+	private long delivered = 0;
+
+	/*
+	 * capacity is the maximum number of samples waiting in the queue. The sinks are flushed every
+	 * flushIntervalMs milliseconds.
+	 */
+	public SnapshotPipeline(CpuFreqLayout layout, int capacity, Backpressure backpressure, ProfileSink[] sinks,
+			long flushIntervalMs) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity of a SnapshotPipeline must be positive, capacity=" + capacity);
+		this.layout = layout;
+		this.backpressure = backpressure;
+		this.sinks = sinks.clone();
+		this.failed = new boolean[sinks.length];
+		this.flushIntervalMs = flushIntervalMs;
+		queue = new CpuFreqSnapshot[capacity];
+		batch = new CpuFreqSnapshot[capacity];
+		// Enough for a full queue, a full batch and the one being filled by the sampler.
+		free = new CpuFreqSnapshot[2 * capacity + 1];
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new CpuFreqSnapshot(layout);
+		}
+		numFree = free.length;
+		initial = new CpuFreqSnapshot(layout);
+		previous = new CpuFreqSnapshot(layout);
+		delta = new SnapshotDelta(layout);
+	}
+
+	public CpuFreqLayout getLayout() {
+		return layout;
+	}
+
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		thread = new Thread(this, "SnapshotPipeline");
+		thread.start();
+	}
+
+	/*
+	 * Returns a snapshot for the next sample. It must be given back with publish() or discard().
+	 * Returns null if the pipeline has been closed, or if the thread is interrupted while waiting
+	 * with the BLOCK policy.
+	 */
+	public CpuFreqSnapshot acquire() {
+		synchronized (lock) {
+			while (!closed) {
+				if (queueSize + acquired < queue.length) {
+					// There is room in the queue for one more sample.
+					acquired++;
+					return free[--numFree];
+				}
+				if (backpressure == Backpressure.DROP_OLDEST && queueSize > (isFirstQueued() ? 1 : 0)) {
+					int index = isFirstQueued() ? (head + 1) % queue.length : head;
+					CpuFreqSnapshot oldest = queue[index];
+					// If the first sample is queued it moves into the place of the one dropped.
+					queue[index] = queue[head];
+					queue[head] = null;
+					head = (head + 1) % queue.length;
+					queueSize--;
+					acquired++;
+					dropped++;
+					return oldest;
+				}
+				if (backpressure == Backpressure.COALESCE && queueSize > (isFirstQueued() ? 1 : 0)) {
+					int tail = (head + queueSize - 1) % queue.length;
+					CpuFreqSnapshot newest = queue[tail];
+					queue[tail] = null;
+					queueSize--;
+					acquired++;
+					coalesced++;
+					return newest;
+				}
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			return null;
+		}
+	}
+
+	// True if the first sample published is still in the queue, the writer thread hasn't taken it.
+	private boolean isFirstQueued() {
+		return queueSize > 0 && queue[head].getSequence() == 0;
+	}
+
+	// Adds a snapshot returned by acquire() to the queue.
+	public void publish(CpuFreqSnapshot snapshot) {
+		synchronized (lock) {
+			acquired--;
+			snapshot.setSequence(published++);
+			queue[(head + queueSize) % queue.length] = snapshot;
+			queueSize++;
+			lock.notifyAll();
+		}
+	}
+
+	// Gives back a snapshot returned by acquire() without publishing it, e.g. if the reading failed.
+	public void discard(CpuFreqSnapshot snapshot) {
+		synchronized (lock) {
+			acquired--;
+			free[numFree++] = snapshot;
+			lock.notifyAll();
+		}
+	}
+
+	/*
+	 * No more samples will be published. The writer thread delivers the queued ones, closes the
+	 * sinks and finishes. This method doesn't wait for it, see join().
+	 */
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+	}
+
+	// Waits until the writer thread has finished.
+	public void join() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t != null)
+			t.join();
+	}
+
+	public long getPublishedCount() {
+		synchronized (lock) {
+			return published;
+		}
+	}
+
+	// Samples discarded by the DROP_OLDEST policy.
+	public long getDroppedCount() {
+		synchronized (lock) {
+			return dropped;
+		}
+	}
+
+	// Samples replaced by a newer one by the COALESCE policy.
+	public long getCoalescedCount() {
+		synchronized (lock) {
+			return coalesced;
+		}
+	}
+
+	public long getDeliveredCount() {
+		synchronized (lock) {
+			return delivered;
+		}
+	}
+
+	@Override
+	public void run() {
+		boolean opened = false;
+		// Monotonic clock, a change of the wall clock doesn't move the flushes.
+		long flushIntervalNs = flushIntervalMs * 1000000L;
+		long nextFlush = System.nanoTime() + flushIntervalNs;
+		while (true) {
+			int n = 0;
+			synchronized (lock) {
+				while (queueSize == 0 && !closed) {
+					long wait = nextFlush - System.nanoTime();
+					if (wait <= 0)
+						break;
+					try {
+						lock.wait(wait / 1000000L, (int) (wait % 1000000L));
+					} catch (InterruptedException e) {
+						// Keep delivering until the pipeline is closed.
+					}
+				}
+				if (queueSize == 0 && closed)
+					break;
+				// Take all the queued samples at once.
+				while (queueSize > 0) {
+					batch[n++] = queue[head];
+					queue[head] = null;
+					head = (head + 1) % queue.length;
+					queueSize--;
+				}
+				lock.notifyAll();
+			}
+			for (int i = 0; i < n; i++) {
+				if (!opened) {
+					initial.copyFrom(batch[i]);
+					for (int c = 0; c < sinks.length; c++) {
+						try {
+							sinks[c].open(initial);
+						} catch (IOException e) {
+							fail(c, e);
+						}
+					}
+					opened = true;
+				} else {
+					delta.compute(previous, batch[i]);
+					for (int c = 0; c < sinks.length; c++) {
+						if (failed[c])
+							continue;
+						try {
+							sinks[c].onSample(previous, batch[i], delta);
+						} catch (IOException e) {
+							fail(c, e);
+						}
+					}
+				}
+				previous.copyFrom(batch[i]);
+			}
+			synchronized (lock) {
+				for (int i = 0; i < n; i++) {
+					free[numFree++] = batch[i];
+					batch[i] = null;
+				}
+				delivered += n;
+				lock.notifyAll();
+			}
+			if (System.nanoTime() - nextFlush >= 0) {
+				for (int c = 0; c < sinks.length; c++) {
+					if (failed[c])
+						continue;
+					try {
+						sinks[c].flush();
+					} catch (IOException e) {
+						fail(c, e);
+					}
+				}
+				nextFlush = System.nanoTime() + flushIntervalNs;
+			}
+		}
+		if (opened) {
+			delta.compute(initial, previous);
+			for (int c = 0; c < sinks.length; c++) {
+				if (failed[c])
+					continue;
+				try {
+					sinks[c].close(initial, previous, delta);
+				} catch (IOException e) {
+					fail(c, e);
+				}
+			}
+		}
+		Log.i(getClass().getName(), "Pipeline closed, published=" + getPublishedCount() + " delivered="
+				+ getDeliveredCount() + " dropped=" + getDroppedCount() + " coalesced=" + getCoalescedCount());
+	}
+
+	// A sink that fails doesn't receive more samples, the others carry on.
+	private void fail(int sink, IOException e) {
+		failed[sink] = true;
+		Log.e(e.getClass().getName(), e.getMessage(), e);
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Latest sample of a sampler for readers in any thread, without locks. It is a sink with two buffers:
+ * the writer fills the back buffer and swaps it with the published one through an AtomicReference, so
+ * publishing a sample never allocates and never waits for the readers, and readers never wait for the
+ * writer.
+ *
+ * Every buffer has a version stamp, odd while the writer is filling it. A reader copies the published
+ * buffer and checks that the stamp didn't change and that the buffer is still the published one; it
+ * only has to retry if the writer published twice during the copy and reused the buffer being read.
+ *
+ * The stamp is a volatile: reading it is an acquire and the final write a release. The plain copies of
+ * the snapshot also need full barriers (SnapshotChannelWriter.fence()) after the odd stamp in the
+ * writer and before the second read of the stamp in the reader, which acquire and release can't give.
+ */
+public final class SnapshotPublisher implements ProfileSink {
+
+	private static final class Buffer {
+
+		final CpuFreqSnapshot snapshot;
+		long timeNs;
+		volatile long version = 0;
+
+		Buffer(CpuFreqLayout layout) {
+			snapshot = new CpuFreqSnapshot(layout);
+		}
+
+	}
+
+	private final AtomicReference<Buffer> latest = new AtomicReference<Buffer>();
+	// Only used by the writer.
+	private Buffer back = null;
+	private volatile long published = 0;
+	private volatile long latestSequence = -1;
+
+	// Layout of the samples, null until the first one has been published.
+	public CpuFreqLayout getLayout() {
+		Buffer buffer = latest.get();
+		return buffer != null ? buffer.snapshot.getLayout() : null;
+	}
+
+	// Number of samples published, it changes when there is a new one.
+	public long getPublished() {
+		return published;
+	}
+
+	// Sequence of the last sample, -1 if there is none.
+	public long getLatestSequence() {
+		return latestSequence;
+	}
+
+	/*
+	 * Copies the last sample into out, which must have the same layout, and returns the
+	 * System.nanoTime() when it was published, or -1 if there is no sample yet.
+	 */
+	public long copyLatest(CpuFreqSnapshot out) {
+		while (true) {
+			Buffer buffer = latest.get();
+			if (buffer == null)
+				return -1;
+			// Acquire, the copy is not read before it.
+			long version = buffer.version;
+			if ((version & 1) != 0)
+				continue;
+			out.copyFrom(buffer.snapshot);
+			long timeNs = buffer.timeNs;
+			// The reads of the copy must be done before checking the version again.
+			SnapshotChannelWriter.fence();
+			// If the buffer is not published anymore it may hold a sample newer than the published one,
+			// the sequences seen by a reader would go back.
+			if (buffer.version == version && latest.get() == buffer)
+				return timeNs;
+		}
+	}
+
+	@Override
+	public void open(CpuFreqSnapshot initial) {
+		if (back != null) {
+			publish(initial);
+			return;
+		}
+		// Nothing is published before the first sample, the second buffer is created after it.
+		back = new Buffer(initial.getLayout());
+		publish(initial);
+		back = new Buffer(initial.getLayout());
+	}
+
+	@Override
+	public void onSample(CpuFreqSnapshot previous, CpuFreqSnapshot current, SnapshotDelta delta) {
+		publish(current);
+	}
+
+	@Override
+	public void flush() {
+		// Nothing is buffered.
+	}
+
+	@Override
+	public void close(CpuFreqSnapshot initial, CpuFreqSnapshot last, SnapshotDelta total) {
+		// The last sample can still be read.
+	}
+
+	private void publish(CpuFreqSnapshot snapshot) {
+		Buffer buffer = back;
+		long version = buffer.version;
+		buffer.version = version + 1;
+		// The odd stamp must be visible before any write of the copy, a volatile write doesn't order them.
+		SnapshotChannelWriter.fence();
+		buffer.snapshot.copyFrom(snapshot);
+		buffer.timeNs = System.nanoTime();
+		// Release, the copy is visible before the even stamp.
+		buffer.version = version + 2;
+		back = latest.getAndSet(buffer);
+		latestSequence = snapshot.getSequence();
+		published++;
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * Fixed capacity ring buffer of snapshots. All the snapshots are created when the ring is created
+ * (or, for a ring created without layout, when it's opened as a sink), afterwards storing a new
+ * sample overwrites the oldest one, so the memory used doesn't depend on the length of the profiling.
+ *
+ * Samples are identified by their sequence number: the first sample stored has sequence 0, the next
+ * one 1 and so on. Only the last getCapacity() samples are kept.
+ *
+ * There must be only one writer. Slots can be read safely once the writer has stopped or, while it
+ * is running, as long as the reader keeps away from the slot being written. get() and delta() don't
+ * check it, copy() and copyLatest() do: the count works as the sequence of a seqlock, read before
+ * the copy and checked again after it, so a copy torn by the writer is reported instead of returned.
+ *
+ * As a ProfileSink the ring is the in-memory sink: it keeps a copy of the last samples of a session.
+ */
+public final class SnapshotRing implements ProfileSink {
+
+	private final CpuFreqSnapshot[] snapshots;
+	// Number of samples committed since the ring was created.
+	private volatile long count = 0;
+
+	public SnapshotRing(CpuFreqLayout layout, int capacity) {
+		this(capacity);
+		allocate(layout);
+	}
+
+	// Creates a ring for a sink, the snapshots are created when the layout is known in open().
+	public SnapshotRing(int capacity) {
+		if (capacity < 2)
+			throw new IllegalArgumentException("Capacity of a SnapshotRing must be at least 2, capacity=" + capacity);
+		snapshots = new CpuFreqSnapshot[capacity];
+	}
+
+	private void allocate(CpuFreqLayout layout) {
+		for (int i = 0; i < snapshots.length; i++) {
+			snapshots[i] = new CpuFreqSnapshot(layout);
+		}
+	}
+
+	public int getCapacity() {
+		return snapshots.length;
+	}
+
+	// Total number of samples committed, including the ones already overwritten.
+	public long getCount() {
+		return count;
+	}
+
+	// Sequence number of the oldest sample still stored.
+	public long getFirstSequence() {
+		return Math.max(0, count - snapshots.length);
+	}
+
+	/*
+	 * Returns the slot where the next sample must be written. The sample is not part of the ring
+	 * until commit() is called, so a failed reading can be discarded just by not committing it.
+	 */
+	public CpuFreqSnapshot next() {
+		return snapshots[(int) (count % snapshots.length)];
+	}
+
+	/*
+	 * Adds the snapshot returned by next() to the ring. The fence keeps the writes of the next sample,
+	 * in the slot copy() may be reading, from being seen before the count that tells copy() about them.
+	 */
+	public void commit() {
+		count++;
+		SnapshotChannelWriter.fence();
+	}
+
+	@Override
+	public void open(CpuFreqSnapshot initial) {
+		if (snapshots[0] == null)
+			allocate(initial.getLayout());
+		next().copyFrom(initial);
+		commit();
+	}
+
+	@Override
+	public void onSample(CpuFreqSnapshot previous, CpuFreqSnapshot current, SnapshotDelta delta) {
+		next().copyFrom(current);
+		commit();
+	}
+
+	@Override
+	public void flush() {
+		// Nothing to save, the samples are only kept in memory.
+	}
+
+	@Override
+	public void close(CpuFreqSnapshot initial, CpuFreqSnapshot last, SnapshotDelta total) {
+		// Samples can still be read after the session.
+	}
+
+	// Layout of the samples, null until the first sample has been committed.
+	public CpuFreqLayout getLayout() {
+		if (count == 0)
+			return null;
+		return snapshots[0].getLayout();
+	}
+
+	/*
+	 * Copies the last committed sample into out. Unlike get() it can be called from any thread while
+	 * the writer is running: returns false if there is no sample yet or if the writer reused the slot
+	 * while it was being copied, in which case the caller can just try again.
+	 */
+	public boolean copyLatest(CpuFreqSnapshot out) {
+		return copy(count - 1, out);
+	}
+
+	/*
+	 * Copies the sample with the given sequence number into out, from any thread like copyLatest().
+	 * Returns false if the sample is not stored or was overwritten during the copy.
+	 */
+	public boolean copy(long sequence, CpuFreqSnapshot out) {
+		long committed = count;
+		// The slot is written again as the sample sequence + capacity, right after committed reaches it.
+		if (sequence < 0 || sequence >= committed || committed - sequence >= snapshots.length)
+			return false;
+		out.copyFrom(snapshots[(int) (sequence % snapshots.length)]);
+		// The copy must be done before reading the count again.
+		SnapshotChannelWriter.fence();
+		return count - sequence < snapshots.length;
+	}
+
+	// Returns the sample with the given sequence number or null if it's not stored anymore.
+	public CpuFreqSnapshot get(long sequence) {
+		if (sequence < getFirstSequence() || sequence >= count)
+			return null;
+		return snapshots[(int) (sequence % snapshots.length)];
+	}
+
+	/*
+	 * Stores in out the time spent in each frequency between the sample sequence - 1 and the sample
+	 * sequence, reading directly from the ring. Returns false if any of them is not stored.
+	 */
+	public boolean delta(long sequence, long[] out) {
+		CpuFreqSnapshot from = get(sequence - 1);
+		CpuFreqSnapshot to = get(sequence);
+		if (from == null || to == null)
+			return false;
+		CpuFreqSnapshot.delta(from, to, out);
+		return true;
+	}
+
+}
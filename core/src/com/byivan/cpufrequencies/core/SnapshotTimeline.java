@@ -0,0 +1,170 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.util.ArrayList;
+
+/*
+ * Shared timeline of samples for many concurrent users (e.g. named sessions). It is a sink of a
+ * PeriodicSampler and always holds the last sample delivered. acquire() returns that sample pinned,
+ * without copying or reading anything, as long as it's fresh enough; otherwise it asks the sampler
+ * for a new reading and waits for it. A pinned Entry is never modified, so users can keep only a
+ * reference to it for as long as they need, and give it back with release().
+ *
+ * Entries are reused once nobody references them, so memory grows only with the number of samples
+ * pinned at the same time. Thread safe.
+ */
+public class SnapshotTimeline implements ProfileSink {
+
+	// A sample of the timeline, valid until it's released.
+	public static final class Entry {
+
+		private final CpuFreqSnapshot snapshot;
+		private long timeNs;
+		// The timeline holds one reference to its last entry.
+		private int references;
+
+		private Entry(CpuFreqLayout layout) {
+			snapshot = new CpuFreqSnapshot(layout);
+		}
+
+		// Must not be modified.
+		public CpuFreqSnapshot getSnapshot() {
+			return snapshot;
+		}
+
+		public long getSequence() {
+			return snapshot.getSequence();
+		}
+
+		// System.nanoTime() when the sample was delivered to the timeline.
+		public long getTimeNs() {
+			return timeNs;
+		}
+
+	}
+
+	private final PeriodicSampler sampler;
+	private final ArrayList<Entry> free = new ArrayList<Entry>();
+	private CpuFreqLayout layout = null;
+	private Entry latest = null;
+	private boolean closed = false;
+	private long readingsRequested = 0;
+
+	// Creates a timeline fed by sampler, which must not have been started yet.
+	public SnapshotTimeline(PeriodicSampler sampler) {
+		this.sampler = sampler;
+		sampler.addSink(this);
+	}
+
+	// Layout of the samples, null until the first one arrives.
+	public synchronized CpuFreqLayout getLayout() {
+		return layout;
+	}
+
+	// Sequence of the last sample, -1 if there is none yet.
+	public synchronized long getLatestSequence() {
+		return latest != null ? latest.getSequence() : -1;
+	}
+
+	// Number of times acquire() had to ask the sampler for a reading.
+	public synchronized long getReadingsRequested() {
+		return readingsRequested;
+	}
+
+	/*
+	 * Returns the last sample, pinned, if it was read at most maxAgeNs nanoseconds ago (its start time,
+	 * not the delivery, a sample that waited in the pipeline is as old as its values).
+	 * Otherwise asks for a new reading and waits for it up to timeoutMs milliseconds; if it doesn't
+	 * arrive the last sample is returned anyway. Returns null if there is no sample at all.
+	 */
+	public synchronized Entry acquire(long maxAgeNs, long timeoutMs) {
+		if (!isFresh(maxAgeNs) && !closed) {
+			readingsRequested++;
+			sampler.requestSample();
+			long deadline = System.nanoTime() + timeoutMs * 1000000L;
+			while (!isFresh(maxAgeNs) && !closed) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0)
+					break;
+				try {
+					wait(left / 1000000L, (int) (left % 1000000L));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		if (latest == null)
+			return null;
+		latest.references++;
+		return latest;
+	}
+
+	// Takes one more reference to an entry returned by acquire(), given back with release() as well.
+	public synchronized void retain(Entry entry) {
+		entry.references++;
+	}
+
+	// Gives back an entry returned by acquire().
+	public synchronized void release(Entry entry) {
+		if (--entry.references == 0)
+			free.add(entry);
+	}
+
+	private boolean isFresh(long maxAgeNs) {
+		return latest != null && System.nanoTime() - latest.snapshot.getStartNs() <= maxAgeNs;
+	}
+
+	private synchronized void offer(CpuFreqSnapshot snapshot) {
+		if (layout == null)
+			layout = snapshot.getLayout();
+		Entry entry = free.size() > 0 ? free.remove(free.size() - 1) : new Entry(layout);
+		entry.snapshot.copyFrom(snapshot);
+		entry.timeNs = System.nanoTime();
+		entry.references = 1;
+		Entry previous = latest;
+		latest = entry;
+		if (previous != null)
+			release(previous);
+		notifyAll();
+	}
+
+	@Override
+	public void open(CpuFreqSnapshot initial) {
+		offer(initial);
+	}
+
+	@Override
+	public void onSample(CpuFreqSnapshot previous, CpuFreqSnapshot current, SnapshotDelta delta) {
+		offer(current);
+	}
+
+	@Override
+	public void flush() {
+		// Nothing to save.
+	}
+
+	@Override
+	public synchronized void close(CpuFreqSnapshot initial, CpuFreqSnapshot last, SnapshotDelta total) {
+		// The last sample stays available, but no new readings can be requested.
+		closed = true;
+		notifyAll();
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Reads a small sysfs/procfs file again and again without spawning processes or allocating memory.
+ * The file is opened once and every call to read() does a positional read from offset 0 into a
+ * reusable byte buffer. Sysfs regenerates the content of an attribute each time it is read from
+ * the beginning, so this returns fresh values on every call.
+ *
+ * If the file disappears (for example the CPU has been unplugged and its cpufreq directory removed)
+ * the read fails, the file is closed and it is opened again once. If it can't be opened the
+ * IOException is thrown to the caller, which can try again on the next reading.
+ *
+ * This class is not thread safe, every sampling thread must use its own readers.
+ */
+public class SysfsFileReader {
+
+	// Sysfs attributes are never bigger than a page, so this is enough in most cases.
+	public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+	private final File file;
+	private RandomAccessFile randomAccessFile = null;
+	private FileChannel channel = null;
+	private byte[] buffer;
+	private ByteBuffer byteBuffer;
+	// Number of valid bytes in buffer after the last read.
+	private int length = 0;
+
+	public SysfsFileReader(File file) {
+		this(file, DEFAULT_BUFFER_SIZE);
+	}
+
+	public SysfsFileReader(File file, int bufferSize) {
+		this.file = file;
+		buffer = new byte[bufferSize];
+		byteBuffer = ByteBuffer.wrap(buffer);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	// Buffer that holds the content of the file after the last read. Only the first getLength() bytes
+	// are valid.
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public boolean isOpen() {
+		return channel != null;
+	}
+
+	/*
+	 * Reads the whole file into the buffer and returns the number of bytes read. The file is opened
+	 * the first time and reopened if the open one is not valid anymore.
+	 */
+	public int read() throws IOException {
+		if (channel == null) {
+			open();
+			return readFully();
+		}
+		try {
+			return readFully();
+		} catch (IOException e) {
+			// The file may have been removed and created again (CPU hotplug). Try once more with a
+			// new file descriptor.
+			close();
+			open();
+			return readFully();
+		}
+	}
+
+	private void open() throws IOException {
+		randomAccessFile = new RandomAccessFile(file, "r");
+		channel = randomAccessFile.getChannel();
+	}
+
+	private int readFully() throws IOException {
+		length = 0;
+		byteBuffer.clear();
+		while (true) {
+			int read = channel.read(byteBuffer, length);
+			if (read < 0)
+				break;
+			length += read;
+			if (length == buffer.length) {
+				// The file doesn't fit. Grow the buffer and read it again from the beginning so the
+				// content comes from a single generation of the file.
+				buffer = new byte[buffer.length * 2];
+				byteBuffer = ByteBuffer.wrap(buffer);
+				length = 0;
+			} else if (read == 0) {
+				break;
+			}
+		}
+		return length;
+	}
+
+	// Closes the file. The next call to read() will open it again.
+	public void close() {
+		length = 0;
+		if (randomAccessFile != null) {
+			try {
+				randomAccessFile.close();
+			} catch (IOException e) {
+				// Nothing to do, the descriptor is not going to be used again.
+			}
+		}
+		randomAccessFile = null;
+		channel = null;
+	}
+
+}
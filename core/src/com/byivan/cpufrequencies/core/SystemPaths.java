@@ -0,0 +1,83 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+import java.io.File;
+
+/*
+ * Location of the kernel files read by the profiler. By default they are the real /sys and /proc,
+ * but both roots can be replaced by any directory with the same layout, e.g. a copy taken from a
+ * device or a tree generated for tests and benchmarks, so the profiler runs unchanged against it.
+ * All the paths are built from here, no class uses a hardcoded path.
+ */
+public final class SystemPaths {
+
+	public static final String DEFAULT_SYSFS_ROOT = "/sys";
+	public static final String DEFAULT_PROCFS_ROOT = "/proc";
+
+	private final File sysfsRoot;
+	private final File procfsRoot;
+
+	public SystemPaths() {
+		this(new File(DEFAULT_SYSFS_ROOT), new File(DEFAULT_PROCFS_ROOT));
+	}
+
+	public SystemPaths(File sysfsRoot, File procfsRoot) {
+		this.sysfsRoot = sysfsRoot;
+		this.procfsRoot = procfsRoot;
+	}
+
+	// Paths of a tree with the folders sys and proc inside root, like the ones created by FakeSysfs.
+	public static SystemPaths fromRoot(File root) {
+		return new SystemPaths(new File(root, "sys"), new File(root, "proc"));
+	}
+
+	public File getSysfsRoot() {
+		return sysfsRoot;
+	}
+
+	public File getProcfsRoot() {
+		return procfsRoot;
+	}
+
+	// Directory with the files possible, present and online and the cpufreq policies.
+	public File getCpuRoot() {
+		return new File(sysfsRoot, "devices/system/cpu");
+	}
+
+	// Busy and idle time of every CPU.
+	public File getProcStatFile() {
+		return new File(procfsRoot, "stat");
+	}
+
+	// Time since boot, including the time suspended.
+	public File getUptimeFile() {
+		return new File(procfsRoot, "uptime");
+	}
+
+	// Directory of a power supply, e.g. "battery", with its charge counter.
+	public File getPowerSupplyDirectory(String name) {
+		return new File(sysfsRoot, "class/power_supply/" + name);
+	}
+
+	@Override
+	public String toString() {
+		return "sysfs=" + sysfsRoot.getPath() + " procfs=" + procfsRoot.getPath();
+	}
+
+}
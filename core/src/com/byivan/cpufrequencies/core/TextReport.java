@@ -0,0 +1,150 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * Plain text report of the time spent in each frequency, easy to read and to parse from scripts. One
+ * line per policy with its mean frequency in kHz and the estimated megacycles of each of its CPUs,
+ * followed by one line per frequency with its share of the total, and one line per CPU of the policy
+ * with its busy and idle time from /proc/stat and the megacycles run while busy (left out if they
+ * are not available). The last line has the megacycles of all the CPUs. Times in units of 10ms like
+ * time_in_state:
+ *
+ * policy=0 cpus=0,1,2,3 total=1200 mean_khz=450000 mcycles=5400
+ * freq=300000 time=1000 pct=83.3
+ * freq=1200000 time=200 pct=16.6
+ * cpu=0 busy=350 idle=850 busy_mcycles=1575
+ * total_mcycles=21600
+ *
+ * When the frequency transitions of a policy are sampled its frequency lines are followed by the
+ * number of transitions and their rate per second, and by one line for each pair of frequencies with
+ * transitions between them (pairs without any are always left out):
+ *
+ * transitions=150 per_sec=12.5
+ * trans from=300000 to=1200000 count=75
+ *
+ * The CPU lines are followed by one line per cpuidle state of the CPU, if they are sampled, with the
+ * time spent in it in microseconds and the number of times it was entered (left out if it was not
+ * entered and skipZeros is set):
+ *
+ * idle cpu=0 state=WFI time_us=250000 usage=1200
+ *
+ * With a PowerModel the CPU lines are always written, with the estimated energy in mJ, and the
+ * total charge and energy are added at the end:
+ *
+ * cpu=0 busy=350 idle=850 busy_mcycles=1575 energy_mj=1900
+ * total_energy_mj=7600 total_charge_uah=555
+ *
+ * A policy that couldn't be read is reported as "policy=4 cpus=4,5,6,7 unavailable".
+ */
+public final class TextReport {
+
+	private TextReport() {
+	}
+
+	// Appends the report of delta to sb. Frequencies with no time are left out if skipZeros is set.
+	public static void append(StringBuilder sb, SnapshotDelta delta, boolean skipZeros) {
+		append(sb, delta, skipZeros, null);
+	}
+
+	// Like append(sb, delta, skipZeros), with the energy estimated by model if it's not null.
+	public static void append(StringBuilder sb, SnapshotDelta delta, boolean skipZeros, PowerModel model) {
+		CpuFreqLayout layout = delta.getLayout();
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			CpuFreqPolicy policy = layout.getPolicy(p);
+			sb.append("policy=").append(policy.getId()).append(" cpus=").append(policy.getCpuList().replace(' ', ','));
+			if (!delta.isValid(p)) {
+				sb.append(" unavailable\n");
+				continue;
+			}
+			sb.append(" total=").append(delta.getTotal(p)).append(" mean_khz=").append(delta.getMeanFrequency(p))
+					.append(" mcycles=").append(delta.getCycles(p) / 1000000L).append('\n');
+			FrequencyTable frequencies = layout.getFrequencyTable(p);
+			for (int slot = 0; slot < frequencies.size(); slot++) {
+				long time = delta.get(p, slot);
+				if (time == 0 && skipZeros)
+					continue;
+				sb.append("freq=").append(frequencies.getFrequency(slot)).append(" time=").append(time).append(" pct=");
+				appendPerMille(sb, delta.getPerMille(p, slot)).append('\n');
+			}
+			appendTransitions(sb, delta, p);
+			long[] busy = delta.getCpuBusy();
+			long[] idle = delta.getCpuIdle();
+			for (int i = 0; i < layout.getNumCpus(); i++) {
+				if (layout.getPolicyIndexOfCpu(i) != p || (busy[i] < 0 && model == null))
+					continue;
+				sb.append("cpu=").append(layout.getCpuId(i));
+				if (busy[i] >= 0)
+					sb.append(" busy=").append(busy[i]).append(" idle=").append(idle[i]).append(" busy_mcycles=")
+							.append(delta.getBusyCycles(i) / 1000000L);
+				if (model != null)
+					sb.append(" energy_mj=").append(model.toMilliJoules(model.getCpuCharge(delta, i)));
+				sb.append('\n');
+			}
+			appendIdleStates(sb, delta, p, skipZeros);
+		}
+		sb.append("total_mcycles=").append(delta.getTotalCycles() / 1000000L).append('\n');
+		if (model != null) {
+			double charge = model.getTotalCharge(delta);
+			sb.append("total_energy_mj=").append(model.toMilliJoules(charge)).append(" total_charge_uah=")
+					.append(PowerModel.toMicroAmpHours(charge)).append('\n');
+		}
+	}
+
+	private static void appendTransitions(StringBuilder sb, SnapshotDelta delta, int policyIndex) {
+		long total = delta.getTotalTransitions(policyIndex);
+		if (total >= 0) {
+			sb.append("transitions=").append(total).append(" per_sec=");
+			appendPerMille(sb, delta.getTransitionRateDeci(policyIndex)).append('\n');
+		}
+		FrequencyTable frequencies = delta.getLayout().getFrequencyTable(policyIndex);
+		for (int from = 0; from < frequencies.size(); from++) {
+			for (int to = 0; to < frequencies.size(); to++) {
+				long count = delta.getTransitions(policyIndex, from, to);
+				if (count <= 0)
+					continue;
+				sb.append("trans from=").append(frequencies.getFrequency(from)).append(" to=")
+						.append(frequencies.getFrequency(to)).append(" count=").append(count).append('\n');
+			}
+		}
+	}
+
+	private static void appendIdleStates(StringBuilder sb, SnapshotDelta delta, int policyIndex, boolean skipZeros) {
+		CpuFreqLayout layout = delta.getLayout();
+		long[] time = delta.getIdleStateTime();
+		long[] usage = delta.getIdleStateUsage();
+		for (int i = 0; i < layout.getNumCpus(); i++) {
+			if (layout.getPolicyIndexOfCpu(i) != policyIndex)
+				continue;
+			int offset = layout.getIdleStateOffset(i);
+			for (int k = 0; k < layout.getNumIdleStates(i); k++) {
+				if (time[offset + k] < 0 || (usage[offset + k] == 0 && skipZeros))
+					continue;
+				sb.append("idle cpu=").append(layout.getCpuId(i)).append(" state=").append(layout.getIdleStateName(i, k))
+						.append(" time_us=").append(time[offset + k]).append(" usage=").append(usage[offset + k])
+						.append('\n');
+			}
+		}
+	}
+
+	// Appends a value in tenths of a percent as a percentage with one decimal, e.g. "12.5".
+	public static StringBuilder appendPerMille(StringBuilder sb, long perMille) {
+		return sb.append(perMille / 10).append('.').append(perMille % 10);
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * Parses the raw bytes of a time_in_state file ("<frequency> <time>" pair in each line) straight
+ * into two primitive arrays, without creating Strings, boxed numbers or any other object. Together
+ * with SysfsFileReader a reading of time_in_state doesn't allocate memory once the arrays have the
+ * right size.
+ */
+public final class TimeInStateParser {
+
+	// Returned by parse() when the content doesn't have the expected format.
+	public static final int INVALID_FORMAT = -1;
+
+	private TimeInStateParser() {
+	}
+
+	/*
+	 * Parses the first length bytes of buffer. Frequency and time of line i are stored in
+	 * frequencies[i] and times[i]. Returns the number of lines found or INVALID_FORMAT. If the
+	 * file has more lines than the capacity of the arrays only the ones that fit are stored but the
+	 * total number is returned anyway, so the caller can grow the arrays and parse again.
+	 */
+	public static int parse(byte[] buffer, int length, long[] frequencies, long[] times) {
+		int capacity = Math.min(frequencies.length, times.length);
+		int lines = 0;
+		int i = 0;
+		while (i < length) {
+			i = skipBlanks(buffer, i, length);
+			if (i == length)
+				break;
+			if (buffer[i] == '\n') {
+				// Empty line
+				i++;
+				continue;
+			}
+			// Frequency
+			long frequency = 0;
+			int start = i;
+			while (i < length && isDigit(buffer[i])) {
+				frequency = frequency * 10 + (buffer[i] - '0');
+				i++;
+			}
+			if (i == start)
+				return INVALID_FORMAT;
+			i = skipBlanks(buffer, i, length);
+			// Time
+			long time = 0;
+			start = i;
+			while (i < length && isDigit(buffer[i])) {
+				time = time * 10 + (buffer[i] - '0');
+				i++;
+			}
+			if (i == start)
+				return INVALID_FORMAT;
+			i = skipBlanks(buffer, i, length);
+			// Only two values per line.
+			if (i < length && buffer[i] != '\n')
+				return INVALID_FORMAT;
+			i++;
+			if (lines < capacity) {
+				frequencies[lines] = frequency;
+				times[lines] = time;
+			}
+			lines++;
+		}
+		return lines;
+	}
+
+	static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	// Skips spaces, tabs and carriage returns, but not new lines.
+	static int skipBlanks(byte[] buffer, int i, int length) {
+		while (i < length && (buffer[i] == ' ' || buffer[i] == '\t' || buffer[i] == '\r')) {
+			i++;
+		}
+		return i;
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * Parses the raw bytes of a cpufreq stats/trans_table file straight into primitive arrays, like
+ * TimeInStateParser does with time_in_state. The file has a title line, a header line with the
+ * frequencies after a ':' and one line per frequency with the number of transitions from it to
+ * each of the frequencies of the header:
+ *
+ *    From  :    To
+ *          :    300000    600000
+ *    300000:         0        12
+ *    600000:        11         0
+ *
+ * The counts are stored in a single dense array, row after row, so no object is created per cell.
+ */
+public final class TransTableParser {
+
+	// Returned by parse() when the content doesn't have the expected format.
+	public static final int INVALID_FORMAT = -1;
+
+	private TransTableParser() {
+	}
+
+	/*
+	 * Parses the first length bytes of buffer. The frequencies of the header are stored in
+	 * frequencies and the transitions from frequency i to frequency j in counts[i * n + j], where n is
+	 * the number of frequencies, in the order of the file. Returns n or INVALID_FORMAT. If n is larger
+	 * than the capacity of frequencies, or n * n larger than counts, nothing is guaranteed to be
+	 * stored but n is returned anyway, so the caller can grow the arrays and parse again.
+	 */
+	public static int parse(byte[] buffer, int length, long[] frequencies, long[] counts) {
+		// Skip the lines before the header, which is the first one starting with ':'.
+		int i = 0;
+		while (true) {
+			i = TimeInStateParser.skipBlanks(buffer, i, length);
+			if (i == length)
+				return INVALID_FORMAT;
+			if (buffer[i] == ':')
+				break;
+			i = skipLine(buffer, i, length);
+		}
+		i++;
+		// Frequencies of the header
+		int n = 0;
+		while (true) {
+			i = TimeInStateParser.skipBlanks(buffer, i, length);
+			if (i == length || buffer[i] == '\n')
+				break;
+			int start = i;
+			long frequency = 0;
+			while (i < length && TimeInStateParser.isDigit(buffer[i])) {
+				frequency = frequency * 10 + (buffer[i] - '0');
+				i++;
+			}
+			if (i == start)
+				return INVALID_FORMAT;
+			if (n < frequencies.length)
+				frequencies[n] = frequency;
+			n++;
+		}
+		if (n == 0)
+			return INVALID_FORMAT;
+		boolean fits = n <= frequencies.length && (long) n * n <= counts.length;
+		// One row per frequency
+		int row = 0;
+		while (i < length) {
+			i = TimeInStateParser.skipBlanks(buffer, i, length);
+			if (i == length)
+				break;
+			if (buffer[i] == '\n') {
+				// Empty line
+				i++;
+				continue;
+			}
+			if (row == n)
+				return INVALID_FORMAT;
+			int start = i;
+			long from = 0;
+			while (i < length && TimeInStateParser.isDigit(buffer[i])) {
+				from = from * 10 + (buffer[i] - '0');
+				i++;
+			}
+			if (i == start || i == length || buffer[i] != ':')
+				return INVALID_FORMAT;
+			if (fits && from != frequencies[row])
+				return INVALID_FORMAT;
+			i++;
+			for (int column = 0; column < n; column++) {
+				i = TimeInStateParser.skipBlanks(buffer, i, length);
+				start = i;
+				long count = 0;
+				while (i < length && TimeInStateParser.isDigit(buffer[i])) {
+					count = count * 10 + (buffer[i] - '0');
+					i++;
+				}
+				if (i == start)
+					return INVALID_FORMAT;
+				if (fits)
+					counts[row * n + column] = count;
+			}
+			i = TimeInStateParser.skipBlanks(buffer, i, length);
+			if (i < length && buffer[i] != '\n')
+				return INVALID_FORMAT;
+			i++;
+			row++;
+		}
+		return row == n ? n : INVALID_FORMAT;
+	}
+
+	private static int skipLine(byte[] buffer, int i, int length) {
+		while (i < length && buffer[i] != '\n') {
+			i++;
+		}
+		return i < length ? i + 1 : length;
+	}
+
+}
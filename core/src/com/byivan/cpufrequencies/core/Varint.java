@@ -0,0 +1,52 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.core;
+
+/*
+ * Variable length encoding of integers used by the binary trace. Each byte stores 7 bits of the
+ * value, lowest bits first, and the highest bit says whether more bytes follow. Small values take
+ * one byte. Signed values are zigzag encoded first (0, -1, 1, -2... become 0, 1, 2, 3...) so small
+ * negative values are small too.
+ */
+final class Varint {
+
+	// Maximum number of bytes of an encoded long.
+	static final int MAX_LENGTH = 10;
+
+	private Varint() {
+	}
+
+	// Writes value at buffer[position] and returns the position after the last byte written.
+	static int writeUnsigned(byte[] buffer, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	static int writeSigned(byte[] buffer, int position, long value) {
+		return writeUnsigned(buffer, position, (value << 1) ^ (value >> 63));
+	}
+
+	static long decodeSigned(long zigzag) {
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.linux;
+
+import com.byivan.cpufrequencies.core.CurFreqSampler;
+import com.byivan.cpufrequencies.core.PeriodicSampler;
+import com.byivan.cpufrequencies.core.SessionManager;
+import com.byivan.cpufrequencies.core.SessionReport;
+
+/*
+ * Executes the commands of the control socket on the named sessions of the daemon. Sessions share
+ * the timeline of the daemon sampler, so a command only reads sysfs if the last sample is older than
+ * the sampling period (e.g. right after the daemon starts); otherwise it's answered in microseconds.
+ *
+ * Commands, one per line. The session name is optional, SessionManager.DEFAULT_SESSION if not given:
+ * ping                     OK pong
+ * start [name]             Starts a session at the last sample.
+ * mark <label> [name]      Splits the session, the report has a segment for each mark.
+ * query [name]             Report of the session until now, it keeps running.
+ * stop [name]              Report of the session, which finishes. Other sessions are not affected.
+ * list                     Names of the running sessions.
+ * stats                    Duration and skew of the readings (see CpuFreqSnapshot.getSkewNs()).
+ * curfreq [ms]             Rate, jitter and timeline of the high rate sampler of the last ms milliseconds,
+ *                          all the timeline kept if not given (see CurFreqSampler.appendReport()).
+ * shutdown                 Stops the daemon.
+ *
+ * Every response starts with a line "OK ..." or "ERR <message>", may have more lines (see
+ * SessionReport) and ends with an empty line.
+ */
+public class CommandHandler {
+
+	private final SessionManager sessions;
+	private final PeriodicSampler sampler;
+	private final CurFreqSampler curFreqSampler;
+	private volatile boolean shutdownRequested = false;
+
+	public CommandHandler(SessionManager sessions, PeriodicSampler sampler) {
+		this(sessions, sampler, null);
+	}
+
+	// curFreqSampler is the high rate sampler of the daemon, null if it doesn't have one.
+	public CommandHandler(SessionManager sessions, PeriodicSampler sampler, CurFreqSampler curFreqSampler) {
+		this.sessions = sessions;
+		this.sampler = sampler;
+		this.curFreqSampler = curFreqSampler;
+	}
+
+	public boolean isShutdownRequested() {
+		return shutdownRequested;
+	}
+
+	// Returns the response to a command line.
+	public String execute(String line) {
+		String[] words = line.trim().split("\\s+");
+		String command = words[0];
+		try {
+			if ("ping".equals(command))
+				return "OK pong\n\n";
+			if ("shutdown".equals(command)) {
+				shutdownRequested = true;
+				return "OK shutting down\n\n";
+			}
+			if ("list".equals(command))
+				return list();
+			if ("stats".equals(command))
+				return stats();
+			if ("curfreq".equals(command))
+				return curFreq(words);
+			if ("start".equals(command)) {
+				String name = getName(words, 1);
+				long sequence = sessions.start(name);
+				return "OK started session=" + name + " seq=" + sequence + "\n\n";
+			}
+			if ("mark".equals(command)) {
+				if (words.length < 2)
+					return error("a mark needs a label");
+				long sequence = sessions.mark(getName(words, 2), words[1]);
+				return "OK mark=" + words[1] + " seq=" + sequence + "\n\n";
+			}
+			if ("query".equals(command))
+				return report("running", sessions.query(getName(words, 1)));
+			if ("stop".equals(command))
+				return report("stopped", sessions.stop(getName(words, 1)));
+			return error("unknown command " + command);
+		} catch (IllegalStateException e) {
+			return error(e.getMessage());
+		} catch (NumberFormatException e) {
+			return error("invalid number " + e.getMessage());
+		}
+	}
+
+	private String list() {
+		String[] names = sessions.getNames();
+		StringBuilder sb = new StringBuilder("OK sessions=");
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(names[i]);
+		}
+		sb.append(" seq=").append(sessions.getTimeline().getLatestSequence());
+		sb.append(" readings_requested=").append(sessions.getTimeline().getReadingsRequested());
+		return sb.append("\n\n").toString();
+	}
+
+	private String stats() {
+		StringBuilder sb = new StringBuilder("OK readings=").append(sampler.getReadings());
+		sb.append(" read_threads=").append(sampler.getReadThreads());
+		sb.append(" read_us=").append(sampler.getMeanReadNs() / 1000);
+		sb.append(" skew_us=").append(sampler.getLastSkewNs() / 1000);
+		sb.append(" skew_mean_us=").append(sampler.getMeanSkewNs() / 1000);
+		sb.append(" skew_max_us=").append(sampler.getMaxSkewNs() / 1000);
+		return sb.append("\n\n").toString();
+	}
+
+	private String curFreq(String[] words) {
+		if (curFreqSampler == null)
+			return error("high rate sampling is not enabled, see --cur-freq-ms");
+		long sinceMs = -1;
+		if (words.length > 1) {
+			sinceMs = Long.parseLong(words[1]);
+			// In nanoseconds it must fit in a long.
+			if (sinceMs < 0 || sinceMs > Long.MAX_VALUE / 1000000L)
+				return error("ms out of range 0.." + Long.MAX_VALUE / 1000000L);
+		}
+		StringBuilder sb = new StringBuilder("OK curfreq\n");
+		curFreqSampler.appendReport(sb, sinceMs);
+		return sb.append('\n').toString();
+	}
+
+	private static String getName(String[] words, int index) {
+		return words.length > index ? words[index] : SessionManager.DEFAULT_SESSION;
+	}
+
+	private static String report(String status, SessionReport report) {
+		StringBuilder sb = new StringBuilder("OK ").append(status).append('\n');
+		report.appendTo(sb);
+		return sb.append('\n').toString();
+	}
+
+	private static String error(String message) {
+		return "ERR " + message + "\n\n";
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.linux;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import com.byivan.cpufrequencies.core.CpuFreqSnapshot;
+import com.byivan.cpufrequencies.core.SnapshotChannelReader;
+import com.byivan.cpufrequencies.core.SnapshotDelta;
+import com.byivan.cpufrequencies.core.TextReport;
+
+/*
+ * Sends commands to a ProfilerDaemon and prints the responses, with the round trip time of each one
+ * on the standard error. Exits with 1 if any command fails.
+ *
+ * Usage: java -cp <classes> com.byivan.cpufrequencies.linux.ProfilerCtl [--socket <path>] <command> [<command>...]
+ * e.g. ProfilerCtl start "mark warmup" query stop
+ *
+ * With --shm <file> [<interval_ms>] it doesn't use the socket: it reads the samples published by a
+ * daemon started with --shm straight from the mapped file, and prints the time in each frequency during
+ * the interval (1000ms by default).
+ */
+public class ProfilerCtl {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length > 1 && "--shm".equals(args[0])) {
+			watch(new File(args[1]), args.length > 2 ? Long.parseLong(args[2]) : 1000);
+			return;
+		}
+		File socketFile = ProfilerDaemon.getDefaultSocketFile();
+		int first = 0;
+		if (args.length > 1 && "--socket".equals(args[0])) {
+			socketFile = new File(args[1]);
+			first = 2;
+		}
+		if (first == args.length) {
+			System.err.println("Usage: ProfilerCtl [--socket <path>] <command> [<command>...]");
+			System.exit(2);
+		}
+		boolean failed = false;
+		SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.connect(UnixDomainSocketAddress.of(socketFile.toPath()));
+			BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+					StandardCharsets.UTF_8));
+			OutputStream out = Channels.newOutputStream(channel);
+			for (int i = first; i < args.length; i++) {
+				long start = System.nanoTime();
+				out.write((args[i] + "\n").getBytes(StandardCharsets.UTF_8));
+				out.flush();
+				String line = in.readLine();
+				long elapsedUs = (System.nanoTime() - start) / 1000;
+				if (line == null)
+					break;
+				if (line.startsWith("ERR"))
+					failed = true;
+				// The response ends with an empty line.
+				while (line != null && line.length() > 0) {
+					System.out.println(line);
+					line = in.readLine();
+				}
+				System.err.println(args[i] + ": " + elapsedUs + "us");
+			}
+		} finally {
+			channel.close();
+		}
+		if (failed)
+			System.exit(1);
+	}
+
+	// Prints the delta between the last sample published now and after intervalMs.
+	private static void watch(File file, long intervalMs) throws IOException {
+		SnapshotChannelReader reader = new SnapshotChannelReader(file);
+		CpuFreqSnapshot first = new CpuFreqSnapshot(reader.getLayout());
+		CpuFreqSnapshot last = new CpuFreqSnapshot(reader.getLayout());
+		long start = System.nanoTime();
+		long from = reader.readLatest(first);
+		long readUs = (System.nanoTime() - start) / 1000;
+		if (from < 0) {
+			System.err.println("No sample published in " + file);
+			System.exit(1);
+		}
+		try {
+			Thread.sleep(intervalMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long to = reader.readLatest(last);
+		SnapshotDelta delta = new SnapshotDelta(reader.getLayout());
+		delta.compute(first, last);
+		StringBuilder sb = new StringBuilder();
+		sb.append("samples=").append(from).append("..").append(to).append('\n');
+		TextReport.append(sb, delta, true);
+		System.out.print(sb);
+		System.err.println("read: " + readUs + "us");
+	}
+
+}
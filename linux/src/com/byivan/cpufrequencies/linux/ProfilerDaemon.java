@@ -0,0 +1,277 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies.linux;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.byivan.cpufrequencies.core.CpuTopology;
+import com.byivan.cpufrequencies.core.CsvSessionWriter;
+import com.byivan.cpufrequencies.core.CurFreqSampler;
+import com.byivan.cpufrequencies.core.Log;
+import com.byivan.cpufrequencies.core.PowerProfile;
+import com.byivan.cpufrequencies.core.PowerSupply;
+import com.byivan.cpufrequencies.core.ProfileSink;
+import com.byivan.cpufrequencies.core.ProfileSinks;
+import com.byivan.cpufrequencies.core.SharedProfiler;
+import com.byivan.cpufrequencies.core.SnapshotChannelWriter;
+import com.byivan.cpufrequencies.core.SystemPaths;
+
+/*
+ * Long running profiler for Linux hosts, the counterpart of CpuProfilerService without Android. It
+ * samples time_in_state continuously with one warm sampler and is controlled through a Unix domain
+ * socket with the text commands of CommandHandler, so many short measurements, even overlapping ones
+ * in named sessions, share the sampler without starting a process or reading sysfs for each one.
+ * Needs Java 16 or newer.
+ *
+ * Usage: java -cp <classes> com.byivan.cpufrequencies.linux.ProfilerDaemon [options]
+ *   --socket <path>       Control socket, $XDG_RUNTIME_DIR/cpufreq-profiler.sock or /tmp/... by default.
+ *   --period-ms <ms>      Sampling period, 100 by default. Commands see samples at most this old.
+ *   --sysfs <dir>         Root used instead of /sys.
+ *   --procfs <dir>        Root used instead of /proc.
+ *   --sinks <list>        Sinks fed with every sample of the daemon (csv, trace), none by default.
+ *   --output-dir <dir>    Directory of the files of the sinks, the current one by default.
+ *   --read-threads <n>    Threads that read the policies of a sample concurrently, 1 by default.
+ *   --shm <file>          Also publishes every sample in this memory mapped file (SnapshotChannelWriter),
+ *                         other processes can read it with SnapshotChannelReader or ProfilerCtl --shm.
+ *   --power-profile <xml> Estimates the energy of sessions and CSV files with this PowerProfile.
+ *   --battery <file>      Charge counter in uAh measured during the sessions to check the power model,
+ *                         <sysfs>/class/power_supply/battery/charge_counter by default if it exists.
+ *   --cur-freq-ms <ms>    Also polls scaling_cur_freq of every policy with this period (1 to 10ms) and keeps
+ *                         a timeline of the changes, see the command curfreq. Disabled by default.
+ *
+ * Try it with: echo start | nc -U <socket>, or with ProfilerCtl.
+ */
+public class ProfilerDaemon {
+
+	public static final String SOCKET_NAME = "cpufreq-profiler.sock";
+	public static final long DEFAULT_PERIOD_MS = 100;
+	// Samples kept in memory.
+	private static final int HISTORY_CAPACITY = 16;
+
+	private final File socketFile;
+	private final SharedProfiler profiler;
+	// High rate sampler, null if it's disabled.
+	private final CurFreqSampler curFreqSampler;
+	private final CommandHandler handler;
+	private ServerSocketChannel server = null;
+
+	public ProfilerDaemon(File socketFile, SystemPaths paths, long periodMs) {
+		this(socketFile, paths, periodMs, 0);
+	}
+
+	// curFreqPeriodMs is the period of the high rate sampler, 0 to disable it.
+	public ProfilerDaemon(File socketFile, SystemPaths paths, long periodMs, int curFreqPeriodMs) {
+		this.socketFile = socketFile;
+		// The last sample is normally less than a period old plus the delivery through the pipeline, so
+		// with two periods commands don't cause extra readings while the sampler keeps up.
+		profiler = new SharedProfiler(new CpuTopology(paths), periodMs, 2 * periodMs, HISTORY_CAPACITY);
+		curFreqSampler = curFreqPeriodMs > 0 ? new CurFreqSampler(new CpuTopology(paths), curFreqPeriodMs,
+				CurFreqSampler.DEFAULT_CAPACITY) : null;
+		handler = new CommandHandler(profiler.getSessions(), profiler.getSampler(), curFreqSampler);
+	}
+
+	// Sinks must be added before run().
+	public void addSink(ProfileSink sink) {
+		profiler.addSink(sink);
+	}
+
+	public static File getDefaultSocketFile() {
+		String runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+		return new File(runtimeDir != null ? runtimeDir : System.getProperty("java.io.tmpdir"), SOCKET_NAME);
+	}
+
+	// Starts sampling and serves the control socket until the command shutdown.
+	public void run() throws IOException, InterruptedException {
+		// A socket left by a daemon that didn't finish cleanly would make bind() fail.
+		Files.deleteIfExists(socketFile.toPath());
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(socketFile.toPath()));
+		profiler.start();
+		if (curFreqSampler != null)
+			curFreqSampler.start();
+		Log.i(getClass().getName(), "Listening on " + socketFile.getPath());
+		try {
+			while (true) {
+				SocketChannel client;
+				try {
+					client = server.accept();
+				} catch (IOException e) {
+					// The server is closed by shutdown().
+					break;
+				}
+				Thread thread = new Thread(new Connection(client), "ProfilerDaemonConnection");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} finally {
+			if (curFreqSampler != null)
+				curFreqSampler.stop();
+			profiler.stop();
+			profiler.join();
+			if (curFreqSampler != null)
+				curFreqSampler.join();
+			Files.deleteIfExists(socketFile.toPath());
+		}
+		Log.i(getClass().getName(), "Daemon stopped");
+	}
+
+	// Stops accepting commands, run() stops the sampler and returns.
+	public void shutdown() {
+		try {
+			if (server != null)
+				server.close();
+		} catch (IOException e) {
+			Log.e(getClass().getName(), e.getMessage(), e);
+		}
+	}
+
+	// Commands of one client, answered in order.
+	private class Connection implements Runnable {
+
+		private final SocketChannel channel;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void run() {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+						StandardCharsets.UTF_8));
+				OutputStream out = Channels.newOutputStream(channel);
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.trim().length() == 0)
+						continue;
+					out.write(handler.execute(line).getBytes(StandardCharsets.UTF_8));
+					out.flush();
+					if (handler.isShutdownRequested()) {
+						shutdown();
+						break;
+					}
+				}
+			} catch (IOException e) {
+				Log.w(getClass().getName(), "Connection closed, " + e.getMessage());
+			} finally {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Nothing to do.
+				}
+			}
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception {
+		File socketFile = getDefaultSocketFile();
+		long periodMs = DEFAULT_PERIOD_MS;
+		String sysfsRoot = SystemPaths.DEFAULT_SYSFS_ROOT;
+		String procfsRoot = SystemPaths.DEFAULT_PROCFS_ROOT;
+		String sinks = "";
+		File outputDir = new File(".");
+		File shmFile = null;
+		int readThreads = 1;
+		File powerProfileFile = null;
+		File batteryFile = null;
+		int curFreqPeriodMs = 0;
+		for (int i = 0; i < args.length; i++) {
+			if ("--socket".equals(args[i]))
+				socketFile = new File(args[++i]);
+			else if ("--period-ms".equals(args[i]))
+				periodMs = Long.parseLong(args[++i]);
+			else if ("--sysfs".equals(args[i]))
+				sysfsRoot = args[++i];
+			else if ("--procfs".equals(args[i]))
+				procfsRoot = args[++i];
+			else if ("--sinks".equals(args[i]))
+				sinks = args[++i];
+			else if ("--output-dir".equals(args[i]))
+				outputDir = new File(args[++i]);
+			else if ("--read-threads".equals(args[i]))
+				readThreads = Integer.parseInt(args[++i]);
+			else if ("--shm".equals(args[i]))
+				shmFile = new File(args[++i]).getAbsoluteFile();
+			else if ("--power-profile".equals(args[i]))
+				powerProfileFile = new File(args[++i]);
+			else if ("--battery".equals(args[i]))
+				batteryFile = new File(args[++i]);
+			else if ("--cur-freq-ms".equals(args[i]))
+				curFreqPeriodMs = Integer.parseInt(args[++i]);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if (periodMs <= 0)
+			throw new IllegalArgumentException("The daemon needs a positive sampling period, periodMs=" + periodMs);
+		SystemPaths paths = new SystemPaths(new File(sysfsRoot), new File(procfsRoot));
+		final ProfilerDaemon daemon = new ProfilerDaemon(socketFile, paths, periodMs, curFreqPeriodMs);
+		PowerProfile powerProfile = powerProfileFile != null ? PowerProfile.load(powerProfileFile) : null;
+		PowerSupply battery = null;
+		if (batteryFile != null) {
+			battery = new PowerSupply(batteryFile);
+		} else {
+			battery = new PowerSupply(paths, PowerSupply.DEFAULT_NAME);
+			if (!battery.getFile().exists())
+				battery = null;
+		}
+		daemon.profiler.getSessions().setPower(powerProfile, battery);
+		String baseName = ProfileSinks.newSessionName();
+		String[] names = sinks.split(",");
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i].trim();
+			if (name.length() == 0)
+				continue;
+			ProfileSink sink = ProfileSinks.create(name, outputDir, baseName, 0);
+			if (sink == null)
+				throw new IllegalArgumentException("Unknown sink " + name);
+			if (sink instanceof CsvSessionWriter)
+				((CsvSessionWriter) sink).setPower(powerProfileFile, battery);
+			daemon.addSink(sink);
+		}
+		if (shmFile != null)
+			daemon.addSink(new SnapshotChannelWriter(shmFile));
+		daemon.profiler.getSampler().setReadThreads(readThreads);
+		// SIGTERM and SIGINT finish the files of the sinks like the command shutdown.
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				daemon.shutdown();
+				daemon.profiler.stop();
+				try {
+					daemon.profiler.join();
+				} catch (InterruptedException e) {
+					// Exiting anyway.
+				}
+			}
+		});
+		daemon.run();
+	}
+
+}
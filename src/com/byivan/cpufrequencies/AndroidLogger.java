@@ -0,0 +1,52 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies;
+
+import android.util.Log;
+
+import com.byivan.cpufrequencies.core.Logger;
+
+/*
+ * Sends the messages of the profiler core to logcat.
+ */
+public class AndroidLogger implements Logger {
+
+	// Makes the core log to logcat.
+	public static void install() {
+		com.byivan.cpufrequencies.core.Log.setLogger(new AndroidLogger());
+	}
+
+	@Override
+	public void i(String tag, String msg) {
+		Log.i(tag, msg);
+	}
+
+	@Override
+	public void w(String tag, String msg) {
+		Log.w(tag, msg);
+	}
+
+	@Override
+	public void e(String tag, String msg, Throwable tr) {
+		if (tr != null)
+			Log.e(tag, msg, tr);
+		else
+			Log.e(tag, msg);
+	}
+
+}
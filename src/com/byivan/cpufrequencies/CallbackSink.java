@@ -0,0 +1,137 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies;
+
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+
+import com.byivan.cpufrequencies.core.CpuFreqSnapshot;
+import com.byivan.cpufrequencies.core.PeriodicSampler;
+import com.byivan.cpufrequencies.core.ProfileSink;
+import com.byivan.cpufrequencies.core.SnapshotDelta;
+
+/*
+ * Sink that sends every sample of the shared sampler to the callbacks registered through
+ * ICpuProfiler. It also sets the period of the sampler to the shortest period asked by the
+ * callbacks, and back to 0 (readings only on demand) when there are none left, also when a client
+ * dies without unregistering. Owners of a snapshot channel are registered too, only to keep their
+ * period, and don't receive the samples.
+ */
+class CallbackSink implements ProfileSink {
+
+	// Period used by callbacks registered without one, 4 samples per second.
+	static final int DEFAULT_PERIOD_MS = 250;
+
+	// Cookie of each callback.
+	private static final class Registration {
+
+		final int periodMs;
+		final boolean receivesSamples;
+
+		Registration(int periodMs, boolean receivesSamples) {
+			this.periodMs = periodMs > 0 ? periodMs : DEFAULT_PERIOD_MS;
+			this.receivesSamples = receivesSamples;
+		}
+
+	}
+
+	private final RemoteCallbackList<ICpuProfilerCallback> callbacks = new RemoteCallbackList<ICpuProfilerCallback>();
+	private final PeriodicSampler sampler;
+	// Reused for every broadcast, the parcel copies it.
+	private long[] packed = null;
+
+	CallbackSink(PeriodicSampler sampler) {
+		this.sampler = sampler;
+	}
+
+	/*
+	 * Registers callback, which is called with every sample if receivesSamples is true. Registering it
+	 * again replaces the previous registration.
+	 */
+	void register(ICpuProfilerCallback callback, int periodMs, boolean receivesSamples) {
+		synchronized (callbacks) {
+			callbacks.unregister(callback);
+			callbacks.register(callback, new Registration(periodMs, receivesSamples));
+			updatePeriod();
+		}
+	}
+
+	void unregister(ICpuProfilerCallback callback) {
+		synchronized (callbacks) {
+			callbacks.unregister(callback);
+			updatePeriod();
+		}
+	}
+
+	// Unregisters all the callbacks, when the service is destroyed.
+	void kill() {
+		synchronized (callbacks) {
+			callbacks.kill();
+		}
+	}
+
+	@Override
+	public void open(CpuFreqSnapshot initial) {
+		packed = new long[initial.getLayout().size()];
+	}
+
+	@Override
+	public void onSample(CpuFreqSnapshot previous, CpuFreqSnapshot current, SnapshotDelta delta) {
+		synchronized (callbacks) {
+			int n = callbacks.beginBroadcast();
+			if (n > 0) {
+				CpuProfilerBinder.pack(delta, packed);
+				for (int i = 0; i < n; i++) {
+					if (!((Registration) callbacks.getBroadcastCookie(i)).receivesSamples)
+						continue;
+					try {
+						callbacks.getBroadcastItem(i).onSample(current.getSequence(), packed);
+					} catch (RemoteException e) {
+						// The client died, RemoteCallbackList removes it.
+					}
+				}
+			}
+			callbacks.finishBroadcast();
+			updatePeriod();
+		}
+	}
+
+	@Override
+	public void flush() {
+		// Nothing is buffered.
+	}
+
+	@Override
+	public void close(CpuFreqSnapshot initial, CpuFreqSnapshot last, SnapshotDelta total) {
+		// The callbacks are unregistered by the service.
+	}
+
+	// Must be called with the lock of callbacks.
+	private void updatePeriod() {
+		long periodMs = 0;
+		int n = callbacks.beginBroadcast();
+		for (int i = 0; i < n; i++) {
+			int callbackPeriodMs = ((Registration) callbacks.getBroadcastCookie(i)).periodMs;
+			if (periodMs == 0 || callbackPeriodMs < periodMs)
+				periodMs = callbackPeriodMs;
+		}
+		callbacks.finishBroadcast();
+		sampler.setPeriodMs(periodMs);
+	}
+
+}
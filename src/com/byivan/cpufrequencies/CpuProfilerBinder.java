@@ -0,0 +1,217 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies;
+
+import java.io.FileNotFoundException;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.byivan.cpufrequencies.core.CpuFreqLayout;
+import com.byivan.cpufrequencies.core.CpuFreqPolicy;
+import com.byivan.cpufrequencies.core.CpuFreqSnapshot;
+import com.byivan.cpufrequencies.core.FrequencyTable;
+import com.byivan.cpufrequencies.core.SharedProfiler;
+import com.byivan.cpufrequencies.core.SnapshotChannelWriter;
+import com.byivan.cpufrequencies.core.SnapshotDelta;
+import com.byivan.cpufrequencies.core.SnapshotRing;
+
+/*
+ * Implementation of ICpuProfiler over the SharedProfiler of the service. Binder calls run in the
+ * binder threads of the service, never in the main thread, so they may wait for a reading of
+ * time_in_state when the last one is too old. See ICpuProfiler.aidl for the packed formats.
+ */
+class CpuProfilerBinder extends ICpuProfiler.Stub {
+
+	// How long openSnapshotChannel() waits for the first sample.
+	private static final long READING_TIMEOUT_MS = 1000;
+
+	private final SharedProfiler profiler;
+	private final CallbackSink callbacks;
+	private final SnapshotChannelWriter channel;
+
+	CpuProfilerBinder(SharedProfiler profiler, CallbackSink callbacks, SnapshotChannelWriter channel) {
+		this.profiler = profiler;
+		this.callbacks = callbacks;
+		this.channel = channel;
+	}
+
+	@Override
+	public int[] getLayout() {
+		CpuFreqLayout layout = profiler.getLayout();
+		if (layout == null)
+			return new int[] { 0, 0 };
+		int length = 2;
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			length += 4 + layout.getPolicy(p).getNumCpus();
+		}
+		int[] packed = new int[length];
+		packed[0] = layout.getNumPolicies();
+		packed[1] = layout.size();
+		int i = 2;
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			CpuFreqPolicy policy = layout.getPolicy(p);
+			packed[i++] = policy.getId();
+			packed[i++] = layout.getOffset(p);
+			packed[i++] = layout.getFrequencyTable(p).size();
+			packed[i++] = policy.getNumCpus();
+			for (int c = 0; c < policy.getNumCpus(); c++) {
+				packed[i++] = policy.getCpu(c);
+			}
+		}
+		return packed;
+	}
+
+	@Override
+	public long[] getFrequencies() {
+		CpuFreqLayout layout = profiler.getLayout();
+		if (layout == null)
+			return new long[0];
+		long[] frequencies = new long[layout.size()];
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			FrequencyTable table = layout.getFrequencyTable(p);
+			int offset = layout.getOffset(p);
+			for (int slot = 0; slot < table.size(); slot++) {
+				frequencies[offset + slot] = table.getFrequency(slot);
+			}
+		}
+		return frequencies;
+	}
+
+	@Override
+	public long getLatestSequence() {
+		return profiler.getLatest().getLatestSequence();
+	}
+
+	@Override
+	public long[] getLatestSamples(int n) {
+		SnapshotRing history = profiler.getHistory();
+		CpuFreqLayout layout = history.getLayout();
+		if (layout == null || n <= 0)
+			return new long[0];
+		int recordSize = layout.size() + 1;
+		long count = history.getCount();
+		long first = Math.max(history.getFirstSequence(), count - n);
+		long[] packed = new long[(int) (count - first) * recordSize];
+		CpuFreqSnapshot snapshot = new CpuFreqSnapshot(layout);
+		int records = 0;
+		for (long sequence = first; sequence < count; sequence++) {
+			// Samples overwritten by the sampler while copying are left out.
+			if (!history.copy(sequence, snapshot))
+				continue;
+			packed[records * recordSize] = snapshot.getSequence();
+			pack(snapshot, packed, records * recordSize + 1);
+			records++;
+		}
+		if (records * recordSize == packed.length)
+			return packed;
+		long[] result = new long[records * recordSize];
+		System.arraycopy(packed, 0, result, 0, result.length);
+		return result;
+	}
+
+	@Override
+	public boolean startSession(String name) {
+		try {
+			profiler.getSessions().start(name);
+			return true;
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public long[] querySession(String name) {
+		try {
+			SnapshotDelta total = profiler.getSessions().query(name).getTotal();
+			return pack(total, new long[total.getLayout().size()]);
+		} catch (IllegalStateException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public long[] stopSession(String name) {
+		try {
+			SnapshotDelta total = profiler.getSessions().stop(name).getTotal();
+			return pack(total, new long[total.getLayout().size()]);
+		} catch (IllegalStateException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void registerCallback(ICpuProfilerCallback callback, int periodMs) {
+		if (callback != null)
+			callbacks.register(callback, periodMs, true);
+	}
+
+	@Override
+	public void unregisterCallback(ICpuProfilerCallback callback) {
+		if (callback != null)
+			callbacks.unregister(callback);
+	}
+
+	@Override
+	public ParcelFileDescriptor openSnapshotChannel(ICpuProfilerCallback owner, int periodMs) {
+		if (owner != null)
+			callbacks.register(owner, periodMs, false);
+		try {
+			// The file is created with the first sample.
+			if (!channel.awaitOpen(READING_TIMEOUT_MS))
+				return null;
+			return ParcelFileDescriptor.open(channel.getFile(), ParcelFileDescriptor.MODE_READ_ONLY);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (FileNotFoundException e) {
+			Log.e(getClass().getName(), "Error opening " + channel.getFile(), e);
+			return null;
+		}
+	}
+
+	// Values of delta in out, -1 in the slots of the policies that are not valid.
+	static long[] pack(SnapshotDelta delta, long[] out) {
+		CpuFreqLayout layout = delta.getLayout();
+		long[] values = delta.getValues();
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			int start = layout.getOffset(p);
+			int end = start + layout.getFrequencyTable(p).size();
+			boolean valid = delta.isValid(p);
+			for (int i = start; i < end; i++) {
+				out[i] = valid ? values[i] : -1;
+			}
+		}
+		return out;
+	}
+
+	// Residency of snapshot in out from offset, -1 in the slots of the policies that are not valid.
+	static void pack(CpuFreqSnapshot snapshot, long[] out, int offset) {
+		CpuFreqLayout layout = snapshot.getLayout();
+		long[] residency = snapshot.getResidency();
+		for (int p = 0; p < layout.getNumPolicies(); p++) {
+			int start = layout.getOffset(p);
+			int end = start + layout.getFrequencyTable(p).size();
+			boolean valid = snapshot.isValid(p);
+			for (int i = start; i < end; i++) {
+				out[offset + i] = valid ? residency[i] : -1;
+			}
+		}
+	}
+
+}
@@ -17,16 +17,11 @@
 
 package com.byivan.cpufrequencies;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.Service;
 import android.content.Intent;
@@ -34,6 +29,21 @@ import android.os.Environment;
 import android.os.IBinder;
 import android.util.Log;
 
+import com.byivan.cpufrequencies.core.CpuTopology;
+import com.byivan.cpufrequencies.core.CsvSessionWriter;
+import com.byivan.cpufrequencies.core.CurFreqSampler;
+import com.byivan.cpufrequencies.core.PeriodicSampler;
+import com.byivan.cpufrequencies.core.PowerProfile;
+import com.byivan.cpufrequencies.core.PowerSupply;
+import com.byivan.cpufrequencies.core.ProfileSink;
+import com.byivan.cpufrequencies.core.ProfileSinks;
+import com.byivan.cpufrequencies.core.SessionReport;
+import com.byivan.cpufrequencies.core.SharedProfiler;
+import com.byivan.cpufrequencies.core.SnapshotChannelWriter;
+import com.byivan.cpufrequencies.core.SnapshotPipeline;
+import com.byivan.cpufrequencies.core.SnapshotRing;
+import com.byivan.cpufrequencies.core.SystemPaths;
+
 /*
  * This service works as a CPU profiler of the file /sys/devices/system/cpu/cpu<cpu_id>/cpufreq/stats/time_in_state.
  * As the Linux kernel documentation explains, this file  gives the amount of time spent in each of the frequencies 
@@ -44,245 +54,413 @@ import android.util.Log;
  * This service makes a record of the file when started and another record when closed. Then, it calculates the difference
  * between the initial and the final time for each frequency/CPU and stores the results in a CSV file located in
  * <external_storage>/cpu_frequencies/time_in_state_logs_<date>.csv
+ * The file is created when the profiling starts and written in a background thread while it runs, so a session that
+ * doesn't finish cleanly still leaves the samples taken up to the last flush. All the file I/O happens in background
+ * threads: a sampling thread publishes the readings into a bounded queue (SnapshotPipeline) and a writer thread
+ * drains it into the file.
  * 
- *  This profiler support devices with more than one CPU/core. The CVS file will store different results for each CPU.*/
+ *  This profiler support devices with more than one CPU/core. CPUs that share a cpufreq policy (a cluster) have the
+ *  same time_in_state, so the CVS file will store different results for each policy and the CPUs it contains.
+ *  
+ *  If the start Intent has the extra EXTRA_SAMPLING_PERIOD_MS, the service also takes a snapshot every
+ *  EXTRA_SAMPLING_PERIOD_MS milliseconds in a background thread. The CSV file will then include the time spent in
+ *  each frequency between consecutive samples. Up to EXTRA_QUEUE_CAPACITY samples can wait to be written,
+ *  EXTRA_BACKPRESSURE says what happens when there are more.
+ *  
+ *  High rate mode: with the extra EXTRA_CUR_FREQ_PERIOD_MS (1 to 10) the session also polls scaling_cur_freq of every
+ *  policy with that period and saves the changes, with the rate and jitter it achieved, in
+ *  <external_storage>/cpu_frequencies/cur_freq_<date>.txt when it stops (see CurFreqSampler).
+ *  
+ *  The results can go to several sinks at the same time (CSV file, binary trace, memory, logcat), chosen with the
+ *  extra EXTRA_SINKS.
+ *  
+ *  Named sessions: an Intent with the extra EXTRA_SESSION_NAME starts a session with that name instead, and the action
+ *  ACTION_STOP_SESSION with the same extra stops it. Any number of named sessions can run at the same time, they share
+ *  one sampler that only reads time_in_state when a session starts or stops and the last reading is older than
+ *  EXTRA_MAX_SAMPLE_AGE_MS. Stopping a session saves only its own report in
+ *  <external_storage>/cpu_frequencies/<session>_<date>.txt (see SessionReport) and logs it. They don't affect the
+ *  unnamed session above.
+ *  
+ *  Energy: with the extra EXTRA_POWER_PROFILE the CSV file and the session reports also have the energy used by each
+ *  CPU, estimated from the residencies with a power model in the format of power_profile.xml, and the charge measured
+ *  in the battery to check the model.
+ *  
+ *  Bound service: clients that bind get an ICpuProfiler to read live data (layout, last samples, named sessions and
+ *  callbacks with every sample) as packed primitive arrays. It uses the same shared sampler as the named sessions.
+ *  
+ *  The profiling itself is done by the platform independent core (package com.byivan.cpufrequencies.core), this
+ *  service only reads the Intent, chooses the storage and sends the messages of the core to logcat.*/
 public class CpuProfilerService extends Service {
 
-	// Separator, ',' for CSV files.
-	public static final String SEPARATOR = ",";
+	// Intent extra (int) with the period in milliseconds of the continuous sampling. Disabled if not set.
+	public static final String EXTRA_SAMPLING_PERIOD_MS = "com.byivan.cpufrequencies.extra.SAMPLING_PERIOD_MS";
+	// Intent extra (int) with the period in milliseconds of the high rate sampling, 1 to 10. Disabled if not set.
+	public static final String EXTRA_CUR_FREQ_PERIOD_MS = "com.byivan.cpufrequencies.extra.CUR_FREQ_PERIOD_MS";
+	// Intent extra (int) with the number of samples that can wait to be written.
+	public static final String EXTRA_QUEUE_CAPACITY = "com.byivan.cpufrequencies.extra.QUEUE_CAPACITY";
+	// Intent extra (String) with what to do when the queue is full: BLOCK, DROP_OLDEST or COALESCE.
+	public static final String EXTRA_BACKPRESSURE = "com.byivan.cpufrequencies.extra.BACKPRESSURE";
+	/*
+	 * Intent extra (String) with the sinks of the session separated by commas: SINK_CSV, SINK_TRACE,
+	 * SINK_MEMORY and SINK_LOGCAT. SINK_CSV if not set.
+	 */
+	public static final String EXTRA_SINKS = "com.byivan.cpufrequencies.extra.SINKS";
+	// Intent extra (int) with the number of samples kept by SINK_MEMORY.
+	public static final String EXTRA_MEMORY_CAPACITY = "com.byivan.cpufrequencies.extra.MEMORY_CAPACITY";
+	// Intent extra (int) with the number of threads that read the policies of a sample concurrently, 1 by default.
+	public static final String EXTRA_READ_THREADS = "com.byivan.cpufrequencies.extra.READ_THREADS";
 	/*
-	 * List of HashMaps, every item of the list stores data of a CPU. Therefore,
-	 * the size of the List is equal to the number of CPUs. The HashMap key is
-	 * the frequency and the value is the time spent in that frequency.
+	 * Intent extras (String) with the directories used instead of /sys and /proc, e.g. to replay a tree
+	 * copied from another device. See SystemPaths.
 	 */
-	private ArrayList<HashMap<String, Long>> initialTimeInFreq = null;
-	// Number of CPUs of the device.
-	private int numCpus = 1;
+	public static final String EXTRA_SYSFS_ROOT = "com.byivan.cpufrequencies.extra.SYSFS_ROOT";
+	public static final String EXTRA_PROCFS_ROOT = "com.byivan.cpufrequencies.extra.PROCFS_ROOT";
+	// Intent extra (String) with the name of a named session.
+	public static final String EXTRA_SESSION_NAME = "com.byivan.cpufrequencies.extra.SESSION_NAME";
+	// Intent extra (int) with the age in milliseconds over which a named session reads time_in_state again.
+	public static final String EXTRA_MAX_SAMPLE_AGE_MS = "com.byivan.cpufrequencies.extra.MAX_SAMPLE_AGE_MS";
+	/*
+	 * Intent extra (String) with the path of a power profile in the format of power_profile.xml (see
+	 * PowerProfile). The CSV file and the reports of the named sessions then have the estimated energy
+	 * of each CPU, and the charge used from the power supply in EXTRA_POWER_SUPPLY (String, "battery"
+	 * by default, /sys/class/power_supply/<name>/charge_counter) to check the model.
+	 */
+	public static final String EXTRA_POWER_PROFILE = "com.byivan.cpufrequencies.extra.POWER_PROFILE";
+	public static final String EXTRA_POWER_SUPPLY = "com.byivan.cpufrequencies.extra.POWER_SUPPLY";
+	// Intent action that stops the session named in EXTRA_SESSION_NAME.
+	public static final String ACTION_STOP_SESSION = "com.byivan.cpufrequencies.action.STOP_SESSION";
+	// CSV file, see CsvSessionWriter.
+	public static final String SINK_CSV = ProfileSinks.CSV;
+	// Binary trace, see BinaryTraceWriter.
+	public static final String SINK_TRACE = ProfileSinks.TRACE;
+	// Last samples kept in memory, see SnapshotRing.
+	public static final String SINK_MEMORY = ProfileSinks.MEMORY;
+	// Summary in logcat, see LogcatSummarySink.
+	public static final String SINK_LOGCAT = "logcat";
+	public static final int DEFAULT_MEMORY_CAPACITY = ProfileSinks.DEFAULT_MEMORY_CAPACITY;
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+	public static final SnapshotPipeline.Backpressure DEFAULT_BACKPRESSURE = SnapshotPipeline.Backpressure.COALESCE;
+	// Period of the flushes of the CSV file while the profiling is running.
+	public static final long FLUSH_INTERVAL_MS = 1000;
+	public static final int DEFAULT_MAX_SAMPLE_AGE_MS = 100;
+	// File in the cache directory where the shared sampler publishes the samples for bound clients.
+	private static final String SNAPSHOT_CHANNEL_FILE = "snapshots.shm";
+	// Current profiling session, null if the profiling is not running.
+	private PeriodicSampler session = null;
+	// High rate sampler of the current session, null if it's not used.
+	private CurFreqSampler curFreqSampler = null;
+	// Last samples of the current or the last session, null if SINK_MEMORY is not used.
+	private SnapshotRing memorySink = null;
+	// Background thread for the named sessions, they may need to read time_in_state and write files.
+	private ExecutorService sessionExecutor;
+	// Sampler shared by the named sessions and the bound clients, created when one of them needs it.
+	private SharedProfiler sharedProfiler = null;
+	private CallbackSink callbackSink = null;
+	private SnapshotChannelWriter snapshotChannel = null;
+	private CpuProfilerBinder binder = null;
 
 	@Override
-	public IBinder onBind(Intent intent) {
-		// Not used for this kind of service.
-		return null;
+	public void onCreate() {
+		super.onCreate();
+		AndroidLogger.install();
+		sessionExecutor = Executors.newSingleThreadExecutor();
 	}
 
+	/*
+	 * Clients that bind get an ICpuProfiler. The extras of the paths and EXTRA_MAX_SAMPLE_AGE_MS are
+	 * used if the shared sampler is not running yet.
+	 */
 	@Override
-	public void onCreate() {
-		super.onCreate();
-		// Read number of CPUs
-		int numCpusTmp = getNumCPUs();
-		if (numCpusTmp > 0) {
-			numCpus = numCpusTmp;
-		}
+	public synchronized IBinder onBind(Intent intent) {
+		SharedProfiler profiler = getSharedProfiler(getSystemPaths(intent),
+				intent != null ? intent.getIntExtra(EXTRA_MAX_SAMPLE_AGE_MS, DEFAULT_MAX_SAMPLE_AGE_MS)
+						: DEFAULT_MAX_SAMPLE_AGE_MS);
+		if (binder == null)
+			binder = new CpuProfilerBinder(profiler, callbackSink, snapshotChannel);
+		return binder;
 	}
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
-		// Start profiling. Get initial values of file time_in_state.
-		initialTimeInFreq = parseAllTimeInState();
-		Log.i(getClass().getName(), "Cpu profiling started");
+		if (intent != null && intent.hasExtra(EXTRA_SESSION_NAME)) {
+			onNamedSessionCommand(intent);
+			return START_STICKY;
+		}
+		// A new start restarts the profiling. The previous session finishes in
+		// the background.
+		stopProfiling();
+		int periodMs = intent != null ? intent.getIntExtra(EXTRA_SAMPLING_PERIOD_MS, 0) : 0;
+		int capacity = intent != null ? intent.getIntExtra(EXTRA_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY)
+				: DEFAULT_QUEUE_CAPACITY;
+		if (capacity < 1)
+			capacity = DEFAULT_QUEUE_CAPACITY;
+		SnapshotPipeline.Backpressure backpressure = DEFAULT_BACKPRESSURE;
+		String backpressureExtra = intent != null ? intent.getStringExtra(EXTRA_BACKPRESSURE) : null;
+		if (backpressureExtra != null) {
+			try {
+				backpressure = SnapshotPipeline.Backpressure.valueOf(backpressureExtra);
+			} catch (IllegalArgumentException e) {
+				Log.e(getClass().getName(), "Error, unknown backpressure policy " + backpressureExtra);
+			}
+		}
+		SystemPaths paths = getSystemPaths(intent);
+		// Start profiling. The initial values of time_in_state are read by the
+		// sampling thread.
+		session = new PeriodicSampler(new CpuTopology(paths), periodMs < 0 ? 0 : periodMs, capacity, backpressure,
+				FLUSH_INTERVAL_MS);
+		int readThreads = intent != null ? intent.getIntExtra(EXTRA_READ_THREADS, 1) : 1;
+		session.setReadThreads(readThreads > 0 ? readThreads : 1);
+		String sinks = intent != null ? intent.getStringExtra(EXTRA_SINKS) : null;
+		String powerProfile = intent != null ? intent.getStringExtra(EXTRA_POWER_PROFILE) : null;
+		addSinks(session, sinks != null ? sinks : SINK_CSV,
+				intent != null ? intent.getIntExtra(EXTRA_MEMORY_CAPACITY, DEFAULT_MEMORY_CAPACITY)
+						: DEFAULT_MEMORY_CAPACITY, powerProfile != null ? new File(powerProfile) : null,
+				powerProfile != null ? getPowerSupply(intent, paths) : null);
+		session.start();
+		int curFreqPeriodMs = intent != null ? intent.getIntExtra(EXTRA_CUR_FREQ_PERIOD_MS, 0) : 0;
+		if (curFreqPeriodMs > 0)
+			startCurFreqSampler(paths, curFreqPeriodMs);
+		if (periodMs > 0)
+			Log.i(getClass().getName(), "Cpu profiling started, sampling every " + periodMs + "ms");
+		else
+			Log.i(getClass().getName(), "Cpu profiling started");
 		return START_STICKY;
 	}
 
-	// Read CPU statistics from file time_in_state from all the CPUs.
-	private ArrayList<HashMap<String, Long>> parseAllTimeInState() {
-		ArrayList<HashMap<String, Long>> timeInFreqCpus = new ArrayList<HashMap<String, Long>>();
-		for (int i = 0; i < numCpus; i++) {
-			HashMap<String, Long> timeInFreqOneCpu = parseTimeInState(i);
-			if (timeInFreqOneCpu != null)
-				timeInFreqCpus.add(i, timeInFreqOneCpu);
-			else
-				Log.e(getClass().getName(), "Error, parseTimeInState() with parameter cpuId=" + i
-						+ " has returned null");
+	// Starts the high rate sampler of the session, its timeline is saved when it stops.
+	private void startCurFreqSampler(SystemPaths paths, int periodMs) {
+		if (periodMs < CurFreqSampler.MIN_PERIOD_MS || periodMs > CurFreqSampler.MAX_PERIOD_MS) {
+			Log.e(getClass().getName(), "Error, the high rate period must be between " + CurFreqSampler.MIN_PERIOD_MS
+					+ " and " + CurFreqSampler.MAX_PERIOD_MS + "ms, periodMs=" + periodMs);
+			return;
 		}
-		if (timeInFreqCpus.size() > 0)
-			return timeInFreqCpus;
-		return null;
+		curFreqSampler = new CurFreqSampler(new CpuTopology(paths), periodMs, CurFreqSampler.DEFAULT_CAPACITY);
+		File directory = getLogDirectory();
+		if (directory != null)
+			curFreqSampler.setOutputFile(new File(directory, "cur_freq_" + ProfileSinks.newDate() + ".txt"));
+		curFreqSampler.start();
 	}
 
-	@Override
-	public void onDestroy() {
-		Log.i(getClass().getName(), "Stopping service CpuProfiler.");
-		if (initialTimeInFreq != null) {
-			// Stop profiling, Read final values.
-			ArrayList<HashMap<String, Long>> finalTimeInFreq = parseAllTimeInState();
-			if (finalTimeInFreq != null)
-				// Write the results in the log file.
-				writeToFile(initialTimeInFreq, finalTimeInFreq);
-		}
-		super.onDestroy();
+	// Roots of sysfs and procfs given in the Intent, the real ones if they are not set.
+	private SystemPaths getSystemPaths(Intent intent) {
+		String sysfsRoot = intent != null ? intent.getStringExtra(EXTRA_SYSFS_ROOT) : null;
+		String procfsRoot = intent != null ? intent.getStringExtra(EXTRA_PROCFS_ROOT) : null;
+		if (sysfsRoot == null && procfsRoot == null)
+			return new SystemPaths();
+		SystemPaths paths = new SystemPaths(new File(sysfsRoot != null ? sysfsRoot : SystemPaths.DEFAULT_SYSFS_ROOT),
+				new File(procfsRoot != null ? procfsRoot : SystemPaths.DEFAULT_PROCFS_ROOT));
+		Log.i(getClass().getName(), "Using " + paths);
+		return paths;
+	}
+
+	// Power supply given in the Intent, the battery if it's not set.
+	private PowerSupply getPowerSupply(Intent intent, SystemPaths paths) {
+		String name = intent.getStringExtra(EXTRA_POWER_SUPPLY);
+		return new PowerSupply(paths, name != null ? name : PowerSupply.DEFAULT_NAME);
 	}
 
 	/*
-	 * This method works out the time difference between the initial and final
-	 * readings and saves the results in
-	 * <external_storage>/cpu_frequencies/time_in_state_logs_<date>.csv
+	 * Adds to the session the sinks listed in sinks, separated by commas. The CSV file has the energy
+	 * estimated with powerProfile if it's not null.
 	 */
-	private void writeToFile(ArrayList<HashMap<String, Long>> initialTimeInFreqCpus,
-			ArrayList<HashMap<String, Long>> finalTimeInFreqCpus) {
-		if (initialTimeInFreqCpus.size() != finalTimeInFreqCpus.size()) {
-			Log.e(getClass().getName(),
-					"Error, intial and final readings of time_in_state has different number of CPUs");
+	private void addSinks(PeriodicSampler session, String sinks, int memoryCapacity, File powerProfile,
+			PowerSupply powerSupply) {
+		memorySink = null;
+		String baseName = ProfileSinks.newSessionName();
+		File directory = null;
+		String[] names = sinks.split(",");
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i].trim();
+			if (SINK_LOGCAT.equals(name)) {
+				session.addSink(new LogcatSummarySink());
+				continue;
+			}
+			if (ProfileSinks.needsDirectory(name)) {
+				if (directory == null)
+					directory = getLogDirectory();
+				if (directory == null)
+					continue;
+			}
+			ProfileSink sink = ProfileSinks.create(name, directory, baseName, memoryCapacity);
+			if (sink == null) {
+				if (name.length() > 0)
+					Log.e(getClass().getName(), "Error, unknown sink " + name);
+				continue;
+			}
+			if (sink instanceof SnapshotRing)
+				memorySink = (SnapshotRing) sink;
+			if (sink instanceof CsvSessionWriter)
+				((CsvSessionWriter) sink).setPower(powerProfile, powerSupply);
+			session.addSink(sink);
+		}
+	}
+
+	// Starts or stops a named session in the background.
+	private void onNamedSessionCommand(Intent intent) {
+		final String name = intent.getStringExtra(EXTRA_SESSION_NAME);
+		if (name == null || name.length() == 0) {
+			Log.e(getClass().getName(), "Error, empty session name");
 			return;
 		}
-		File file = null;
-		FileWriter fw = null;
-		try {
-			// Check external Storage
-			String state = Environment.getExternalStorageState();
-			if (Environment.MEDIA_MOUNTED.equals(state)) {
-				// We can read and write the media
-				File path = Environment.getExternalStoragePublicDirectory("cpu_frequencies");
-				Calendar rightNow = Calendar.getInstance();
-				String date = Integer.toString(rightNow.get(Calendar.DAY_OF_MONTH))
-						+ Integer.toString(rightNow.get(Calendar.MONTH))
-						+ Integer.toString(rightNow.get(Calendar.YEAR)) + "_"
-						+ Integer.toString(rightNow.get(Calendar.HOUR_OF_DAY))
-						+ Integer.toString(rightNow.get(Calendar.MINUTE))
-						+ Integer.toString(rightNow.get(Calendar.SECOND));
-				file = new File(path, "time_in_state_logs_" + date + ".csv");
-				path.mkdirs();
-				fw = new FileWriter(file);
-				// Traverse all the HashMaps for each CPU
-				for (int i = 0; i < initialTimeInFreqCpus.size(); i++) {
-					HashMap<String, Long> initialTimeInFreq = initialTimeInFreqCpus.get(i);
-					HashMap<String, Long> finalTimeInFreq = finalTimeInFreqCpus.get(i);
-					if (initialTimeInFreq.size() == finalTimeInFreq.size()) {
-						Iterator<String> itr = initialTimeInFreq.keySet().iterator();
-						long initialTime = 0;
-						long finalTime = 0;
-						fw.write("CPU" + SEPARATOR + i + "\n");
-						fw.write("Frequency" + SEPARATOR + "Time" + "\n");
-						// Traverse frequencies for CPU with ID=i
-						while (itr.hasNext()) {
-							// The key of the HasMap is the frequency
-							String frequency = itr.next();
-							initialTime = initialTimeInFreq.get(frequency);
-							finalTime = finalTimeInFreq.get(frequency);
-							// Calculate difference for a given frequency and
-							// CPU
-							long resultTime = finalTime - initialTime;
-							// Add result to file.
-							fw.write(frequency + SEPARATOR + resultTime + "\n");
-						}
-						fw.write("\n");
-					} else {
-						Log.e(getClass().getName(),
-								"Error, intial and final readings of time_in_state has different number of frequencies");
-					}
+		if (ACTION_STOP_SESSION.equals(intent.getAction())) {
+			sessionExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					stopNamedSession(name);
 				}
-			} else {
-				// Something else is wrong. It may be one of many other
-				// states,but all we need to know is we can neither read nor
-				// write
-				Log.e(getClass().getName(), "Error opening file ");
+			});
+			return;
+		}
+		final SystemPaths paths = getSystemPaths(intent);
+		final int maxAgeMs = intent.getIntExtra(EXTRA_MAX_SAMPLE_AGE_MS, DEFAULT_MAX_SAMPLE_AGE_MS);
+		final String powerProfile = intent.getStringExtra(EXTRA_POWER_PROFILE);
+		final PowerSupply powerSupply = getPowerSupply(intent, paths);
+		sessionExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (powerProfile != null)
+					setPower(paths, maxAgeMs, new File(powerProfile), powerSupply);
+				startNamedSession(name, paths, maxAgeMs);
 			}
+		});
+	}
+
+	/*
+	 * Returns the sampler shared by the named sessions and the bound clients. It is created the first
+	 * time, so the paths and the maximum age of the samples given then apply to all the clients. It
+	 * runs until the service is destroyed, idle (no readings) while no client needs samples.
+	 */
+	private synchronized SharedProfiler getSharedProfiler(SystemPaths paths, int maxAgeMs) {
+		if (sharedProfiler == null) {
+			// Only readings needed by the sessions, callbacks turn on the periodic ones.
+			sharedProfiler = new SharedProfiler(new CpuTopology(paths), 0, maxAgeMs,
+					SharedProfiler.DEFAULT_HISTORY_CAPACITY);
+			callbackSink = new CallbackSink(sharedProfiler.getSampler());
+			sharedProfiler.addSink(callbackSink);
+			// In the private cache directory, bound clients get a descriptor to read it.
+			snapshotChannel = new SnapshotChannelWriter(new File(getCacheDir(), SNAPSHOT_CHANNEL_FILE));
+			sharedProfiler.addSink(snapshotChannel);
+			sharedProfiler.start();
+		}
+		return sharedProfiler;
+	}
+
+	// Loads the power profile for the named sessions started from now on, in the session thread.
+	private void setPower(SystemPaths paths, int maxAgeMs, File powerProfile, PowerSupply supply) {
+		try {
+			getSharedProfiler(paths, maxAgeMs).getSessions().setPower(PowerProfile.load(powerProfile), supply);
 		} catch (IOException e) {
-			// Unable to create file, likely because external storage is
-			// not currently mounted.
-			Log.e(e.getClass().getName(), e.getMessage(), e);
-		} finally {
-			if (fw != null)
-				try {
-					// Closing File Writer
-					fw.close();
-				} catch (IOException e) {
-					Log.e(e.getClass().getName(), e.getMessage(), e);
-				}
+			Log.e(getClass().getName(), "Error loading the power profile " + powerProfile + ", " + e.getMessage());
 		}
+	}
 
+	private void startNamedSession(String name, SystemPaths paths, int maxAgeMs) {
+		try {
+			long sequence = getSharedProfiler(paths, maxAgeMs).getSessions().start(name);
+			Log.i(getClass().getName(), "Session " + name + " started at sample " + sequence);
+		} catch (IllegalStateException e) {
+			Log.e(getClass().getName(), "Error starting session " + name + ", " + e.getMessage());
+		}
 	}
 
-	// Read CPU statistics from file time_in_state for a given CPU.
-	private HashMap<String, Long> parseTimeInState(int cpuId) {
-		// Check whether the cpuId is valid.
-		if (cpuId < 0 || cpuId > numCpus - 1) {
-			Log.e(getClass().getName(), "Error, cpuId parameter of method parseTimeInState is invalid, cpuId=" + cpuId);
-			return null;
+	private void stopNamedSession(String name) {
+		SharedProfiler profiler;
+		synchronized (this) {
+			profiler = sharedProfiler;
 		}
-		BufferedReader in = null;
-		HashMap<String, Long> timeInStateCpu = null;
 		try {
-			/*
-			 * Reads the file time_in_state. This gives the amount of time spent
-			 * in each of the frequencies supported by this CPU. The cat output
-			 * will have "<frequency> <time>" pair in each line, which will mean
-			 * this CPU spent <time> usertime units of time at <frequency>.
-			 * Output will have one line for each of the supported frequencies.
-			 * usertime units here is 10mS (similar to other time exported in
-			 * /proc).
-			 */
-			Process process;
-			process = Runtime.getRuntime().exec(
-					"cat /sys/devices/system/cpu/cpu" + cpuId + "/cpufreq/stats/time_in_state");
-			in = new BufferedReader(new InputStreamReader(process.getInputStream()));
-			String line;
-			timeInStateCpu = new HashMap<String, Long>();
-			while ((line = in.readLine()) != null) {
-				String[] lines = line.split(" ");
-				// Format different from expected, stop method.
-				if (lines.length != 2)
-					return null;
-				// Time for in a frequency
-				Long time = Long.valueOf(lines[1]);
-				// Put the frequency as key of the HasMap and the time as value.
-				timeInStateCpu.put(lines[0], time);
-			}
-			if (timeInStateCpu.size() <= 0) {
-				// when in.readLine() returns null from the begging, that means
-				// the file is empty
-				Log.e(getClass().getName(), "Error in parseTimeInState, no lines read with in.readLine()");
-				return null;
-			}
-		} catch (Exception e) {
-			Log.e(e.getClass().getName(), e.getMessage(), e);
-			return null;
-		} finally {
-			try {
-				if (in != null)
-					// Close bufferedReader.
-					in.close();
-			} catch (IOException e) {
-				Log.e(e.getClass().getName(), e.getMessage(), e);
-			}
+			if (profiler == null)
+				throw new IllegalStateException("no session running");
+			saveReport(profiler.getSessions().stop(name));
+		} catch (IllegalStateException e) {
+			Log.e(getClass().getName(), "Error stopping session " + name + ", " + e.getMessage());
 		}
-		return timeInStateCpu;
 	}
 
-	// Returns the number of CPUs of the device or 0 if the number of CPUs can't
-	// be read
-	private int getNumCPUs() {
-		int numCPUs = 0;
-		BufferedReader in = null;
+	// Logs the report and saves it in <external_storage>/cpu_frequencies/<session>_<date>.txt.
+	private void saveReport(SessionReport report) {
+		String text = report.toString();
+		Log.i(getClass().getName(), text);
+		File directory = getLogDirectory();
+		if (directory == null)
+			return;
+		// Keep only the characters that are safe in a file name.
+		String name = report.getName().replaceAll("[^A-Za-z0-9_.-]", "_");
+		File file = new File(directory, name + "_" + ProfileSinks.newDate() + ".txt");
 		try {
-			/*
-			 * To find out the number of CPUs it looks for folders inside
-			 * /sys/devices/system/cpu/ which name is cpu plus one number from 0
-			 * to 9. For example: /sys/devices/system/cpu/cpu0
-			 * /sys/devices/system/cpu/cpu1 /sys/devices/system/cpu/cpu2
-			 */
-			Process process;
-			process = Runtime.getRuntime().exec("ls /sys/devices/system/cpu");
-			in = new BufferedReader(new InputStreamReader(process.getInputStream()));
-			String line;
-			while ((line = in.readLine()) != null) {
-				String[] lines = line.split(" ");
-				for (int i = 0; i < lines.length; i++) {
-					String directory = lines[i].trim();
-					if (Pattern.matches("cpu[0-9]", directory))
-						numCPUs++;
-				}
-			}
-		} catch (Exception e) {
-			Log.e(e.getClass().getName(), e.getMessage(), e);
-		} finally {
+			directory.mkdirs();
+			FileWriter writer = new FileWriter(file);
 			try {
-				if (in != null)
-					in.close();
-			} catch (IOException e) {
-				Log.e(e.getClass().getName(), e.getMessage(), e);
+				writer.write(text);
+			} finally {
+				writer.close();
 			}
+			Log.i(getClass().getName(), "Report of session " + report.getName() + " saved in " + file.getPath());
+		} catch (IOException e) {
+			Log.e(e.getClass().getName(), e.getMessage(), e);
 		}
-		return numCPUs;
+	}
+
+	/*
+	 * Stops the profiling if it's running. The final reading and the writing
+	 * of the results happen in background threads, this method returns
+	 * immediately.
+	 */
+	private void stopProfiling() {
+		if (curFreqSampler != null) {
+			curFreqSampler.stop();
+			curFreqSampler = null;
+		}
+		if (session == null)
+			return;
+		session.stop();
+		session = null;
+	}
+
+	@Override
+	public void onDestroy() {
+		Log.i(getClass().getName(), "Stopping service CpuProfiler.");
+		stopProfiling();
+		// Named sessions still running are stopped and saved in the background.
+		final SharedProfiler profiler;
+		synchronized (this) {
+			profiler = sharedProfiler;
+			sharedProfiler = null;
+			if (callbackSink != null)
+				callbackSink.kill();
+		}
+		if (profiler != null) {
+			sessionExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					SessionReport[] reports = profiler.getSessions().stopAll();
+					for (int i = 0; i < reports.length; i++) {
+						saveReport(reports[i]);
+					}
+					profiler.stop();
+				}
+			});
+		}
+		sessionExecutor.shutdown();
+		super.onDestroy();
+	}
+
+	/*
+	 * Returns the directory where the results are saved, <external_storage>/cpu_frequencies, or null
+	 * if the external storage is not available.
+	 */
+	private File getLogDirectory() {
+		// Check external Storage
+		String state = Environment.getExternalStorageState();
+		if (Environment.MEDIA_MOUNTED.equals(state)) {
+			// We can read and write the media
+			return Environment.getExternalStoragePublicDirectory("cpu_frequencies");
+		}
+		// Something else is wrong. It may be one of many other
+		// states,but all we need to know is we can neither read nor
+		// write
+		Log.e(getClass().getName(), "Error opening file, external storage state=" + state);
+		return null;
 	}
 
 }
@@ -0,0 +1,98 @@
+/*
+ * Author:	Ivan Carballo Fernandez (icf1e11@soton.ac.uk)
+ * Project:	CpuFrequencies - Android Service that works as a CPU profiler for the time_in_state file.
+ * Date:	11-08-2012
+ *
+ * License: Copyright (C) 2012 Ivan Carballo.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.byivan.cpufrequencies;
+
+import android.util.Log;
+
+import com.byivan.cpufrequencies.core.CpuFreqLayout;
+import com.byivan.cpufrequencies.core.CpuFreqPolicy;
+import com.byivan.cpufrequencies.core.CpuFreqSnapshot;
+import com.byivan.cpufrequencies.core.FrequencyTable;
+import com.byivan.cpufrequencies.core.ProfileSink;
+import com.byivan.cpufrequencies.core.SnapshotDelta;
+import com.byivan.cpufrequencies.core.TextReport;
+
+/*
+ * Sink that writes a short summary of the session to logcat when it finishes: for each policy the
+ * total time, the mean frequency, the estimated megacycles, the share of each frequency used and how
+ * busy its CPUs were, if /proc/stat could be read. Handy for quick runs where pulling a file from
+ * the device is not worth it.
+ */
+public class LogcatSummarySink implements ProfileSink {
+
+	private long samples = 0;
+
+	@Override
+	public void open(CpuFreqSnapshot initial) {
+		samples = 1;
+	}
+
+	@Override
+	public void onSample(CpuFreqSnapshot previous, CpuFreqSnapshot current, SnapshotDelta delta) {
+		samples++;
+	}
+
+	@Override
+	public void flush() {
+		// Nothing is written until the end of the session.
+	}
+
+	@Override
+	public void close(CpuFreqSnapshot initial, CpuFreqSnapshot last, SnapshotDelta total) {
+		String tag = getClass().getName();
+		CpuFreqLayout layout = total.getLayout();
+		Log.i(tag, "Session summary, " + samples + " samples in " + total.getElapsedNs() / 1000000L + "ms, "
+				+ total.getTotalCycles() / 1000000L + " Mcycles");
+		long[] busy = total.getCpuBusy();
+		long[] idle = total.getCpuIdle();
+		for (int i = 0; i < layout.getNumPolicies(); i++) {
+			CpuFreqPolicy policy = layout.getPolicy(i);
+			if (!total.isValid(i)) {
+				Log.i(tag, "Policy " + policy.getId() + " (CPUs " + policy.getCpuList() + "): not available");
+				continue;
+			}
+			long time = total.getTotal(i);
+			StringBuilder sb = new StringBuilder();
+			sb.append("Policy ").append(policy.getId()).append(" (CPUs ").append(policy.getCpuList())
+					.append("): ").append(time * 10).append("ms, mean ").append(total.getMeanFrequency(i)).append("KHz, ")
+					.append(total.getCycles(i) / 1000000L).append(" Mcycles per CPU");
+			FrequencyTable frequencies = layout.getFrequencyTable(i);
+			for (int slot = 0; slot < frequencies.size(); slot++) {
+				long frequencyTime = total.get(i, slot);
+				if (frequencyTime == 0)
+					continue;
+				sb.append(", ").append(frequencies.getFrequency(slot)).append("KHz ");
+				TextReport.appendPerMille(sb, total.getPerMille(i, slot)).append('%');
+			}
+			long transitions = total.getTotalTransitions(i);
+			if (transitions >= 0) {
+				sb.append(", ").append(transitions).append(" transitions (");
+				TextReport.appendPerMille(sb, total.getTransitionRateDeci(i)).append("/s)");
+			}
+			for (int c = 0; c < layout.getNumCpus(); c++) {
+				if (layout.getPolicyIndexOfCpu(c) != i || busy[c] < 0)
+					continue;
+				long cpuTime = busy[c] + idle[c];
+				sb.append(", CPU ").append(layout.getCpuId(c)).append(" busy ");
+				TextReport.appendPerMille(sb, cpuTime > 0 ? busy[c] * 1000 / cpuTime : 0).append('%');
+			}
+			Log.i(tag, sb.toString());
+		}
+	}
+
+}